@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscListener;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageTemplate;
+
+/**
+ * Compares the OscServerBuilder profiles over the loopback interface.
+ * 
+ * For each profile a server is started and sent a paced stream of messages to
+ * measure latency from send to delivery, then a burst sent as fast as
+ * possible to measure throughput. Each message carries the time it was sent.
+ * 
+ * Usage: OscServerBenchmark [udp|tcp] [burst size] [profile...]
+ */
+public class OscServerBenchmark {
+	private static final int PORT = 10001;
+	private static final int LATENCY_COUNT = 2000;
+	private static final long LATENCY_INTERVAL_NANOS = 100000;
+	private static final int DEFAULT_BURST = 100000;
+	private static final long TIMEOUT_NANOS = 5000000000L;
+
+	public static void main(String[] args) throws Exception {
+		boolean udp = args.length < 1 || !args[0].equals("tcp");
+		int burst = (args.length < 2) ? DEFAULT_BURST : Integer
+				.parseInt(args[1]);
+		OscServerBuilder.Profile[] profiles = OscServerBuilder.Profile
+				.values();
+		if (args.length > 2) {
+			profiles = new OscServerBuilder.Profile[args.length - 2];
+			for (int i = 2; i < args.length; i++) {
+				profiles[i - 2] = OscServerBuilder.Profile.forName(args[i]);
+			}
+		}
+
+		System.out.println((udp ? "UDP" : "TCP") + ", " + LATENCY_COUNT
+				+ " paced messages then a burst of " + burst);
+		System.out.println("profile           p50 us    p99 us    max us"
+				+ "    msgs/s  delivered");
+		for (OscServerBuilder.Profile profile : profiles) {
+			run(profile, udp, burst);
+		}
+	}
+
+	private static void run(OscServerBuilder.Profile profile, boolean udp,
+			int burst) throws Exception {
+		Recorder recorder = new Recorder(LATENCY_COUNT);
+		OscServer server = new OscServerBuilder(PORT).profile(profile).udp(
+				udp).build();
+		server.addOscListener(recorder);
+		server.start();
+
+		OscNioClient client = new OscNioClient(udp);
+		try {
+			client.connect(new InetSocketAddress("127.0.0.1", PORT));
+			OscMessageTemplate message = new OscMessageTemplate("/bench", "h");
+
+			// Warm up and measure latency
+			for (int i = 0; i < LATENCY_COUNT; i++) {
+				message.setLong(0, System.nanoTime());
+				client.sendPacket(message);
+				LockSupport.parkNanos(LATENCY_INTERVAL_NANOS);
+			}
+			recorder.await(LATENCY_COUNT);
+			long[] latencies = recorder.latencies();
+
+			// Throughput
+			recorder.reset();
+			long start = System.nanoTime();
+			for (int i = 0; i < burst; i++) {
+				message.setLong(0, System.nanoTime());
+				client.sendPacket(message);
+			}
+			int delivered = recorder.await(burst);
+			long elapsed = recorder.lastDelivery() - start;
+
+			System.out.println(padRight(profile.getName(), 15)
+					+ pad(percentile(latencies, 50), 10)
+					+ pad(percentile(latencies, 99), 10)
+					+ pad(percentile(latencies, 100), 10)
+					+ pad(delivered * 1000000000L / Math.max(elapsed, 1), 10)
+					+ pad(delivered, 11));
+		} finally {
+			client.disconnect();
+			server.stop();
+		}
+	}
+
+	private static long percentile(long[] sorted, int percent) {
+		if (sorted.length == 0) {
+			return -1;
+		}
+		int index = (sorted.length * percent + 99) / 100 - 1;
+		return sorted[Math.max(index, 0)] / 1000;
+	}
+
+	private static String padRight(String value, int width) {
+		StringBuilder text = new StringBuilder(value);
+		while (text.length() < width) {
+			text.append(' ');
+		}
+		return text.toString();
+	}
+
+	private static String pad(Object value, int width) {
+		StringBuilder text = new StringBuilder(String.valueOf(value));
+		while (text.length() < width) {
+			text.insert(0, ' ');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Counts deliveries and keeps the latencies of the first few.
+	 */
+	private static class Recorder implements OscListener {
+		private final long[] latencies;
+		private final AtomicInteger count = new AtomicInteger();
+		private volatile long lastDelivery;
+		private volatile boolean keeping = true;
+
+		Recorder(int keep) {
+			latencies = new long[keep];
+		}
+
+		public void handleMessage(OscMessage msg) {
+			long now = System.nanoTime();
+			int index = count.getAndIncrement();
+			if (keeping && index < latencies.length) {
+				latencies[index] = now - msg.getLong(0);
+			}
+			lastDelivery = now;
+		}
+
+		public void handleBundle(OscBundle bundle) {
+		}
+
+		/**
+		 * Wait for the messages to arrive, or for them to stop arriving.
+		 * 
+		 * @return the number that arrived
+		 */
+		int await(int expected) throws InterruptedException {
+			int last = -1;
+			long deadline = System.nanoTime() + TIMEOUT_NANOS;
+			while (count.get() < expected && System.nanoTime() < deadline) {
+				Thread.sleep(100);
+				// UDP may drop some, give up once nothing more turns up
+				if (count.get() == last) {
+					break;
+				}
+				last = count.get();
+			}
+			return count.get();
+		}
+
+		long[] latencies() {
+			int kept = Math.min(count.get(), latencies.length);
+			long[] sorted = new long[kept];
+			System.arraycopy(latencies, 0, sorted, 0, kept);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		long lastDelivery() {
+			return lastDelivery;
+		}
+
+		void reset() {
+			keeping = false;
+			count.set(0);
+		}
+	}
+}
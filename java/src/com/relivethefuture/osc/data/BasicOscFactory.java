@@ -22,8 +22,23 @@
 package com.relivethefuture.osc.data;
 
 public class BasicOscFactory implements OscPacketFactory {
+	private boolean primitiveStorage;
+
+	public BasicOscFactory() {
+		this(false);
+	}
+
+	/**
+	 * @param primitiveStorage
+	 *            create messages that keep their arguments in primitive
+	 *            arrays, see OscMessage.
+	 */
+	public BasicOscFactory(boolean primitiveStorage) {
+		this.primitiveStorage = primitiveStorage;
+	}
+
 	public OscMessage createMessage() {
-		return new OscMessage();
+		return new OscMessage(null, primitiveStorage);
 	}
 
 	public OscBundle createBundle() {
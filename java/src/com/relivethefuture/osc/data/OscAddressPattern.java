@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+/**
+ * OSC address pattern matching.
+ * 
+ * Patterns are matched a segment at a time, the parts between the slashes,
+ * and support the OSC 1.0 syntax :
+ * 
+ * <pre>
+ * ?        any single character
+ * *        any run of characters, including none
+ * [abc]    any of the listed characters, [a-z] for a range
+ * [!abc]   any character not listed
+ * {foo,bar} any of the listed strings
+ * </pre>
+ * 
+ * None of these match a '/'.
+ */
+public final class OscAddressPattern {
+	private OscAddressPattern() {
+	}
+
+	/**
+	 * Does the string contain any pattern characters?
+	 */
+	public static boolean isPattern(String str) {
+		for (int i = 0; i < str.length(); i++) {
+			switch (str.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Match a whole address against a pattern.
+	 */
+	public static boolean matches(String pattern, String address) {
+		OscSymbol patternSymbol = new OscSymbol(pattern);
+		OscSymbol addressSymbol = new OscSymbol(address);
+		int count = patternSymbol.getSegmentCount();
+		if (count != addressSymbol.getSegmentCount()) {
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			if (!matchesSegment(patternSymbol.getSegment(i), addressSymbol
+					.getSegment(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Match one segment of an address against one segment of a pattern.
+	 */
+	public static boolean matchesSegment(String pattern, String segment) {
+		return match(pattern, 0, segment, 0);
+	}
+
+	private static boolean match(String pattern, int p, String text, int t) {
+		int patternLength = pattern.length();
+		int textLength = text.length();
+		while (p < patternLength) {
+			char c = pattern.charAt(p);
+			switch (c) {
+			case '*':
+				// Collapse runs of stars then try every possible split
+				while (p < patternLength && pattern.charAt(p) == '*') {
+					p++;
+				}
+				if (p == patternLength) {
+					return true;
+				}
+				for (int i = t; i <= textLength; i++) {
+					if (match(pattern, p, text, i)) {
+						return true;
+					}
+				}
+				return false;
+			case '?':
+				if (t == textLength) {
+					return false;
+				}
+				p++;
+				t++;
+				break;
+			case '[':
+				if (t == textLength) {
+					return false;
+				}
+				int close = pattern.indexOf(']', p + 1);
+				if (close < 0) {
+					return false;
+				}
+				if (!matchSet(pattern, p + 1, close, text.charAt(t))) {
+					return false;
+				}
+				p = close + 1;
+				t++;
+				break;
+			case '{':
+				int end = pattern.indexOf('}', p + 1);
+				if (end < 0) {
+					return false;
+				}
+				int from = p + 1;
+				while (from <= end) {
+					int comma = pattern.indexOf(',', from);
+					if (comma < 0 || comma > end) {
+						comma = end;
+					}
+					int length = comma - from;
+					if (text.regionMatches(t, pattern, from, length)
+							&& match(pattern, end + 1, text, t + length)) {
+						return true;
+					}
+					from = comma + 1;
+				}
+				return false;
+			default:
+				if (t == textLength || text.charAt(t) != c) {
+					return false;
+				}
+				p++;
+				t++;
+			}
+		}
+		return t == textLength;
+	}
+
+	/**
+	 * Is the character in the set between the brackets?
+	 */
+	private static boolean matchSet(String pattern, int from, int to, char c) {
+		boolean negate = from < to && pattern.charAt(from) == '!';
+		if (negate) {
+			from++;
+		}
+		boolean found = false;
+		for (int i = from; i < to && !found; i++) {
+			char start = pattern.charAt(i);
+			if (i + 2 < to && pattern.charAt(i + 1) == '-') {
+				found = c >= start && c <= pattern.charAt(i + 2);
+				i += 2;
+			} else {
+				found = c == start;
+			}
+		}
+		return found != negate;
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+/**
+ * Listener that gets messages a batch at a time rather than one call per
+ * message.
+ * 
+ * A batch holds every message from one packet with bundles flattened out, or
+ * every message from a run of packets when a dispatch stage delivers them
+ * together. Only the first count entries of the array are used and the array
+ * is reused once the call returns, so copy out anything that needs keeping.
+ */
+public interface OscBatchListener {
+	void handleMessages(OscMessage[] messages, int count);
+}
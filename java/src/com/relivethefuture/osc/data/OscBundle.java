@@ -40,17 +40,21 @@ import java.util.Iterator;
 public class OscBundle implements OscPacket {
 	/**
 	 * Time from 1900 to 1970 in seconds
+	 * 
+	 * @deprecated use OscTimeTag.SECONDS_TO_EPOCH
 	 */
-	public static final BigInteger SECONDS_TO_EPOCH = new BigInteger(
-			"2208988800");
+	@Deprecated
+	public static final BigInteger SECONDS_TO_EPOCH = BigInteger
+			.valueOf(OscTimeTag.SECONDS_TO_EPOCH);
 	public static final Date IMMEDIATELY = new Date(0);
 	public static final String BUNDLE_HEADER = "#bundle";
 
-	protected Date timestamp;
+	/**
+	 * Raw NTP time tag, see OscTimeTag
+	 */
+	protected long timeTag;
 	protected ArrayList<OscPacket> packets;
 
-	private int size;
-
 	/**
 	 * Create a new empty OSCBundle with a timestamp of immediately. You can add
 	 * packets to the bundle with addPacket()
@@ -63,39 +67,74 @@ public class OscBundle implements OscPacket {
 		this(null, timestamp);
 	}
 
+	public OscBundle(OscTimeTag timeTag) {
+		this(null, IMMEDIATELY);
+		this.timeTag = timeTag.getNtpTime();
+	}
+
 	public OscBundle(ArrayList<OscPacket> packets) {
 		this(packets, IMMEDIATELY);
 	}
 
 	public OscBundle(ArrayList<OscPacket> packets, Date timestamp) {
-		// Default size is 16 bytes.
-		// 8 bytes #bundle header and 8 bytes timestamp
-		size = 16;
+		this.packets = new ArrayList<OscPacket>();
 		if (packets != null) {
 			for (Iterator<OscPacket> i = packets.iterator(); i.hasNext();) {
 				OscPacket oscPacket = (OscPacket) i.next();
 				addPacket(oscPacket);
 			}
-		} else {
-			this.packets = new ArrayList<OscPacket>();
 		}
 
-		this.timestamp = timestamp;
+		setTimestamp(timestamp);
 	}
 
+	/**
+	 * The time tag as a Date, which only has millisecond precision. Use
+	 * getTimeTag() to get the exact value without creating an object.
+	 */
 	public Date getTimestamp() {
-		return timestamp;
+		if (OscTimeTag.isImmediate(timeTag)) {
+			return IMMEDIATELY;
+		}
+		return new Date(OscTimeTag.ntpToMillis(timeTag));
 	}
 
 	public void setTimestamp(Date timestamp) {
-		this.timestamp = timestamp;
+		if ((timestamp == null) || (timestamp == IMMEDIATELY)) {
+			timeTag = OscTimeTag.IMMEDIATE;
+		} else {
+			timeTag = OscTimeTag.millisToNtp(timestamp.getTime());
+		}
+	}
+
+	/**
+	 * @return the raw 64 bit NTP time tag
+	 */
+	public long getTimeTag() {
+		return timeTag;
+	}
+
+	public void setTimeTag(long ntpTime) {
+		timeTag = ntpTime;
+	}
+
+	public OscTimeTag getOscTimeTag() {
+		if (OscTimeTag.isImmediate(timeTag)) {
+			return OscTimeTag.IMMEDIATELY;
+		}
+		return new OscTimeTag(timeTag);
+	}
+
+	public void setTimeTag(OscTimeTag tag) {
+		timeTag = tag.getNtpTime();
+	}
+
+	public boolean isImmediate() {
+		return OscTimeTag.isImmediate(timeTag);
 	}
 
 	public void addPacket(OscPacket packet) {
 		packets.add(packet);
-		
-		//since bundles (and TCP) connections also send their size, we have to make room for each one!
-		size += packet.getSize() + 4;
 	}
 
 	public ArrayList<OscPacket> getPackets() {
@@ -107,20 +146,27 @@ public class OscBundle implements OscPacket {
 	}
 
 	/**
-	 * For a bundle to be valid it must have a timestamp and have some packets
-	 * inside. Otherwise there is no point sending it.
+	 * For a bundle to be valid it must have some packets inside. Otherwise there is no point sending it.
 	 */
 	public boolean isValid() {
-		return timestamp != null && packets.size() > 0;
+		return packets.size() > 0;
 	}
 
+	/**
+	 * Worked out from the packets each time so that changes made to them after
+	 * they were added are counted. Invalid packets are left out as they are
+	 * not encoded.
+	 */
 	public int getSize() {
-		
-		//since bundles (and TCP) connections also send their size, we have to make room for each one!
-		//got through all messages in bundle and add 4 bytes each
-		//if (packet.isBundle()) {
-		//	size += ((OscBundle)packet).getPackets().size() * 4;
-		//}
+		// 8 bytes #bundle header and 8 bytes timestamp
+		int size = 16;
+		for (int i = 0; i < packets.size(); i++) {
+			OscPacket packet = packets.get(i);
+			if (packet.isValid()) {
+				// Each packet is preceded by its size
+				size += packet.getSize() + 4;
+			}
+		}
 		return size;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lazy view of an OSC bundle sitting in a receive buffer.
+ *
+ * Wrapping a bundle only walks the element size prefixes to find where each
+ * element starts, checking that they all fit inside the bundle. Elements are
+ * decoded when they are asked for, and their addresses can be tested without
+ * decoding anything so that whole sub-bundles can be skipped.
+ *
+ * @see OscViewListener
+ */
+public class OscBundleView implements OscPacketView {
+	private static final int HEADER_SIZE = 16;
+
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+	private boolean valid;
+	private long timeTag;
+
+	private int[] offsets = new int[8];
+	private int[] lengths = new int[8];
+	private int count;
+
+	public OscBundleView() {
+		super();
+	}
+
+	public OscBundleView(ByteBuffer buffer, int offset, int length) {
+		wrap(buffer, offset, length);
+	}
+
+	/**
+	 * Point this view at the bundle held in the given region of a buffer.
+	 *
+	 * @return true if the region holds a bundle header and every element size
+	 *         fits inside it
+	 */
+	public boolean wrap(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		start = offset;
+		end = offset + length;
+		count = 0;
+		valid = isBundle(buffer, offset, end);
+		if (!valid) {
+			return false;
+		}
+
+		timeTag = buffer.getLong(start + 8);
+
+		int position = start + HEADER_SIZE;
+		while (position < end) {
+			if (position + 4 > end) {
+				return invalid();
+			}
+			int size = buffer.getInt(position);
+			if (size < 0 || position + 4 + size > end) {
+				return invalid();
+			}
+			if (count == offsets.length) {
+				grow();
+			}
+			offsets[count] = position + 4;
+			lengths[count] = size;
+			count++;
+			position += 4 + size;
+		}
+		return true;
+	}
+
+	/**
+	 * Does the region start with the #bundle header?
+	 */
+	public static boolean isBundle(ByteBuffer buffer, int offset, int end) {
+		String header = OscBundle.BUNDLE_HEADER;
+		if (end - offset < HEADER_SIZE) {
+			return false;
+		}
+		for (int i = 0; i < header.length(); i++) {
+			if (buffer.get(offset + i) != header.charAt(i)) {
+				return false;
+			}
+		}
+		return buffer.get(offset + header.length()) == 0;
+	}
+
+	/**
+	 * Copy the bundle into a new buffer so the copy stays valid once the
+	 * receive buffer has been reused.
+	 */
+	public OscBundleView copy() {
+		ByteBuffer data = ByteBuffer.allocate(end - start);
+		for (int i = start; i < end; i++) {
+			data.put(buffer.get(i));
+		}
+		return new OscBundleView(data, 0, end - start);
+	}
+
+	public boolean isBundle() {
+		return true;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public int getSize() {
+		return end - start;
+	}
+
+	/**
+	 * @return the raw NTP time tag, see OscTimeTag
+	 */
+	public long getTimeTag() {
+		return timeTag;
+	}
+
+	public boolean isImmediate() {
+		return OscTimeTag.isImmediate(timeTag);
+	}
+
+	public int getElementCount() {
+		return count;
+	}
+
+	public boolean isElementBundle(int index) {
+		checkIndex(index);
+		return isBundle(buffer, offsets[index], offsets[index] + lengths[index]);
+	}
+
+	/**
+	 * Test the address of a message element against a prefix without
+	 * decoding it. Always false for bundle elements.
+	 */
+	public boolean elementAddressStartsWith(int index, String prefix) {
+		checkIndex(index);
+		int offset = offsets[index];
+		int length = prefix.length();
+		if (length > lengths[index]) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if ((buffer.get(offset + i) & 0xFF) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Does any message in this bundle, or in the bundles inside it, have an
+	 * address starting with the prefix? Only the element sizes and addresses
+	 * are looked at.
+	 */
+	public boolean hasAddressPrefix(String prefix) {
+		for (int i = 0; i < count; i++) {
+			if (isElementBundle(i)) {
+				if (getBundle(i).hasAddressPrefix(prefix)) {
+					return true;
+				}
+			} else if (elementAddressStartsWith(i, prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Wrap a new view around a message element.
+	 */
+	public OscMessageView getMessage(int index) {
+		return getMessage(index, new OscMessageView());
+	}
+
+	/**
+	 * Wrap an existing view around a message element so one view can be
+	 * reused for every element.
+	 */
+	public OscMessageView getMessage(int index, OscMessageView view) {
+		checkIndex(index);
+		view.wrap(buffer, offsets[index], lengths[index]);
+		return view;
+	}
+
+	public OscBundleView getBundle(int index) {
+		checkIndex(index);
+		return new OscBundleView(buffer, offsets[index], lengths[index]);
+	}
+
+	/**
+	 * Decode the whole bundle into a new OscBundle from the given factory.
+	 */
+	public OscBundle toBundle(OscPacketFactory factory) {
+		OscBundle bundle = factory.createBundle();
+		bundle.setTimeTag(timeTag);
+		OscMessageView view = new OscMessageView();
+		for (int i = 0; i < count; i++) {
+			if (isElementBundle(i)) {
+				OscBundleView inner = getBundle(i);
+				if (inner.isValid()) {
+					bundle.addPacket(inner.toBundle(factory));
+				}
+			} else if (getMessage(i, view).isValid()) {
+				bundle.addPacket(view.toMessage(factory));
+			}
+		}
+		return bundle;
+	}
+
+	public String toString() {
+		return "bundle of " + count + " (view)";
+	}
+
+	/**
+	 * Forget any elements found before the bad one, so an invalid view has
+	 * none.
+	 */
+	private boolean invalid() {
+		valid = false;
+		count = 0;
+		return false;
+	}
+
+	private void grow() {
+		int[] grownOffsets = new int[offsets.length * 2];
+		int[] grownLengths = new int[lengths.length * 2];
+		System.arraycopy(offsets, 0, grownOffsets, 0, count);
+		System.arraycopy(lengths, 0, grownLengths, 0, count);
+		offsets = grownOffsets;
+		lengths = grownLengths;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("Element " + index + " of "
+					+ count);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes incoming messages to the listeners registered for their address.
+ * 
+ * Register the dispatcher as an OscListener on the server and then add
+ * listeners to it for the addresses they are interested in :
+ * 
+ * <code>dispatcher.addMessageListener("/mixer/1/gain", gainListener);</code>
+ * 
+ * Addresses are kept in a tree with one level per address segment, so finding
+ * the listeners for a message only looks at the branches its address leads
+ * to rather than at every listener.
+ * 
+ * Both sides can use the pattern syntax in OscAddressPattern. A listener
+ * registered for "/mixer/&#42;/gain" gets the gain messages for every
+ * channel, and an incoming "/mixer/{1,2}/gain" goes to the listeners of both
+ * channels. Messages inside bundles are dispatched one by one.
+ * 
+ * The listeners found for an address are cached, so an address that has been
+ * seen before costs one map lookup. The cache is thrown away whenever a
+ * listener is added or removed, and when it fills up.
+ * 
+ * Listeners can be added and removed from any thread while messages are being
+ * dispatched.
+ */
+public class OscDispatcher implements OscListener {
+	/**
+	 * Default number of addresses to cache the listeners for.
+	 */
+	public static final int MATCH_CACHE_SIZE = 1024;
+
+	private static final OscMessageListener[] NO_LISTENERS = new OscMessageListener[0];
+	private static final Node[] NO_NODES = new Node[0];
+
+	private final Node root = new Node(null);
+
+	private final int matchCacheSize;
+	private volatile ConcurrentHashMap<OscSymbol, OscMessageListener[]> matches;
+
+	public OscDispatcher() {
+		this(MATCH_CACHE_SIZE);
+	}
+
+	/**
+	 * @param matchCacheSize
+	 *            number of addresses to cache the listeners for, 0 to turn
+	 *            off caching
+	 */
+	public OscDispatcher(int matchCacheSize) {
+		this.matchCacheSize = matchCacheSize;
+		matches = new ConcurrentHashMap<OscSymbol, OscMessageListener[]>();
+	}
+
+	/**
+	 * Add a listener for messages to an address or address pattern.
+	 */
+	public synchronized void addMessageListener(String address,
+			OscMessageListener listener) {
+		OscSymbol symbol = new OscSymbol(address);
+		Node node = root;
+		for (int i = 0; i < symbol.getSegmentCount(); i++) {
+			node = node.getOrAddChild(symbol.getSegment(i));
+		}
+		node.addListener(listener);
+		clearMatches();
+	}
+
+	public synchronized void removeMessageListener(String address,
+			OscMessageListener listener) {
+		OscSymbol symbol = new OscSymbol(address);
+		Node node = root;
+		for (int i = 0; i < symbol.getSegmentCount() && node != null; i++) {
+			node = node.getChild(symbol.getSegment(i));
+		}
+		if (node != null) {
+			node.removeListener(listener);
+			clearMatches();
+		}
+	}
+
+	/**
+	 * Find the listeners for an address, from the cache if it has been seen
+	 * since the listeners last changed. The array must not be changed.
+	 */
+	public OscMessageListener[] getListeners(OscSymbol address) {
+		// Read the cache before the tree, a cache made after a change to the
+		// tree can then only hold results from the changed tree
+		ConcurrentHashMap<OscSymbol, OscMessageListener[]> cache = matches;
+		OscMessageListener[] listeners = cache.get(address);
+		if (listeners != null) {
+			return listeners;
+		}
+
+		ArrayList<OscMessageListener> found = new ArrayList<OscMessageListener>();
+		collect(root, address, 0, found);
+		listeners = found.isEmpty() ? NO_LISTENERS : found
+				.toArray(new OscMessageListener[found.size()]);
+
+		if (matchCacheSize > 0) {
+			if (cache.size() >= matchCacheSize) {
+				// Clear rather than replace so that a cache started by a
+				// listener change is never swapped for this one
+				cache.clear();
+			}
+			cache.put(address, listeners);
+		}
+		return listeners;
+	}
+
+	/**
+	 * Start a new cache after the tree has changed.
+	 */
+	private void clearMatches() {
+		matches = new ConcurrentHashMap<OscSymbol, OscMessageListener[]>();
+	}
+
+	public void handleMessage(OscMessage msg) {
+		OscMessageListener[] listeners = getListeners(msg.getAddressSymbol());
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].handleMessage(msg);
+		}
+	}
+
+	public void handleBundle(OscBundle bundle) {
+		ArrayList<OscPacket> packets = bundle.getPackets();
+		for (int i = 0; i < packets.size(); i++) {
+			OscPacket packet = packets.get(i);
+			if (packet.isBundle()) {
+				handleBundle((OscBundle) packet);
+			} else {
+				handleMessage((OscMessage) packet);
+			}
+		}
+	}
+
+	private void collect(Node node, OscSymbol address, int depth,
+			ArrayList<OscMessageListener> found) {
+		if (depth == address.getSegmentCount()) {
+			OscMessageListener[] listeners = node.listeners;
+			for (int i = 0; i < listeners.length; i++) {
+				found.add(listeners[i]);
+			}
+			return;
+		}
+
+		String segment = address.getSegment(depth);
+		Node[] patterns = node.patternChildren;
+		if (OscAddressPattern.isPattern(segment)) {
+			// Match the incoming pattern against the plain children, a
+			// registered pattern only matches if it is exactly the same
+			for (Node child : node.children.values()) {
+				if (OscAddressPattern.matchesSegment(segment, child.segment)) {
+					collect(child, address, depth + 1, found);
+				}
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].segment.equals(segment)) {
+					collect(patterns[i], address, depth + 1, found);
+				}
+			}
+		} else {
+			Node child = node.children.get(segment);
+			if (child != null) {
+				collect(child, address, depth + 1, found);
+			}
+			for (int i = 0; i < patterns.length; i++) {
+				if (OscAddressPattern.matchesSegment(patterns[i].segment,
+						segment)) {
+					collect(patterns[i], address, depth + 1, found);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One segment of the address tree. Plain segments are looked up by name,
+	 * pattern segments are tested one at a time. Arrays are replaced rather
+	 * than changed so they can be read without locking.
+	 */
+	private static class Node {
+		final String segment;
+		final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+		volatile Node[] patternChildren = NO_NODES;
+		volatile OscMessageListener[] listeners = NO_LISTENERS;
+
+		Node(String segment) {
+			this.segment = segment;
+		}
+
+		Node getChild(String name) {
+			if (!OscAddressPattern.isPattern(name)) {
+				return children.get(name);
+			}
+			Node[] patterns = patternChildren;
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].segment.equals(name)) {
+					return patterns[i];
+				}
+			}
+			return null;
+		}
+
+		Node getOrAddChild(String name) {
+			Node child = getChild(name);
+			if (child != null) {
+				return child;
+			}
+			child = new Node(name);
+			if (OscAddressPattern.isPattern(name)) {
+				Node[] patterns = patternChildren;
+				Node[] grown = new Node[patterns.length + 1];
+				System.arraycopy(patterns, 0, grown, 0, patterns.length);
+				grown[patterns.length] = child;
+				patternChildren = grown;
+			} else {
+				children.put(name, child);
+			}
+			return child;
+		}
+
+		void addListener(OscMessageListener listener) {
+			OscMessageListener[] current = listeners;
+			OscMessageListener[] grown = new OscMessageListener[current.length + 1];
+			System.arraycopy(current, 0, grown, 0, current.length);
+			grown[current.length] = listener;
+			listeners = grown;
+		}
+
+		void removeListener(OscMessageListener listener) {
+			OscMessageListener[] current = listeners;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i] == listener) {
+					OscMessageListener[] shrunk = new OscMessageListener[current.length - 1];
+					System.arraycopy(current, 0, shrunk, 0, i);
+					System.arraycopy(current, i + 1, shrunk, i,
+							shrunk.length - i);
+					listeners = shrunk;
+					return;
+				}
+			}
+		}
+	}
+}
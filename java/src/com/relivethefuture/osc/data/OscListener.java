@@ -21,7 +21,7 @@
  */
 package com.relivethefuture.osc.data;
 
-public interface OscListener {
+public interface OscListener extends OscMessageListener {
 	void handleMessage(OscMessage msg);
 
 	void handleBundle(OscBundle bundle);
@@ -29,27 +29,69 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Arguments are normally kept as objects in an ArrayList. A message created
+ * with primitive storage keeps them in arrays indexed by argument number
+ * instead: numbers go into int, long, float or double slots and only strings,
+ * blobs and arrays are stored as objects. Use the addInt(), addFloat(), etc.
+ * methods and the typed getters to avoid boxing.
+ * 
  * @author Martin Wood-Mitrovski
  */
 public class OscMessage implements OscPacket {
 	final Logger logger = LoggerFactory.getLogger(OscMessage.class);
 
+	private static final int INITIAL_CAPACITY = 8;
+
 	protected String address;
 	protected ArrayList<Object> arguments;
+	/**
+	 * Built from the tag bytes when asked for, null when out of date
+	 */
 	protected String typeTags;
 
 	private int datasize = 0;
+	private int addressSize = 0;
+	private OscSymbol addressSymbol;
+
+	// Type tag string, starting with the comma
+	private byte[] tags;
+	private int tagCount;
+
+	// The type of each argument, '[' for an array
+	private byte[] argumentTypes;
+	private int argumentCount;
+
+	private boolean primitiveStorage;
+	private int[] ints;
+	private long[] longs;
+	private float[] floats;
+	private double[] doubles;
+	private Object[] objects;
 
 	public OscMessage() {
-		super();
-		arguments = new ArrayList<Object>();
-		typeTags = ",";
+		this(null, false);
 	}
 
 	public OscMessage(String newAddress) {
-		address = newAddress;
-		arguments = new ArrayList<Object>();
-		typeTags = ",";
+		this(newAddress, false);
+	}
+
+	/**
+	 * @param primitiveStorage
+	 *            keep the arguments in primitive arrays rather than an
+	 *            ArrayList of objects.
+	 */
+	public OscMessage(String newAddress, boolean primitiveStorage) {
+		super();
+		setAddress(newAddress);
+		this.primitiveStorage = primitiveStorage;
+		if (!primitiveStorage) {
+			arguments = new ArrayList<Object>();
+		}
+		tags = new byte[INITIAL_CAPACITY];
+		tags[0] = ',';
+		tagCount = 1;
+		argumentTypes = new byte[INITIAL_CAPACITY];
 	}
 
 	public String getAddress() {
@@ -58,8 +100,43 @@ public class OscMessage implements OscPacket {
 
 	public void setAddress(String anAddress) {
 		address = anAddress;
+		addressSymbol = null;
+		addressSize = (anAddress == null) ? 0 : getStringSize(anAddress);
 	}
 
+	/**
+	 * Set the address from a canonical symbol, as the decoder does.
+	 */
+	public void setAddressSymbol(OscSymbol symbol) {
+		address = symbol.getAddress();
+		addressSymbol = symbol;
+		addressSize = symbol.getEncodedSize();
+	}
+
+	/**
+	 * The address as a symbol, made on demand if the address was set as a
+	 * String.
+	 */
+	public OscSymbol getAddressSymbol() {
+		if (addressSymbol == null && address != null) {
+			addressSymbol = new OscSymbol(address);
+		}
+		return addressSymbol;
+	}
+
+	public boolean hasPrimitiveStorage() {
+		return primitiveStorage;
+	}
+
+	/**
+	 * Add an argument of any of the types the typed adders take, picking the
+	 * adder from its class. Object arrays get their type tags from their
+	 * elements.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the argument, or an element of an Object array, has no
+	 *             OSC type
+	 */
 	public void addArgument(Object argument) {
 		if (argument instanceof String) {
 			addArgument((String) argument);
@@ -69,61 +146,146 @@ public class OscMessage implements OscPacket {
 			addArgument((Integer) argument);
 		} else if (argument instanceof BigInteger) {
 			addArgument((BigInteger) argument);
+		} else if (argument instanceof Double) {
+			addArgument((Double) argument);
 		} else if (argument instanceof byte[]) {
 			addArgument((byte[]) argument);
 		} else if (argument instanceof Boolean) {
 			addArgument((Boolean) argument);
+		} else if (argument instanceof Character) {
+			addArgument(((Character) argument).charValue());
+		} else if (argument instanceof float[]) {
+			addArgument((float[]) argument);
+		} else if (argument instanceof int[]) {
+			addArgument((int[]) argument);
+		} else if (argument instanceof double[]) {
+			addArgument((double[]) argument);
+		} else if (argument instanceof Object[]) {
+			Object[] array = (Object[]) argument;
+			addArgument(array, getArrayTypes(array));
+		} else {
+			throw new IllegalArgumentException("No OSC type for "
+					+ (argument == null ? "null" : argument.getClass()
+							.getName()));
 		}
 	}
 
 	public void addArgument(Object[] array, String objectTypes) {
-		typeTags += '[' + objectTypes + ']';
-		arguments.add(array);
-		// TODO : Compute datasize for array contents
+		addTag('[');
+		for (int i = 0; i < objectTypes.length(); i++) {
+			addTag(objectTypes.charAt(i));
+		}
+		addTag(']');
+		addObject('[', array);
+		for (int i = 0; i < array.length; i++) {
+			datasize += getArgumentSize(array[i]);
+		}
+	}
+
+	/**
+	 * Add an array of floats, sent as [fff...]. The array is not copied so
+	 * don't change it until the message has been sent.
+	 */
+	public void addArgument(float[] array) {
+		addArrayTags('f', array.length);
+		addObject('[', array);
+		datasize += array.length * 4;
+	}
+
+	/**
+	 * Add an array of ints, sent as [iii...]. The array is not copied.
+	 */
+	public void addArgument(int[] array) {
+		addArrayTags('i', array.length);
+		addObject('[', array);
+		datasize += array.length * 4;
+	}
+
+	/**
+	 * Add an array of doubles, sent as [ddd...]. The array is not copied.
+	 */
+	public void addArgument(double[] array) {
+		addArrayTags('d', array.length);
+		addObject('[', array);
+		datasize += array.length * 8;
 	}
 
 	public void addArgument(String param) {
-		typeTags += 's';
-		arguments.add(param);
+		addTag('s');
+		addObject('s', param);
 		int stringSize = getStringSize(param);
 		datasize += stringSize;
-		logger.debug("Added string : " + param + " : " + stringSize + " : "
-				+ datasize);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Added string : " + param + " : " + stringSize + " : "
+					+ datasize);
+		}
 	}
 
 	public void addArgument(Float f) {
-		typeTags += 'f';
-		arguments.add(f);
+		if (primitiveStorage) {
+			addFloat(f);
+			return;
+		}
+		addTag('f');
+		addObject('f', f);
 		datasize += 4;
 	}
 
 	public void addArgument(Integer i) {
-		typeTags += 'i';
-		arguments.add(i);
+		if (primitiveStorage) {
+			addInt(i);
+			return;
+		}
+		addTag('i');
+		addObject('i', i);
 		datasize += 4;
-		logger.debug("Added Int " + i + " : " + datasize);
+		if (logger.isDebugEnabled()) {
+			logger.debug("Added Int " + i + " : " + datasize);
+		}
 	}
 
 	public void addArgument(BigInteger b) {
-		typeTags += 'h';
-		arguments.add(b);
+		if (primitiveStorage) {
+			addLong(b.longValue());
+			return;
+		}
+		addTag('h');
+		addObject('h', b);
+		datasize += 8;
+	}
+
+	public void addArgument(Double d) {
+		if (primitiveStorage) {
+			addDouble(d);
+			return;
+		}
+		addTag('d');
+		addObject('d', d);
 		datasize += 8;
 	}
 
 	public void addArgument(char c) {
-		typeTags += 'c';
-		arguments.add(c);
+		addTag('c');
+		if (primitiveStorage) {
+			ensureCapacity(argumentCount + 1);
+			ints = slot(ints);
+			ints[argumentCount] = c;
+			argumentTypes[argumentCount++] = 'c';
+		} else {
+			addObject('c', c);
+		}
 		datasize += 4;
 	}
 
 	public void addArgument(Boolean b) {
-		typeTags += b ? 'T' : 'F';
-		arguments.add(b);
+		char tag = b ? 'T' : 'F';
+		addTag(tag);
+		addObject(tag, b);
 	}
 
 	public void addArgument(byte[] bytes) {
-		typeTags += 'b';
-		arguments.add(bytes);
+		addTag('b');
+		addObject('b', bytes);
 		int dataLength = bytes.length;
 		// An int32 size count,
 		datasize += 4;
@@ -135,19 +297,224 @@ public class OscMessage implements OscPacket {
 		datasize += (mod > 0) ? 4 - mod : 0;
 	}
 
+	/**
+	 * Add an int32 argument without boxing it when using primitive storage.
+	 */
+	public void addInt(int i) {
+		if (!primitiveStorage) {
+			addArgument(Integer.valueOf(i));
+			return;
+		}
+		addTag('i');
+		ensureCapacity(argumentCount + 1);
+		ints = slot(ints);
+		ints[argumentCount] = i;
+		argumentTypes[argumentCount++] = 'i';
+		datasize += 4;
+	}
+
+	public void addFloat(float f) {
+		if (!primitiveStorage) {
+			addArgument(Float.valueOf(f));
+			return;
+		}
+		addTag('f');
+		ensureCapacity(argumentCount + 1);
+		floats = slot(floats);
+		floats[argumentCount] = f;
+		argumentTypes[argumentCount++] = 'f';
+		datasize += 4;
+	}
+
+	/**
+	 * Add a 64 bit int argument. Without primitive storage this is added as a
+	 * BigInteger, as the decoder always has.
+	 */
+	public void addLong(long l) {
+		if (!primitiveStorage) {
+			addArgument(BigInteger.valueOf(l));
+			return;
+		}
+		addTag('h');
+		ensureCapacity(argumentCount + 1);
+		longs = slot(longs);
+		longs[argumentCount] = l;
+		argumentTypes[argumentCount++] = 'h';
+		datasize += 8;
+	}
+
+	public void addDouble(double d) {
+		if (!primitiveStorage) {
+			addArgument(Double.valueOf(d));
+			return;
+		}
+		addTag('d');
+		ensureCapacity(argumentCount + 1);
+		doubles = slot(doubles);
+		doubles[argumentCount] = d;
+		argumentTypes[argumentCount++] = 'd';
+		datasize += 8;
+	}
+
+	/**
+	 * Number of arguments, an array counts as one argument.
+	 */
+	public int getArgumentCount() {
+		return argumentCount;
+	}
+
+	/**
+	 * The type tag of an argument, '[' if it is an array.
+	 */
+	public char getArgumentType(int index) {
+		checkIndex(index);
+		return (char) argumentTypes[index];
+	}
+
+	public int getInt(int index) {
+		checkType(index, 'i');
+		if (primitiveStorage) {
+			return ints[index];
+		}
+		return (Integer) arguments.get(index);
+	}
+
+	public float getFloat(int index) {
+		checkType(index, 'f');
+		if (primitiveStorage) {
+			return floats[index];
+		}
+		return (Float) arguments.get(index);
+	}
+
+	public long getLong(int index) {
+		checkType(index, 'h');
+		if (primitiveStorage) {
+			return longs[index];
+		}
+		return ((BigInteger) arguments.get(index)).longValue();
+	}
+
+	public double getDouble(int index) {
+		checkType(index, 'd');
+		if (primitiveStorage) {
+			return doubles[index];
+		}
+		return (Double) arguments.get(index);
+	}
+
+	public char getChar(int index) {
+		checkType(index, 'c');
+		if (primitiveStorage) {
+			return (char) ints[index];
+		}
+		return (Character) arguments.get(index);
+	}
+
+	public boolean getBoolean(int index) {
+		char type = getArgumentType(index);
+		if (type != 'T' && type != 'F') {
+			throw wrongType(index, 'T');
+		}
+		return type == 'T';
+	}
+
+	/**
+	 * Get an array argument that was added, or decoded, as a float[].
+	 */
+	public float[] getFloatArray(int index) {
+		Object array = getArray(index);
+		if (!(array instanceof float[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not a float array");
+		}
+		return (float[]) array;
+	}
+
+	public int[] getIntArray(int index) {
+		Object array = getArray(index);
+		if (!(array instanceof int[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not an int array");
+		}
+		return (int[]) array;
+	}
+
+	public double[] getDoubleArray(int index) {
+		Object array = getArray(index);
+		if (!(array instanceof double[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not a double array");
+		}
+		return (double[]) array;
+	}
+
+	/**
+	 * Get a string, blob or array argument.
+	 */
+	public Object getObject(int index) {
+		checkIndex(index);
+		if (primitiveStorage) {
+			return (objects == null) ? null : objects[index];
+		}
+		return arguments.get(index);
+	}
+
+	/**
+	 * With primitive storage this boxes the arguments into a new list, so
+	 * prefer the typed getters.
+	 */
 	public ArrayList<Object> getArguments() {
-		return arguments;
+		if (!primitiveStorage) {
+			return arguments;
+		}
+		ArrayList<Object> boxed = new ArrayList<Object>(argumentCount);
+		for (int i = 0; i < argumentCount; i++) {
+			switch (argumentTypes[i]) {
+			case 'i':
+				boxed.add(ints[i]);
+				break;
+			case 'f':
+				boxed.add(floats[i]);
+				break;
+			case 'h':
+				boxed.add(BigInteger.valueOf(longs[i]));
+				break;
+			case 'd':
+				boxed.add(doubles[i]);
+				break;
+			case 'c':
+				boxed.add((char) ints[i]);
+				break;
+			case 'T':
+				boxed.add(Boolean.TRUE);
+				break;
+			case 'F':
+				boxed.add(Boolean.FALSE);
+				break;
+			default:
+				boxed.add(objects[i]);
+			}
+		}
+		return boxed;
 	}
 
 	public String getTypeTags() {
+		if (typeTags == null) {
+			char[] chars = new char[tagCount];
+			for (int i = 0; i < tagCount; i++) {
+				chars[i] = (char) tags[i];
+			}
+			typeTags = new String(chars);
+		}
 		return typeTags;
 	}
 
 	public String toString() {
 		String s = address;
-		if (arguments.size() > 0) {
+		if (argumentCount > 0) {
 			s += " | ";
-			for (Iterator<Object> i = arguments.iterator(); i.hasNext();) {
+			for (Iterator<Object> i = getArguments().iterator(); i.hasNext();) {
 				Object arg = (Object) i.next();
 				s += arg.toString() + " , ";
 			}
@@ -164,23 +531,201 @@ public class OscMessage implements OscPacket {
 		return address.length() > 0;
 	}
 
+	/**
+	 * Number of bytes an argument inside an array takes up once encoded.
+	 */
+	private static String getArrayTypes(Object[] array) {
+		char[] types = new char[array.length];
+		for (int i = 0; i < array.length; i++) {
+			types[i] = getTypeTag(array[i]);
+		}
+		return new String(types);
+	}
+
+	/**
+	 * Type tag of an element of an Object array.
+	 */
+	private static char getTypeTag(Object element) {
+		if (element instanceof String) {
+			return 's';
+		}
+		if (element instanceof Float) {
+			return 'f';
+		}
+		if (element instanceof Integer) {
+			return 'i';
+		}
+		if (element instanceof BigInteger) {
+			return 'h';
+		}
+		if (element instanceof Double) {
+			return 'd';
+		}
+		if (element instanceof Character) {
+			return 'c';
+		}
+		if (element instanceof byte[]) {
+			return 'b';
+		}
+		if (element instanceof Boolean) {
+			return ((Boolean) element).booleanValue() ? 'T' : 'F';
+		}
+		throw new IllegalArgumentException("No OSC type for array element "
+				+ (element == null ? "null" : element.getClass().getName()));
+	}
+
+	private int getArgumentSize(Object argument) {
+		if (argument instanceof String) {
+			return getStringSize((String) argument);
+		}
+		if (argument instanceof BigInteger || argument instanceof Double) {
+			return 8;
+		}
+		if (argument instanceof byte[]) {
+			return 4 + ((((byte[]) argument).length + 3) & ~3);
+		}
+		if (argument instanceof Float || argument instanceof Integer
+				|| argument instanceof Character) {
+			return 4;
+		}
+		// Booleans have no data
+		return 0;
+	}
+
 	private int getStringSize(String str) {
-		// Add 1 because a string must be zero terminated
-		int len = str.length() + 1;
-		// logger.debug("GetStringSize : " + str + " : " + len);
-		int mod = len % 4;
-		// logger.debug("MOD " + mod);
-		int pad = (mod > 0) ? 4 - mod : 0;
-		// logger.debug("PAD " + pad);
-		return len + pad;
+		// Encoded length, zero terminated and padded
+		return OscStringCodec.encodedSize(str);
 	}
 
 	public int getSize() {
-		int addr = getStringSize(address);
-		int types = getStringSize(typeTags);
+		// Type tags plus their zero terminator, padded to 4 bytes
+		int types = (tagCount + 4) & ~3;
 		// logger.debug("Get Size : " + addr + " : " + types + " : " +
 		// datasize);
-		return addr + types + datasize;
+		return addressSize + types + datasize;
+	}
+
+	private void addTag(char tag) {
+		if (tagCount == tags.length) {
+			byte[] grown = new byte[tags.length * 2];
+			System.arraycopy(tags, 0, grown, 0, tagCount);
+			tags = grown;
+		}
+		tags[tagCount++] = (byte) tag;
+		typeTags = null;
+	}
+
+	/**
+	 * Add the tags for an array where every element has the same type.
+	 */
+	private void addArrayTags(char type, int length) {
+		int needed = tagCount + length + 2;
+		if (needed > tags.length) {
+			byte[] grown = new byte[Math.max(needed, tags.length * 2)];
+			System.arraycopy(tags, 0, grown, 0, tagCount);
+			tags = grown;
+		}
+		tags[tagCount++] = '[';
+		for (int i = 0; i < length; i++) {
+			tags[tagCount++] = (byte) type;
+		}
+		tags[tagCount++] = ']';
+		typeTags = null;
+	}
+
+	private Object getArray(int index) {
+		checkType(index, '[');
+		return getObject(index);
+	}
+
+	private void addObject(char type, Object argument) {
+		ensureCapacity(argumentCount + 1);
+		if (primitiveStorage) {
+			objects = slot(objects);
+			objects[argumentCount] = argument;
+		} else {
+			arguments.add(argument);
+		}
+		argumentTypes[argumentCount++] = (byte) type;
+	}
+
+	/**
+	 * Grow the parallel argument arrays so that index argumentCount can be
+	 * written.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= argumentTypes.length) {
+			return;
+		}
+		int size = argumentTypes.length * 2;
+		byte[] grownTypes = new byte[size];
+		System.arraycopy(argumentTypes, 0, grownTypes, 0, argumentCount);
+		argumentTypes = grownTypes;
+		if (ints != null) {
+			int[] grown = new int[size];
+			System.arraycopy(ints, 0, grown, 0, argumentCount);
+			ints = grown;
+		}
+		if (longs != null) {
+			long[] grown = new long[size];
+			System.arraycopy(longs, 0, grown, 0, argumentCount);
+			longs = grown;
+		}
+		if (floats != null) {
+			float[] grown = new float[size];
+			System.arraycopy(floats, 0, grown, 0, argumentCount);
+			floats = grown;
+		}
+		if (doubles != null) {
+			double[] grown = new double[size];
+			System.arraycopy(doubles, 0, grown, 0, argumentCount);
+			doubles = grown;
+		}
+		if (objects != null) {
+			Object[] grown = new Object[size];
+			System.arraycopy(objects, 0, grown, 0, argumentCount);
+			objects = grown;
+		}
 	}
 
-}
\ No newline at end of file
+	// The slot helpers create the array for a type the first time it is
+	// used, once ensureCapacity() has made room for the argument.
+
+	private int[] slot(int[] values) {
+		return (values == null) ? new int[argumentTypes.length] : values;
+	}
+
+	private long[] slot(long[] values) {
+		return (values == null) ? new long[argumentTypes.length] : values;
+	}
+
+	private float[] slot(float[] values) {
+		return (values == null) ? new float[argumentTypes.length] : values;
+	}
+
+	private double[] slot(double[] values) {
+		return (values == null) ? new double[argumentTypes.length] : values;
+	}
+
+	private Object[] slot(Object[] values) {
+		return (values == null) ? new Object[argumentTypes.length] : values;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= argumentCount) {
+			throw new IndexOutOfBoundsException("Argument " + index + " of "
+					+ argumentCount);
+		}
+	}
+
+	private void checkType(int index, char expected) {
+		if (getArgumentType(index) != expected) {
+			throw wrongType(index, expected);
+		}
+	}
+
+	private IllegalArgumentException wrongType(int index, char expected) {
+		return new IllegalArgumentException("Argument " + index + " is '"
+				+ (char) argumentTypes[index] + "' not '" + expected + "'");
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+/**
+ * A message with a fixed address and type tags that is encoded once and then
+ * sent over and over, with the argument values patched in place between
+ * sends.
+ * 
+ * Only arguments that always take the same number of bytes can be used, so
+ * the type tags may hold i, f, h, d, c, T and F. A T argument can be flipped
+ * to F and back with setBoolean() as that only changes the tag byte.
+ * 
+ * Templates are not thread safe, give each sending thread its own.
+ */
+public class OscMessageTemplate implements OscPacket {
+	private final String address;
+	private final ByteBuffer data;
+	private final int[] tagOffsets;
+	private final int[] offsets;
+
+	/**
+	 * @param typeTags
+	 *            type tags of the arguments, with or without the leading
+	 *            comma
+	 * @throws IllegalArgumentException
+	 *             if a type tag is for a variable length argument or is not
+	 *             recognised
+	 */
+	public OscMessageTemplate(String address, String typeTags) {
+		this.address = address;
+		if (!typeTags.startsWith(",")) {
+			typeTags = "," + typeTags;
+		}
+
+		int count = typeTags.length() - 1;
+		tagOffsets = new int[count];
+		offsets = new int[count];
+
+		int addressSize = OscStringCodec.encodedSize(address);
+		int tagsSize = OscStringCodec.encodedSize(typeTags);
+		int position = addressSize + tagsSize;
+		for (int i = 0; i < count; i++) {
+			tagOffsets[i] = addressSize + 1 + i;
+			offsets[i] = position;
+			position += dataLength(typeTags.charAt(i + 1));
+		}
+
+		data = ByteBuffer.allocate(position);
+		try {
+			OscStringCodec.write(address, data);
+			OscStringCodec.write(typeTags, data);
+		} catch (CharacterCodingException e) {
+			throw new IllegalArgumentException("Can't encode " + address, e);
+		}
+		data.clear();
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public int getArgumentCount() {
+		return offsets.length;
+	}
+
+	public char getArgumentType(int index) {
+		return (char) data.get(tagOffsets[index]);
+	}
+
+	public void setInt(int index, int value) {
+		data.putInt(offsetOf(index, 'i'), value);
+	}
+
+	public void setFloat(int index, float value) {
+		data.putFloat(offsetOf(index, 'f'), value);
+	}
+
+	public void setLong(int index, long value) {
+		data.putLong(offsetOf(index, 'h'), value);
+	}
+
+	public void setDouble(int index, double value) {
+		data.putDouble(offsetOf(index, 'd'), value);
+	}
+
+	public void setChar(int index, char value) {
+		data.putInt(offsetOf(index, 'c'), value);
+	}
+
+	public void setBoolean(int index, boolean value) {
+		char type = getArgumentType(index);
+		if (type != 'T' && type != 'F') {
+			throw wrongType(index, 'T');
+		}
+		data.put(tagOffsets[index], (byte) (value ? 'T' : 'F'));
+	}
+
+	public int getInt(int index) {
+		return data.getInt(offsetOf(index, 'i'));
+	}
+
+	public float getFloat(int index) {
+		return data.getFloat(offsetOf(index, 'f'));
+	}
+
+	public long getLong(int index) {
+		return data.getLong(offsetOf(index, 'h'));
+	}
+
+	public double getDouble(int index) {
+		return data.getDouble(offsetOf(index, 'd'));
+	}
+
+	public char getChar(int index) {
+		return (char) data.getInt(offsetOf(index, 'c'));
+	}
+
+	public boolean getBoolean(int index) {
+		char type = getArgumentType(index);
+		if (type != 'T' && type != 'F') {
+			throw wrongType(index, 'T');
+		}
+		return type == 'T';
+	}
+
+	/**
+	 * Copy the encoded message into a buffer at its position.
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(data.duplicate());
+	}
+
+	/**
+	 * Decode the current contents into a new OscMessage from the given
+	 * factory.
+	 */
+	public OscMessage toMessage(OscPacketFactory factory) {
+		return new OscMessageView(data.duplicate(), 0, data.capacity())
+				.toMessage(factory);
+	}
+
+	public boolean isBundle() {
+		return false;
+	}
+
+	public boolean isValid() {
+		return true;
+	}
+
+	public int getSize() {
+		return data.capacity();
+	}
+
+	public String toString() {
+		return address + " (template)";
+	}
+
+	private int offsetOf(int index, char expected) {
+		if (getArgumentType(index) != expected) {
+			throw wrongType(index, expected);
+		}
+		return offsets[index];
+	}
+
+	private IllegalArgumentException wrongType(int index, char expected) {
+		return new IllegalArgumentException("Argument " + index + " is '"
+				+ getArgumentType(index) + "' not '" + expected + "'");
+	}
+
+	private static int dataLength(char type) {
+		switch (type) {
+		case 'i':
+		case 'f':
+		case 'c':
+			return 4;
+		case 'h':
+		case 'd':
+			return 8;
+		case 'T':
+		case 'F':
+			return 0;
+		}
+		throw new IllegalArgumentException("Type '" + type
+				+ "' can't be used in a template");
+	}
+}
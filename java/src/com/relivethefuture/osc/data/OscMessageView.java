@@ -0,0 +1,625 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+/**
+ * Flyweight view of an OSC message sitting in a receive buffer.
+ *
+ * When the view is wrapped around a buffer the address and type tags are
+ * scanned and the arguments checked to fit inside the message, but the
+ * argument data is only decoded when one of the accessors asks for it. A
+ * message that doesn't hold together is marked as not valid. Arguments are numbered the way OscMessage numbers them, an array
+ * counting as one argument, so for ",[ff]i" the int is argument 1.
+ *
+ * All reads use absolute indexes so the position and limit of the wrapped
+ * buffer are never changed.
+ *
+ * @see OscViewListener
+ */
+public class OscMessageView implements OscPacketView {
+	private ByteBuffer buffer;
+	private int start;
+	private int end;
+	private boolean valid;
+
+	private int addressEnd;
+	private int tagsStart;
+	private int dataStart;
+	private int argumentCount;
+	private String address;
+	private OscSymbol addressSymbol;
+
+	// Lazily filled in as arguments are asked for
+	private int[] tagPositions;
+	private int[] offsets;
+	private int resolved;
+	private int nextTag;
+	private int nextData;
+
+	public OscMessageView() {
+		super();
+	}
+
+	public OscMessageView(ByteBuffer buffer, int offset, int length) {
+		wrap(buffer, offset, length);
+	}
+
+	/**
+	 * @param address
+	 *            canonical symbol for the address, if the caller has already
+	 *            looked it up
+	 */
+	public OscMessageView(ByteBuffer buffer, int offset, int length,
+			OscSymbol address) {
+		wrap(buffer, offset, length);
+		setAddressSymbol(address);
+	}
+
+	/**
+	 * Point this view at the message held in the given region of a buffer.
+	 * The same view can be wrapped around many messages in turn.
+	 *
+	 * @return true if the address and type tags could be found inside the
+	 *         region
+	 */
+	public boolean wrap(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		start = offset;
+		end = offset + length;
+		address = null;
+		addressSymbol = null;
+		resolved = 0;
+		argumentCount = 0;
+
+		addressEnd = indexOfNul(start);
+		valid = addressEnd > start;
+		if (!valid) {
+			return false;
+		}
+
+		tagsStart = align(addressEnd + 1);
+		if (tagsStart >= end || buffer.get(tagsStart) != ',') {
+			// No type tags, so no arguments
+			dataStart = tagsStart;
+			nextData = dataStart;
+			return true;
+		}
+
+		int tagsEnd = indexOfNul(tagsStart);
+		if (tagsEnd < 0) {
+			valid = false;
+			return false;
+		}
+		for (int i = tagsStart + 1; i < tagsEnd; i++) {
+			byte tag = buffer.get(i);
+			if (tag == '[') {
+				i = indexOf(']', i + 1, tagsEnd);
+				if (i < 0) {
+					valid = false;
+					return false;
+				}
+				argumentCount++;
+			} else if (tag != ']') {
+				argumentCount++;
+			}
+		}
+		dataStart = align(tagsEnd + 1);
+		nextTag = tagsStart + 1;
+		nextData = dataStart;
+		valid = argumentsFit(tagsEnd);
+		return valid;
+	}
+
+	/**
+	 * Walk the argument data to make sure every string is terminated and
+	 * every argument, blobs included, ends inside the message, so the
+	 * accessors never read past it.
+	 */
+	private boolean argumentsFit(int tagsEnd) {
+		int offset = dataStart;
+		for (int i = tagsStart + 1; i < tagsEnd; i++) {
+			byte tag = buffer.get(i);
+			if (tag == '[' || tag == ']') {
+				continue;
+			}
+			int length = dataLength(tag, offset);
+			if (length < 0) {
+				return false;
+			}
+			offset += length;
+		}
+		return true;
+	}
+
+	/**
+	 * Copy the message into a new buffer so the copy stays valid once the
+	 * receive buffer has been reused.
+	 */
+	public OscMessageView copy() {
+		ByteBuffer data = ByteBuffer.allocate(end - start);
+		for (int i = start; i < end; i++) {
+			data.put(buffer.get(i));
+		}
+		return new OscMessageView(data, 0, end - start, addressSymbol);
+	}
+
+	public boolean isBundle() {
+		return false;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public int getSize() {
+		return end - start;
+	}
+
+	/**
+	 * Decodes the address the first time it is asked for.
+	 */
+	public String getAddress() {
+		if (address == null && valid) {
+			address = decodeString(start, addressEnd);
+		}
+		return address;
+	}
+
+	/**
+	 * The address as a symbol, made on demand if the view wasn't given one.
+	 */
+	public OscSymbol getAddressSymbol() {
+		if (addressSymbol == null && valid) {
+			addressSymbol = new OscSymbol(getAddress());
+		}
+		return addressSymbol;
+	}
+
+	public void setAddressSymbol(OscSymbol symbol) {
+		addressSymbol = symbol;
+		address = (symbol == null) ? null : symbol.getAddress();
+	}
+
+	/**
+	 * Compare the address to a string without decoding it.
+	 */
+	public boolean addressEquals(String other) {
+		int length = addressEnd - start;
+		if (other.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if ((buffer.get(start + i) & 0xFF) != other.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Number of arguments, an array counts as one argument.
+	 */
+	public int getArgumentCount() {
+		return argumentCount;
+	}
+
+	/**
+	 * The type tag of an argument, '[' if it is an array.
+	 */
+	public char getTypeTag(int index) {
+		resolve(index);
+		return (char) buffer.get(tagPositions[index]);
+	}
+
+	public int getInt(int index) {
+		return buffer.getInt(offsetOf(index, 'i'));
+	}
+
+	public long getLong(int index) {
+		return buffer.getLong(offsetOf(index, 'h'));
+	}
+
+	public float getFloat(int index) {
+		return buffer.getFloat(offsetOf(index, 'f'));
+	}
+
+	public double getDouble(int index) {
+		return buffer.getDouble(offsetOf(index, 'd'));
+	}
+
+	public char getChar(int index) {
+		return (char) buffer.getInt(offsetOf(index, 'c'));
+	}
+
+	public boolean getBoolean(int index) {
+		char tag = getTypeTag(index);
+		if (tag == 'T') {
+			return true;
+		}
+		if (tag == 'F') {
+			return false;
+		}
+		throw wrongType(index, 'T');
+	}
+
+	public String getStringAt(int index) {
+		resolve(index);
+		byte tag = buffer.get(tagPositions[index]);
+		if (tag != 's' && tag != 'S') {
+			throw wrongType(index, 's');
+		}
+		int offset = offsets[index];
+		return decodeString(offset, indexOfNul(offset));
+	}
+
+	public int getBlobLength(int index) {
+		return buffer.getInt(offsetOf(index, 'b'));
+	}
+
+	public byte[] getBlob(int index) {
+		int offset = offsetOf(index, 'b');
+		byte[] data = new byte[buffer.getInt(offset)];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = buffer.get(offset + 4 + i);
+		}
+		return data;
+	}
+
+	/**
+	 * Number of elements in an array argument.
+	 */
+	public int getArrayLength(int index) {
+		offsetOf(index, '[');
+		return arrayTypes(index).length();
+	}
+
+	public float[] getFloatArray(int index) {
+		Object array = getArgument(index);
+		if (!(array instanceof float[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not a float array");
+		}
+		return (float[]) array;
+	}
+
+	public int[] getIntArray(int index) {
+		Object array = getArgument(index);
+		if (!(array instanceof int[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not an int array");
+		}
+		return (int[]) array;
+	}
+
+	public double[] getDoubleArray(int index) {
+		Object array = getArgument(index);
+		if (!(array instanceof double[])) {
+			throw new IllegalArgumentException("Argument " + index
+					+ " is not a double array");
+		}
+		return (double[]) array;
+	}
+
+	/**
+	 * Get an argument as the same object the decoder would have added to an
+	 * OscMessage. Arrays of only f, i or d come back as float[], int[] or
+	 * double[], other arrays as Object[].
+	 */
+	public Object getArgument(int index) {
+		resolve(index);
+		byte tag = buffer.get(tagPositions[index]);
+		if (tag != '[') {
+			return readValue(tag, offsets[index]);
+		}
+		String types = arrayTypes(index);
+		char type = uniformType(types);
+		if (type != 0) {
+			return readNumberArray(type, offsets[index], types.length());
+		}
+		Object[] array = new Object[types.length()];
+		int offset = offsets[index];
+		for (int i = 0; i < array.length; i++) {
+			byte elementTag = (byte) types.charAt(i);
+			array[i] = readValue(elementTag, offset);
+			offset += dataLength(elementTag, offset);
+		}
+		return array;
+	}
+
+	/**
+	 * Decode the whole message into a new OscMessage from the given factory.
+	 */
+	public OscMessage toMessage(OscPacketFactory factory) {
+		OscMessage message = factory.createMessage();
+		if (addressSymbol != null) {
+			message.setAddressSymbol(addressSymbol);
+		} else {
+			message.setAddress(getAddress());
+		}
+
+		for (int index = 0; index < argumentCount; index++) {
+			if (getTypeTag(index) == '[') {
+				addArray(message, index);
+			} else {
+				addArgument(message, index);
+			}
+		}
+		return message;
+	}
+
+	public String toString() {
+		return getAddress() + " (view)";
+	}
+
+	/**
+	 * @return the type shared by every element if it is f, i or d, otherwise 0
+	 */
+	private static char uniformType(CharSequence types) {
+		if (types.length() == 0) {
+			return 0;
+		}
+		char type = types.charAt(0);
+		if (type != 'f' && type != 'i' && type != 'd') {
+			return 0;
+		}
+		for (int i = 1; i < types.length(); i++) {
+			if (types.charAt(i) != type) {
+				return 0;
+			}
+		}
+		return type;
+	}
+
+	/**
+	 * Add an array the way the decoder does, numbers as a primitive array and
+	 * anything else, including an empty array, as an Object[].
+	 */
+	private void addArray(OscMessage message, int index) {
+		Object array = getArgument(index);
+		if (array instanceof float[]) {
+			message.addArgument((float[]) array);
+		} else if (array instanceof int[]) {
+			message.addArgument((int[]) array);
+		} else if (array instanceof double[]) {
+			message.addArgument((double[]) array);
+		} else {
+			message.addArgument((Object[]) array, arrayTypes(index));
+		}
+	}
+
+	/**
+	 * Copy an array of numbers out through a view of the buffer.
+	 */
+	private Object readNumberArray(char type, int offset, int length) {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(end);
+		data.position(offset);
+		switch (type) {
+		case 'f':
+			float[] floats = new float[length];
+			data.asFloatBuffer().get(floats);
+			return floats;
+		case 'i':
+			int[] ints = new int[length];
+			data.asIntBuffer().get(ints);
+			return ints;
+		case 'd':
+			double[] doubles = new double[length];
+			data.asDoubleBuffer().get(doubles);
+			return doubles;
+		}
+		return null;
+	}
+
+	/**
+	 * Read a single value, as an element of an array or an argument.
+	 */
+	private Object readValue(byte tag, int offset) {
+		switch (tag) {
+		case 'i':
+			return buffer.getInt(offset);
+		case 'h':
+			return BigInteger.valueOf(buffer.getLong(offset));
+		case 'f':
+			return buffer.getFloat(offset);
+		case 'd':
+			return buffer.getDouble(offset);
+		case 's':
+		case 'S':
+			return decodeString(offset, indexOfNul(offset));
+		case 'c':
+			return (char) buffer.getInt(offset);
+		case 'T':
+			return Boolean.TRUE;
+		case 'F':
+			return Boolean.FALSE;
+		case 'b':
+			byte[] data = new byte[buffer.getInt(offset)];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = buffer.get(offset + 4 + i);
+			}
+			return data;
+		}
+		return null;
+	}
+
+	/**
+	 * The type tags inside an array argument's brackets.
+	 */
+	private String arrayTypes(int index) {
+		StringBuilder types = new StringBuilder();
+		for (int i = tagPositions[index] + 1; buffer.get(i) != ']'; i++) {
+			types.append((char) buffer.get(i));
+		}
+		return types.toString();
+	}
+
+	private void addArgument(OscMessage message, int index) {
+		// Go through the typed overloads so subclasses can intercept them
+		switch (getTypeTag(index)) {
+		case 'i':
+			message.addInt(getInt(index));
+			break;
+		case 'h':
+			message.addLong(getLong(index));
+			break;
+		case 'f':
+			message.addFloat(getFloat(index));
+			break;
+		case 'd':
+			message.addDouble(getDouble(index));
+			break;
+		case 's':
+		case 'S':
+			message.addArgument(getStringAt(index));
+			break;
+		case 'c':
+			message.addArgument(getChar(index));
+			break;
+		case 'T':
+			message.addArgument(Boolean.TRUE);
+			break;
+		case 'F':
+			message.addArgument(Boolean.FALSE);
+			break;
+		case 'b':
+			message.addArgument(getBlob(index));
+			break;
+		}
+	}
+
+	private int offsetOf(int index, char expected) {
+		resolve(index);
+		if (buffer.get(tagPositions[index]) != expected) {
+			throw wrongType(index, expected);
+		}
+		return offsets[index];
+	}
+
+	/**
+	 * Walk the type tags far enough to know where the argument starts.
+	 */
+	private void resolve(int index) {
+		if (index < 0 || index >= argumentCount) {
+			throw new IndexOutOfBoundsException("Argument " + index + " of "
+					+ argumentCount);
+		}
+		if (offsets == null || offsets.length < argumentCount) {
+			offsets = new int[argumentCount];
+			tagPositions = new int[argumentCount];
+		}
+		while (resolved <= index) {
+			byte tag = buffer.get(nextTag);
+			while (tag == ']') {
+				tag = buffer.get(++nextTag);
+			}
+			tagPositions[resolved] = nextTag;
+			offsets[resolved] = nextData;
+			if (tag == '[') {
+				// The array's data is its elements' one after another
+				for (tag = buffer.get(++nextTag); tag != ']'; tag = buffer
+						.get(++nextTag)) {
+					nextData += dataLength(tag, nextData);
+				}
+			} else {
+				nextData += dataLength(tag, nextData);
+			}
+			nextTag++;
+			resolved++;
+		}
+	}
+
+	/**
+	 * @return the number of bytes the argument takes, padding included, or
+	 *         -1 if it runs past the end of the message
+	 */
+	private int dataLength(byte tag, int offset) {
+		switch (tag) {
+		case 'i':
+		case 'f':
+		case 'c':
+		case 'r':
+		case 'm':
+			return fixedLength(4, offset);
+		case 'h':
+		case 'd':
+		case 't':
+			return fixedLength(8, offset);
+		case 's':
+		case 'S':
+			int nul = indexOfNul(offset);
+			return (nul < 0) ? -1 : align(nul + 1) - offset;
+		case 'b':
+			if (fixedLength(4, offset) < 0) {
+				return -1;
+			}
+			int size = buffer.getInt(offset);
+			if (size < 0 || size > end - offset - 4) {
+				return -1;
+			}
+			return align(offset + 4 + size) - offset;
+		}
+		return 0;
+	}
+
+	private int fixedLength(int length, int offset) {
+		return (length <= end - offset) ? length : -1;
+	}
+
+	private int indexOfNul(int from) {
+		return indexOf(0, from, end);
+	}
+
+	private int indexOf(int value, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Round an absolute index up to the next 4 byte boundary of the message.
+	 */
+	private int align(int index) {
+		return start + ((index - start + 3) & ~3);
+	}
+
+	private String decodeString(int from, int to) {
+		try {
+			return OscStringCodec.decode(buffer, from, to);
+		} catch (CharacterCodingException e) {
+			throw new IllegalStateException("Badly encoded string", e);
+		}
+	}
+
+	private IllegalArgumentException wrongType(int index, char expected) {
+		return new IllegalArgumentException("Argument " + index + " is '"
+				+ (char) buffer.get(tagPositions[index]) + "' not '" + expected
+				+ "'");
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+/**
+ * A read-only packet that reads its contents straight out of the buffer it was
+ * received into rather than from decoded objects.
+ *
+ * A view is only guaranteed to be valid while the listener callback it was
+ * delivered to is running. Use copy(), or toMessage() and toBundle(), to keep
+ * the contents.
+ */
+public interface OscPacketView {
+	public boolean isBundle();
+
+	/**
+	 * Did the bytes behind this view form a well structured packet?
+	 *
+	 * @return
+	 */
+	public boolean isValid();
+
+	public int getSize();
+
+	/**
+	 * Copy the packet out of the receive buffer into a view of its own.
+	 */
+	public OscPacketView copy();
+}
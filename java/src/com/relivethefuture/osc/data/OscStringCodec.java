@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Reads and writes OSC-strings: UTF-8 bytes followed by a zero and padded
+ * with zeros to a multiple of 4 bytes.
+ *
+ * Addresses and most string arguments are plain ASCII, so the bytes are
+ * scanned and copied directly and a charset coder is only used when a byte or
+ * char outside ASCII turns up. Charset coders hold state while they work, so
+ * each thread gets its own rather than sharing one between IO threads.
+ */
+public final class OscStringCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
+		protected CharsetDecoder initialValue() {
+			return UTF8.newDecoder();
+		}
+	};
+
+	private static final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+		protected CharsetEncoder initialValue() {
+			return UTF8.newEncoder();
+		}
+	};
+
+	private OscStringCodec() {
+	}
+
+	/**
+	 * Read the string at the buffer position and move the position past its
+	 * terminator and padding.
+	 */
+	public static String read(ByteBuffer buffer)
+			throws CharacterCodingException {
+		int start = buffer.position();
+		int limit = buffer.limit();
+		int end;
+		String str;
+		if (buffer.hasArray()) {
+			// Look for the terminator and any non ASCII byte in one pass
+			byte[] bytes = buffer.array();
+			int offset = buffer.arrayOffset();
+			int high = 0;
+			end = start;
+			while (end < limit) {
+				byte b = bytes[offset + end];
+				if (b == 0) {
+					break;
+				}
+				high |= b;
+				end++;
+			}
+			if (high >= 0) {
+				str = ascii(bytes, offset + start, end - start);
+			} else {
+				str = decodeUtf8(buffer, start, end);
+			}
+		} else {
+			end = indexOfNul(buffer, start, limit);
+			if (end < 0) {
+				// Unterminated, take what is left
+				end = limit;
+			}
+			str = decode(buffer, start, end);
+		}
+		buffer.position(Math.min(limit, start + paddedLength(end - start)));
+		return str;
+	}
+
+	/**
+	 * Decode the bytes between two absolute indexes without moving the buffer
+	 * position.
+	 */
+	public static String decode(ByteBuffer buffer, int from, int to)
+			throws CharacterCodingException {
+		int length = to - from;
+		if (buffer.hasArray()) {
+			byte[] bytes = buffer.array();
+			int offset = buffer.arrayOffset() + from;
+			if (isAscii(bytes, offset, length)) {
+				return ascii(bytes, offset, length);
+			}
+		} else {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(from + i);
+			}
+			if (isAscii(bytes, 0, length)) {
+				return ascii(bytes, 0, length);
+			}
+		}
+
+		return decodeUtf8(buffer, from, to);
+	}
+
+	/**
+	 * Bytes already known to be ASCII map straight to the same chars as UTF-8
+	 * would give, so no charset is needed.
+	 */
+	private static String ascii(byte[] bytes, int offset, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) bytes[offset + i];
+		}
+		return new String(chars);
+	}
+
+	private static String decodeUtf8(ByteBuffer buffer, int from, int to)
+			throws CharacterCodingException {
+		ByteBuffer in = buffer.duplicate();
+		in.limit(to);
+		in.position(from);
+		CharsetDecoder decoder = decoders.get();
+		decoder.reset();
+		return decoder.decode(in).toString();
+	}
+
+	/**
+	 * Write a string with its terminator and padding at the buffer position.
+	 */
+	public static void write(String str, ByteBuffer buffer)
+			throws CharacterCodingException {
+		int start = buffer.position();
+		int length = str.length();
+
+		int written = writeAscii(str, buffer);
+		if (written < length) {
+			buffer.position(start);
+			written = writeUtf8(str, buffer);
+		}
+
+		int padded = paddedLength(written);
+		if (buffer.remaining() < padded - written) {
+			throw new BufferOverflowException();
+		}
+		for (int i = written; i < padded; i++) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	/**
+	 * Number of bytes a string takes up once encoded, including the
+	 * terminator and padding.
+	 */
+	public static int encodedSize(String str) {
+		int length = str.length();
+		int bytes = 0;
+		for (int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				bytes++;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else {
+				bytes += 3;
+			}
+		}
+		return paddedLength(bytes);
+	}
+
+	/**
+	 * Size of a string of the given byte length once its terminator and
+	 * padding have been added.
+	 */
+	public static int paddedLength(int length) {
+		return (length + 4) & ~3;
+	}
+
+	/**
+	 * Copy chars to bytes until one isn't ASCII.
+	 *
+	 * @return number of chars written
+	 */
+	private static int writeAscii(String str, ByteBuffer buffer) {
+		int length = str.length();
+		if (buffer.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+		int start = buffer.position();
+		if (buffer.hasArray()) {
+			byte[] bytes = buffer.array();
+			int offset = buffer.arrayOffset() + start;
+			int i = 0;
+			for (; i < length; i++) {
+				char c = str.charAt(i);
+				if (c >= 0x80) {
+					break;
+				}
+				bytes[offset + i] = (byte) c;
+			}
+			buffer.position(start + i);
+			return i;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80) {
+				return i;
+			}
+			buffer.put((byte) c);
+		}
+		return length;
+	}
+
+	/**
+	 * @return number of bytes written
+	 */
+	private static int writeUtf8(String str, ByteBuffer buffer)
+			throws CharacterCodingException {
+		int start = buffer.position();
+		CharsetEncoder encoder = encoders.get();
+		encoder.reset();
+		CharBuffer in = CharBuffer.wrap(str);
+		CoderResult result = encoder.encode(in, buffer, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		result = encoder.flush(buffer);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		return buffer.position() - start;
+	}
+
+	private static boolean isAscii(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOfNul(ByteBuffer buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+/**
+ * A canonical OSC address. The decoder keeps one symbol per distinct address
+ * it has seen, so repeated messages to the same address share the same
+ * String, its hash code and its path segments rather than decoding them again.
+ *
+ * Symbols are immutable and can be compared by reference when they come from
+ * the same decoder.
+ */
+public final class OscSymbol {
+	private static final String[] NO_SEGMENTS = new String[0];
+
+	private final String address;
+	private final int hash;
+	private final int encodedSize;
+	private final String[] segments;
+
+	public OscSymbol(String address) {
+		this.address = address;
+		hash = address.hashCode();
+		encodedSize = OscStringCodec.encodedSize(address);
+		segments = split(address);
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	/**
+	 * Bytes taken up by the address in a packet, including the terminator and
+	 * padding.
+	 */
+	public int getEncodedSize() {
+		return encodedSize;
+	}
+
+	/**
+	 * Number of parts in the address, "/a/b" has two.
+	 */
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	public String getSegment(int index) {
+		return segments[index];
+	}
+
+	public int hashCode() {
+		return hash;
+	}
+
+	public boolean equals(Object other) {
+		if (other == this) {
+			return true;
+		}
+		return other instanceof OscSymbol
+				&& ((OscSymbol) other).hash == hash
+				&& ((OscSymbol) other).address.equals(address);
+	}
+
+	public String toString() {
+		return address;
+	}
+
+	private static String[] split(String address) {
+		int length = address.length();
+		int from = (length > 0 && address.charAt(0) == '/') ? 1 : 0;
+		if (from == length) {
+			return NO_SEGMENTS;
+		}
+
+		int count = 1;
+		for (int i = from; i < length; i++) {
+			if (address.charAt(i) == '/') {
+				count++;
+			}
+		}
+
+		String[] parts = new String[count];
+		int part = 0;
+		for (int i = from; i <= length; i++) {
+			if (i == length || address.charAt(i) == '/') {
+				parts[part++] = address.substring(from, i);
+				from = i + 1;
+			}
+		}
+		return parts;
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import java.util.Date;
+
+/**
+ * OSC time tag, held as the raw 64 bit NTP value.
+ *
+ * The top 32 bits are unsigned seconds since midnight on January 1, 1900 and
+ * the bottom 32 bits are fractions of a second. The static methods convert
+ * between that and Java epoch based times without creating any objects, so
+ * bundles can carry the plain long around and only make an OscTimeTag or a
+ * Date when asked for one.
+ *
+ * Conversions round to the nearest unit so that times written by other
+ * implementations, which usually truncate, come back out as the same
+ * millisecond or nanosecond that went in.
+ */
+public final class OscTimeTag {
+	/**
+	 * Time from 1900 to 1970 in seconds
+	 */
+	public static final long SECONDS_TO_EPOCH = 2208988800L;
+
+	/**
+	 * 63 zero bits followed by a one, meaning "immediately".
+	 */
+	public static final long IMMEDIATE = 1L;
+
+	/**
+	 * All zero bits, which many implementations send for "immediately".
+	 */
+	public static final long ZERO = 0L;
+
+	public static final OscTimeTag IMMEDIATELY = new OscTimeTag(IMMEDIATE);
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long MILLIS_PER_SECOND = 1000L;
+	private static final long FRACTION_MASK = 0xFFFFFFFFL;
+	private static final long HALF_FRACTION = 0x80000000L;
+
+	private final long ntpTime;
+
+	public OscTimeTag(long ntpTime) {
+		this.ntpTime = ntpTime;
+	}
+
+	public static OscTimeTag fromNanos(long nanos) {
+		return new OscTimeTag(nanosToNtp(nanos));
+	}
+
+	public static OscTimeTag fromDate(Date date) {
+		if (date == null) {
+			return IMMEDIATELY;
+		}
+		return new OscTimeTag(millisToNtp(date.getTime()));
+	}
+
+	/**
+	 * The current time, from System.currentTimeMillis().
+	 */
+	public static long now() {
+		return millisToNtp(System.currentTimeMillis());
+	}
+
+	public long getNtpTime() {
+		return ntpTime;
+	}
+
+	public boolean isImmediate() {
+		return isImmediate(ntpTime);
+	}
+
+	/**
+	 * Does a raw time tag mean "immediately"? That is 1 in the spec, but 0 is
+	 * common enough in the wild to be treated the same.
+	 */
+	public static boolean isImmediate(long ntpTime) {
+		return ntpTime == IMMEDIATE || ntpTime == ZERO;
+	}
+
+	/**
+	 * @return nanoseconds since 1970
+	 */
+	public long toNanos() {
+		return ntpToNanos(ntpTime);
+	}
+
+	/**
+	 * @return milliseconds since 1970
+	 */
+	public long toMillis() {
+		return ntpToMillis(ntpTime);
+	}
+
+	public Date toDate() {
+		return new Date(ntpToMillis(ntpTime));
+	}
+
+	public static long ntpToNanos(long ntpTime) {
+		long seconds = epochSeconds(ntpTime);
+		long fraction = ntpTime & FRACTION_MASK;
+		return seconds * NANOS_PER_SECOND
+				+ ((fraction * NANOS_PER_SECOND + HALF_FRACTION) >>> 32);
+	}
+
+	public static long nanosToNtp(long nanos) {
+		long seconds = nanos / NANOS_PER_SECOND;
+		long remainder = nanos % NANOS_PER_SECOND;
+		if (remainder < 0) {
+			remainder += NANOS_PER_SECOND;
+			seconds--;
+		}
+		long fraction = ((remainder << 32) + NANOS_PER_SECOND / 2)
+				/ NANOS_PER_SECOND;
+		return ((seconds + SECONDS_TO_EPOCH) << 32) | fraction;
+	}
+
+	public static long ntpToMillis(long ntpTime) {
+		long seconds = epochSeconds(ntpTime);
+		long fraction = ntpTime & FRACTION_MASK;
+		return seconds * MILLIS_PER_SECOND
+				+ ((fraction * MILLIS_PER_SECOND + HALF_FRACTION) >>> 32);
+	}
+
+	public static long millisToNtp(long millis) {
+		long seconds = millis / MILLIS_PER_SECOND;
+		long remainder = millis % MILLIS_PER_SECOND;
+		if (remainder < 0) {
+			remainder += MILLIS_PER_SECOND;
+			seconds--;
+		}
+		long fraction = ((remainder << 32) + MILLIS_PER_SECOND / 2)
+				/ MILLIS_PER_SECOND;
+		return ((seconds + SECONDS_TO_EPOCH) << 32) | fraction;
+	}
+
+	/**
+	 * Seconds since 1970. The seconds field wraps in 2036, so as in RFC 4330
+	 * values with the top bit clear are taken to be after that, giving a range
+	 * of 1968 to 2104.
+	 */
+	private static long epochSeconds(long ntpTime) {
+		long seconds = ntpTime >>> 32;
+		if ((seconds & 0x80000000L) == 0) {
+			seconds += 0x100000000L;
+		}
+		return seconds - SECONDS_TO_EPOCH;
+	}
+
+	public boolean equals(Object other) {
+		return other instanceof OscTimeTag
+				&& ((OscTimeTag) other).ntpTime == ntpTime;
+	}
+
+	public int hashCode() {
+		return (int) (ntpTime ^ (ntpTime >>> 32));
+	}
+
+	public String toString() {
+		if (isImmediate()) {
+			return "immediately";
+		}
+		return toDate() + " (" + Long.toHexString(ntpTime) + ")";
+	}
+}
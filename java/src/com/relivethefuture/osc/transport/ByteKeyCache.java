@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small fixed size cache keyed by a run of bytes, used to map the raw bytes of
+ * a packet onto something that has already been worked out for them without
+ * making a String first.
+ *
+ * Entries are immutable so the table can be read and written from several IO
+ * threads without locking, the worst a race can do is drop an entry that then
+ * gets rebuilt.
+ */
+class ByteKeyCache<V> {
+	private static final int PROBES = 4;
+
+	private static class Entry<V> {
+		final byte[] key;
+		final int hash;
+		final V value;
+
+		Entry(byte[] key, int hash, V value) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	private final Entry<V>[] table;
+	private final int mask;
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	ByteKeyCache(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		table = (Entry<V>[]) new Entry<?>[size];
+		mask = size - 1;
+	}
+
+	static int hash(ByteBuffer buffer, int from, int to) {
+		int hash = 0;
+		for (int i = from; i < to; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		return hash;
+	}
+
+	/**
+	 * Look up the bytes between from and to in the buffer.
+	 *
+	 * @return the cached value or null
+	 */
+	V get(ByteBuffer buffer, int from, int to, int hash) {
+		int length = to - from;
+		for (int i = 0; i < PROBES; i++) {
+			Entry<V> entry = table[(hash + i) & mask];
+			if (entry == null) {
+				return null;
+			}
+			if (entry.hash == hash && entry.key.length == length
+					&& matches(entry.key, buffer, from)) {
+				return entry.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a value, taking the first free slot near its hash or replacing the
+	 * entry in its home slot when they are all full.
+	 */
+	void put(byte[] key, int hash, V value) {
+		Entry<V> entry = new Entry<V>(key, hash, value);
+		for (int i = 0; i < PROBES; i++) {
+			int slot = (hash + i) & mask;
+			if (table[slot] == null) {
+				table[slot] = entry;
+				return;
+			}
+		}
+		table[hash & mask] = entry;
+	}
+
+	static byte[] copy(ByteBuffer buffer, int from, int to) {
+		byte[] key = new byte[to - from];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = buffer.get(from + i);
+		}
+		return key;
+	}
+
+	private static boolean matches(byte[] key, ByteBuffer buffer, int from) {
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != buffer.get(from + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+/**
+ * A type tag string parsed into the steps needed to decode the arguments that
+ * follow it. Plans are built once per distinct signature and cached by the
+ * decoder, so a packet only has to walk the byte array.
+ *
+ * Each byte of ops is an argument type, or '[' for an array whose types are in
+ * the next entry of arrayOps. Arrays made up only of f, i or d have that type
+ * in arrayElementTypes so they can be read in one go, other arrays have 0.
+ */
+class DecodePlan {
+	final byte[] ops;
+	final byte[][] arrayOps;
+	final String[] arrayTypes;
+	final byte[] arrayElementTypes;
+
+	private DecodePlan(byte[] ops, byte[][] arrayOps, String[] arrayTypes,
+			byte[] arrayElementTypes) {
+		this.ops = ops;
+		this.arrayOps = arrayOps;
+		this.arrayTypes = arrayTypes;
+		this.arrayElementTypes = arrayElementTypes;
+	}
+
+	/**
+	 * Compile the raw bytes of a type tag string, with or without the leading
+	 * comma.
+	 */
+	static DecodePlan compile(byte[] tags) {
+		int from = (tags.length > 0 && tags[0] == ',') ? 1 : 0;
+
+		int opCount = 0;
+		int arrayCount = 0;
+		boolean inArray = false;
+		for (int i = from; i < tags.length; i++) {
+			byte tag = tags[i];
+			if (tag == '[') {
+				if (!inArray) {
+					opCount++;
+					arrayCount++;
+				}
+				inArray = true;
+			} else if (tag == ']') {
+				inArray = false;
+			} else if (!inArray) {
+				opCount++;
+			}
+		}
+
+		byte[] ops = new byte[opCount];
+		byte[][] arrayOps = new byte[arrayCount][];
+		String[] arrayTypes = new String[arrayCount];
+		byte[] arrayElementTypes = new byte[arrayCount];
+
+		int op = 0;
+		int array = 0;
+		for (int i = from; i < tags.length; i++) {
+			byte tag = tags[i];
+			if (tag == ']') {
+				continue;
+			}
+			ops[op++] = tag;
+			if (tag == '[') {
+				// An unclosed array runs to the end of the tags
+				int close = i + 1;
+				while (close < tags.length && tags[close] != ']') {
+					close++;
+				}
+				byte[] types = new byte[close - i - 1];
+				System.arraycopy(tags, i + 1, types, 0, types.length);
+				arrayOps[array] = types;
+				StringBuilder typeString = new StringBuilder(types.length);
+				for (int j = 0; j < types.length; j++) {
+					typeString.append((char) types[j]);
+				}
+				arrayTypes[array] = typeString.toString();
+				arrayElementTypes[array] = elementType(types);
+				array++;
+				i = close;
+			}
+		}
+		return new DecodePlan(ops, arrayOps, arrayTypes, arrayElementTypes);
+	}
+
+	/**
+	 * @return the type shared by every element if it is f, i or d, otherwise 0
+	 */
+	private static byte elementType(byte[] types) {
+		if (types.length == 0) {
+			return 0;
+		}
+		byte type = types[0];
+		if (type != 'f' && type != 'i' && type != 'd') {
+			return 0;
+		}
+		for (int i = 1; i < types.length; i++) {
+			if (types[i] != type) {
+				return 0;
+			}
+		}
+		return type;
+	}
+}
@@ -151,7 +151,8 @@ public class OscClient extends IoHandlerAdapter implements
 
 			logger.debug("sending packet " + size);
 
-			IoBuffer buffer = IoBuffer.allocate(size);
+			// Room for the size prefix when using TCP
+			IoBuffer buffer = IoBuffer.allocate(udp ? size : size + 4);
 			try {
 				encoder.encodePacket(packet, buffer, !udp);
 				buffer.flip();
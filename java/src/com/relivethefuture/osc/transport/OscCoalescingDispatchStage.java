@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscAddressPattern;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+import com.relivethefuture.osc.data.OscSymbol;
+
+/**
+ * Delivers packets on a thread of its own, and when the listeners fall behind
+ * only delivers the newest message for addresses that carry a continuous
+ * value, such as a fader or an XY pad.
+ * 
+ * Mark continuous addresses with addContinuousAddress(), patterns are allowed
+ * so "/fader/&#42;" covers every fader. A message to a continuous address that
+ * is still waiting to be delivered is replaced by the next one to arrive,
+ * keeping its place in the queue. Everything else, messages like /play and
+ * all bundles, is queued in full up to the capacity and dropped after that.
+ */
+public class OscCoalescingDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory
+			.getLogger(OscCoalescingDispatchStage.class);
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final int CONTINUOUS_CACHE_SIZE = 1024;
+
+	private final ArrayBlockingQueue<Object> queue;
+	// Newest waiting message for each continuous address in the queue
+	private final ConcurrentHashMap<OscSymbol, Object> latest = new ConcurrentHashMap<OscSymbol, Object>();
+
+	private final CopyOnWriteArrayList<String> continuousPatterns = new CopyOnWriteArrayList<String>();
+	private volatile ConcurrentHashMap<OscSymbol, Boolean> continuous = new ConcurrentHashMap<OscSymbol, Boolean>();
+
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+
+	private Thread thread;
+	private OscServerIoHandler handler;
+
+	public OscCoalescingDispatchStage() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            most packets that can be waiting, continuous addresses take
+	 *            up one place each however many messages they get
+	 */
+	public OscCoalescingDispatchStage(int capacity) {
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	/**
+	 * Only the newest message for addresses matching this address or pattern
+	 * will be delivered.
+	 */
+	public void addContinuousAddress(String addressPattern) {
+		continuousPatterns.add(addressPattern);
+		continuous = new ConcurrentHashMap<OscSymbol, Boolean>();
+	}
+
+	public void removeContinuousAddress(String addressPattern) {
+		continuousPatterns.remove(addressPattern);
+		continuous = new ConcurrentHashMap<OscSymbol, Boolean>();
+	}
+
+	public void start(OscServerIoHandler handler) {
+		this.handler = handler;
+		thread = new Thread("OSC coalescing dispatch") {
+			public void run() {
+				deliverLoop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		if (packet instanceof OscMessage || packet instanceof OscMessageView) {
+			OscSymbol address = OscLaneDispatchStage.addressOf(packet);
+			if (address != null && isContinuous(address)) {
+				if (latest.put(address, packet) != null) {
+					// Replaced a message that hadn't been delivered yet
+					coalesced.incrementAndGet();
+				} else if (!queue.offer(address)) {
+					// There is no token in the queue, so nothing may be left
+					// waiting for this address, even a newer message another
+					// thread put there since
+					latest.remove(address);
+					dropped.incrementAndGet();
+				}
+				return;
+			}
+		}
+		if (!queue.offer(packet)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	public void stop() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Messages replaced by a newer one to the same address before they were
+	 * delivered.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Packets thrown away because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	private boolean isContinuous(OscSymbol address) {
+		ConcurrentHashMap<OscSymbol, Boolean> cache = continuous;
+		Boolean known = cache.get(address);
+		if (known != null) {
+			return known;
+		}
+		boolean matched = false;
+		for (String pattern : continuousPatterns) {
+			if (OscAddressPattern.matches(pattern, address.getAddress())) {
+				matched = true;
+				break;
+			}
+		}
+		if (cache.size() >= CONTINUOUS_CACHE_SIZE) {
+			cache.clear();
+		}
+		cache.put(address, matched);
+		return matched;
+	}
+
+	private void deliverLoop() {
+		try {
+			while (true) {
+				Object item = queue.take();
+				if (item instanceof OscSymbol) {
+					item = latest.remove(item);
+					if (item == null) {
+						continue;
+					}
+				}
+				try {
+					handler.deliver(item);
+				} catch (RuntimeException e) {
+					logger.error("Listener failed", e);
+				}
+				delivered.incrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+}
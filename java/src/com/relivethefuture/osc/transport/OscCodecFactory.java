@@ -27,22 +27,59 @@ import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolEncoder;
 
 import com.relivethefuture.osc.data.OscPacketFactory;
+import com.relivethefuture.osc.data.OscSymbol;
 
+/**
+ * Gives each session a decoder of its own, so sessions served by different IO
+ * processors never share decoding state, while all the decoders share one set
+ * of caches. TCP framing is kept per session by the decoder. The encoder has
+ * no state and is shared.
+ */
 public class OscCodecFactory implements ProtocolCodecFactory {
-	private OscDataEncoder encoder;
-	private OscDataDecoder decoder;
+	private final OscPacketFactory packetFactory;
+	private final boolean udp;
+	private final boolean decodeViews;
+	private final OscDataEncoder encoder;
+
+	private final ByteKeyCache<DecodePlan> decodePlans = new ByteKeyCache<DecodePlan>(
+			OscDataDecoder.DECODE_PLAN_CACHE_SIZE);
+	private final ByteKeyCache<OscSymbol> addressSymbols = new ByteKeyCache<OscSymbol>(
+			OscDataDecoder.ADDRESS_CACHE_SIZE);
 
 	public OscCodecFactory(OscPacketFactory factory, Boolean isUDP) {
+		this(factory, isUDP, false);
+	}
+
+	public OscCodecFactory(OscPacketFactory factory, Boolean isUDP,
+			boolean decodeViews) {
+		packetFactory = factory;
+		udp = isUDP;
+		this.decodeViews = decodeViews;
 		encoder = new OscDataEncoder(isUDP);
-		decoder = new OscDataDecoder(factory, isUDP);
 	}
 
+	/**
+	 * MINA keeps the decoder returned for a session and asks for a new one
+	 * for the next.
+	 */
 	public ProtocolDecoder getDecoder(IoSession session) throws Exception {
-		return decoder;
+		return createDecoder();
 	}
 
 	public ProtocolEncoder getEncoder(IoSession session) throws Exception {
 		return encoder;
 	}
 
+	/**
+	 * Make a decoder sharing this factory's caches, for a session or channel
+	 * of its own.
+	 */
+	public OscDataDecoder createDecoder() {
+		return new OscDataDecoder(packetFactory, udp, decodeViews,
+				decodePlans, addressSymbols);
+	}
+
+	public OscDataEncoder getEncoder() {
+		return encoder;
+	}
 }
@@ -22,22 +22,25 @@
 package com.relivethefuture.osc.transport;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.util.Date;
 
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
 import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
 import com.relivethefuture.osc.data.OscPacket;
 import com.relivethefuture.osc.data.OscPacketFactory;
+import com.relivethefuture.osc.data.OscStringCodec;
+import com.relivethefuture.osc.data.OscSymbol;
 
 /*
  OSC Type Tag  	Type of corresponding argument
@@ -60,25 +63,86 @@ import com.relivethefuture.osc.data.OscPacketFactory;
  ] 	Indicates the end of an array.
  */
 
+/**
+ * Decodes OSC packets from UDP datagrams or a TCP stream.
+ * 
+ * A decoder is not thread safe and each session or channel needs one of its
+ * own. Decoders made by the same OscCodecFactory share their decode plan and
+ * address caches, which are safe to use from several threads.
+ */
 public class OscDataDecoder extends CumulativeProtocolDecoder {
 	final Logger logger = LoggerFactory.getLogger(OscDataDecoder.class);
 
-	private static CharsetDecoder csd = Charset.forName("UTF-8").newDecoder();
+	/**
+	 * Number of distinct type tag signatures to keep decode plans for.
+	 */
+	public static final int DECODE_PLAN_CACHE_SIZE = 256;
+
+	/**
+	 * Number of distinct addresses to keep symbols for.
+	 */
+	public static final int ADDRESS_CACHE_SIZE = 1024;
+
+	/**
+	 * Largest TCP packet accepted, counting its 4 byte size. A bigger size is
+	 * taken as a broken stream.
+	 */
+	public static final int MAX_PACKET_SIZE = 16 * 1024 * 1024;
+
+	private final OscPacketFactory packetFactory;
+
+	private final boolean udp;
 
-	private OscPacketFactory packetFactory;
+	private final boolean decodeViews;
 
-	private Boolean udp;
+	private final ByteKeyCache<DecodePlan> decodePlans;
+
+	private final ByteKeyCache<OscSymbol> addressSymbols;
+
+	/**
+	 * Wrapper around the last buffer passed to decode(ByteBuffer).
+	 */
+	private IoBuffer wrapped;
 
 	public OscDataDecoder(OscPacketFactory factory, Boolean isUDP) {
+		this(factory, isUDP, false);
+	}
+
+	/**
+	 * @param decodeViews
+	 *            Output messages and bundles as OscMessageViews and
+	 *            OscBundleViews over the received data instead of decoding
+	 *            them into OscMessages and OscBundles.
+	 */
+	public OscDataDecoder(OscPacketFactory factory, Boolean isUDP,
+			boolean decodeViews) {
+		this(factory, isUDP, decodeViews, new ByteKeyCache<DecodePlan>(
+				DECODE_PLAN_CACHE_SIZE), new ByteKeyCache<OscSymbol>(
+				ADDRESS_CACHE_SIZE));
+	}
+
+	/**
+	 * Make a decoder that shares its caches with others, see OscCodecFactory.
+	 */
+	OscDataDecoder(OscPacketFactory factory, boolean isUDP,
+			boolean decodeViews, ByteKeyCache<DecodePlan> decodePlans,
+			ByteKeyCache<OscSymbol> addressSymbols) {
 		packetFactory = factory;
 		udp = isUDP;
+		this.decodeViews = decodeViews;
+		this.decodePlans = decodePlans;
+		this.addressSymbols = addressSymbols;
 	}
 
 	@Override
 	protected boolean doDecode(IoSession session, IoBuffer in,
 			ProtocolDecoderOutput out) throws Exception {
-		if (udp || in.prefixedDataAvailable(4)) {
-			out.write(decodePacket(in));
+		if (udp) {
+			out.write(decodeFrame(in, in.remaining(), false));
+			return true;
+		} else if (in.prefixedDataAvailable(4, MAX_PACKET_SIZE - 4)) {
+			int length = in.getInt();
+			out.write(decodeFrame(in, length, true));
 			return true;
 		} else {
 			in.mark();
@@ -89,38 +153,179 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 
 	}
 
-	private OscPacket decodePacket(IoBuffer in) throws CharacterCodingException {
-		String typeOrAddress = readString(in);
+	/**
+	 * Decode a whole datagram that was received without going through MINA,
+	 * such as by an OscDatagramReceiver. Any view returned is over the given
+	 * buffer, so is only valid until the buffer is reused.
+	 */
+	public Object decodeDatagram(IoBuffer in) throws CharacterCodingException,
+			ProtocolDecoderException {
+		return decodeFrame(in, in.remaining(), false);
+	}
+
+	/**
+	 * Decode the next packet from a plain ByteBuffer, for transports that
+	 * don't use MINA. For UDP the buffer holds one whole datagram. For TCP it
+	 * holds the data received so far, and null is returned if a complete
+	 * packet hasn't arrived yet, with the buffer left where it was.
+	 * 
+	 * The buffer is left positioned after the packet that was decoded. Views
+	 * from TCP have their own copy of the data so the buffer can be compacted,
+	 * views from UDP are only valid until the buffer is reused.
+	 */
+	public Object decode(ByteBuffer in) throws CharacterCodingException,
+			ProtocolDecoderException {
+		if (wrapped == null || wrapped.buf() != in) {
+			wrapped = IoBuffer.wrap(in);
+		}
+		if (udp) {
+			return decodeFrame(wrapped, in.remaining(), false);
+		}
+		if (in.remaining() < 4) {
+			return null;
+		}
+		int length = in.getInt(in.position());
+		if (length < 0 || length > MAX_PACKET_SIZE - 4) {
+			throw new ProtocolDecoderException("Bad packet length : "
+					+ length);
+		}
+		if (in.remaining() - 4 < length) {
+			return null;
+		}
+		in.position(in.position() + 4);
+		return decodeFrame(wrapped, length, true);
+	}
+
+	/**
+	 * Decode one packet of the given length and leave the buffer positioned
+	 * just after it.
+	 * 
+	 * @param cumulative
+	 *            true if the buffer may be compacted once decoding returns, so
+	 *            views need their own copy of the data.
+	 */
+	private Object decodeFrame(IoBuffer in, int length, boolean cumulative)
+			throws CharacterCodingException, ProtocolDecoderException {
+		int start = in.position();
+		int limit = in.limit();
+		in.limit(start + length);
+		try {
+			if (decodeViews) {
+				if (isBundle(in)) {
+					return createBundleView(in, length, cumulative);
+				}
+				return createView(in, length, cumulative);
+			}
+			return decodePacket(in);
+		} finally {
+			in.limit(limit);
+			in.position(start + length);
+		}
+	}
+
+	private boolean isBundle(IoBuffer in) {
+		return OscBundleView.isBundle(in.buf(), in.position(), in.limit());
+	}
+
+	private OscMessageView createView(IoBuffer in, int length,
+			boolean cumulative) throws CharacterCodingException {
+		int start = in.position();
+		if (cumulative) {
+			ByteBuffer copy = ByteBuffer.allocate(length);
+			copy.put(in.buf().duplicate());
+			return new OscMessageView(copy, 0, length, readAddress(in));
+		}
+		return new OscMessageView(in.buf(), start, length, readAddress(in));
+	}
 
-		logger.debug("Message Type : " + typeOrAddress);
+	private OscBundleView createBundleView(IoBuffer in, int length,
+			boolean cumulative) {
+		if (cumulative) {
+			ByteBuffer copy = ByteBuffer.allocate(length);
+			copy.put(in.buf().duplicate());
+			return new OscBundleView(copy, 0, length);
+		}
+		return new OscBundleView(in.buf(), in.position(), length);
+	}
 
-		if (typeOrAddress.startsWith(OscBundle.BUNDLE_HEADER)) {
+	private OscPacket decodePacket(IoBuffer in)
+			throws CharacterCodingException, ProtocolDecoderException {
+		if (isBundle(in)) {
+			// Skip the header and its terminator
+			in.skip(OscStringCodec.paddedLength(OscBundle.BUNDLE_HEADER
+					.length()));
 			return convertBundle(in);
 		} else {
-			return convertMessage(typeOrAddress, in);
+			return convertMessage(readAddress(in), in);
 		}
 	}
 
+	/**
+	 * Read the address at the buffer position, reusing the symbol from the
+	 * last time it was seen if there is one so no String has to be made.
+	 */
+	private OscSymbol readAddress(IoBuffer in) throws CharacterCodingException {
+		ByteBuffer buf = in.buf();
+		int start = buf.position();
+		int end = start;
+		int limit = buf.limit();
+		while (end < limit && buf.get(end) != 0) {
+			end++;
+		}
+
+		int hash = ByteKeyCache.hash(buf, start, end);
+		OscSymbol symbol = addressSymbols.get(buf, start, end, hash);
+		if (symbol == null) {
+			symbol = new OscSymbol(OscStringCodec.decode(buf, start, end));
+			addressSymbols.put(ByteKeyCache.copy(buf, start, end), hash, symbol);
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Message Address : " + symbol);
+		}
+
+		buf.position(Math.min(limit, start
+				+ OscStringCodec.paddedLength(end - start)));
+		return symbol;
+	}
+
 	/**
 	 * Convert the byte array a bundle. Assumes that the byte array is a bundle.
 	 * 
+	 * Each element is decoded with the buffer limited to the size given in its
+	 * prefix, and the next element is read from the end of that size whatever
+	 * the element decoder consumed.
+	 * 
 	 * @return a bundle containing the data specified in the byte stream
 	 * @throws CharacterCodingException
+	 * @throws ProtocolDecoderException
+	 *             if an element size runs past the end of the bundle
 	 */
 	private OscBundle convertBundle(IoBuffer buffer)
-			throws CharacterCodingException {
-		Date timestamp = readTimeTag(buffer);
-		logger.debug("Bundle at " + timestamp);
+			throws CharacterCodingException, ProtocolDecoderException {
+		long timeTag = readTimeTag(buffer);
 
 		OscBundle bundle = packetFactory.createBundle();
-		bundle.setTimestamp(timestamp);
+		bundle.setTimeTag(timeTag);
 
+		int limit = buffer.limit();
 		while (buffer.hasRemaining()) {
 			int packetLength = buffer.getInt();
-			logger.debug("Packet size : " + packetLength);
-			OscPacket packet = decodePacket(buffer);
-			logger.debug("Added packet : " + packet.isBundle());
-			bundle.addPacket(packet);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Packet size : " + packetLength);
+			}
+			int start = buffer.position();
+			if (packetLength < 0 || packetLength > limit - start) {
+				throw new ProtocolDecoderException("Bundle element size "
+						+ packetLength + " but only " + (limit - start)
+						+ " bytes left");
+			}
+			buffer.limit(start + packetLength);
+			try {
+				bundle.addPacket(decodePacket(buffer));
+			} finally {
+				buffer.limit(limit);
+				buffer.position(start + packetLength);
+			}
 		}
 		return bundle;
 	}
@@ -132,40 +337,39 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 	 * @return a message containing the data specified in the byte stream
 	 * @throws CharacterCodingException
 	 */
-	private OscMessage convertMessage(String address, IoBuffer buffer)
+	private OscMessage convertMessage(OscSymbol address, IoBuffer buffer)
 			throws CharacterCodingException {
 		OscMessage message = packetFactory.createMessage();
-		message.setAddress(address);
+		message.setAddressSymbol(address);
 
-		String types = readString(buffer);
-
-		if (types == null || types.length() == 0) {
-			// we are done
+		if (!buffer.hasRemaining()) {
+			// No type tags, we are done
 			return message;
-		} else {
-			logger.debug("Message types : " + types);
-			// Dont need the comma at the start
-			types = types.substring(1);
 		}
 
-		// Skip first char is it should be a comma
-		for (int i = 0; i < types.length(); ++i) {
-			char type = types.charAt(i);
+		DecodePlan plan = readDecodePlan(buffer);
+		byte[] ops = plan.ops;
+		int array = 0;
+		for (int i = 0; i < ops.length; ++i) {
+			char type = (char) ops[i];
 
 			if ('[' == type) {
-				int closePos = types.indexOf(']', i + 1);
+				byte[] typesInArray = plan.arrayOps[array];
 
-				// Get the type string for the array
-				String typesInArray = types.substring(i + 1, closePos);
+				if (plan.arrayElementTypes[array] != 0) {
+					readNumberArray(message, plan.arrayElementTypes[array],
+							typesInArray.length, buffer);
+					array++;
+					continue;
+				}
 
 				// Make a new array for the decoded data
-				Object[] array = new Object[typesInArray.length()];
-				for (int j = 0; j < array.length; j++) {
-					array[j] = readArgument(typesInArray.charAt(j), buffer);
+				Object[] values = new Object[typesInArray.length];
+				for (int j = 0; j < values.length; j++) {
+					values[j] = readArgument((char) typesInArray[j], buffer);
 				}
-				message.addArgument(array, typesInArray);
-				// move to end of array section
-				i = closePos;
+				message.addArgument(values, plan.arrayTypes[array]);
+				array++;
 			} else {
 				decodeArgument(message, type, buffer);
 			}
@@ -173,6 +377,61 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 		return message;
 	}
 
+	/**
+	 * Read an array of floats, ints or doubles through a view of the buffer
+	 * rather than one element at a time.
+	 */
+	private void readNumberArray(OscMessage message, byte type, int length,
+			IoBuffer buffer) {
+		switch (type) {
+		case 'f':
+			float[] floats = new float[length];
+			buffer.asFloatBuffer().get(floats);
+			buffer.skip(length * 4);
+			message.addArgument(floats);
+			break;
+		case 'i':
+			int[] ints = new int[length];
+			buffer.asIntBuffer().get(ints);
+			buffer.skip(length * 4);
+			message.addArgument(ints);
+			break;
+		case 'd':
+			double[] doubles = new double[length];
+			buffer.asDoubleBuffer().get(doubles);
+			buffer.skip(length * 8);
+			message.addArgument(doubles);
+			break;
+		}
+	}
+
+	/**
+	 * Find the plan for the type tag string at the buffer position, compiling
+	 * it the first time the signature is seen, and skip past the tags.
+	 */
+	private DecodePlan readDecodePlan(IoBuffer buffer) {
+		ByteBuffer buf = buffer.buf();
+		int start = buf.position();
+		int end = start;
+		int limit = buf.limit();
+		while (end < limit && buf.get(end) != 0) {
+			end++;
+		}
+
+		int hash = ByteKeyCache.hash(buf, start, end);
+		DecodePlan plan = decodePlans.get(buf, start, end, hash);
+		if (plan == null) {
+			byte[] tags = ByteKeyCache.copy(buf, start, end);
+			plan = DecodePlan.compile(tags);
+			decodePlans.put(tags, hash, plan);
+			logger.debug("Compiled decode plan for " + new String(tags));
+		}
+
+		// Skip the terminating zero and padding
+		buffer.position(Math.min(limit, start + ((end - start + 4) & ~3)));
+		return plan;
+	}
+
 	/**
 	 * Read a string from the byte stream.
 	 * 
@@ -180,17 +439,7 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 	 * @throws CharacterCodingException
 	 */
 	private String readString(IoBuffer buffer) throws CharacterCodingException {
-		logger.debug("Pre String : " + buffer.position());
-		String str = buffer.getString(csd);
-		logger.debug("Post String : " + buffer.position());
-		logger.debug("String length : " + str.length());
-		int pad = (str.length() + 1) % 4;
-		if (pad > 0) {
-			logger.debug("Skip " + pad);
-			buffer.skip(4 - pad);
-		}
-		logger.debug("Post skip " + buffer.position());
-		return str;
+		return OscStringCodec.read(buffer.buf());
 	}
 
 	/**
@@ -203,8 +452,10 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 	 */
 	private Object readArgument(char c, IoBuffer buffer)
 			throws CharacterCodingException {
-		logger.debug("Read Arg " + c + " : " + buffer.position() + " : "
-				+ buffer.limit());
+		if (logger.isDebugEnabled()) {
+			logger.debug("Read Arg " + c + " : " + buffer.position() + " : "
+					+ buffer.limit());
+		}
 		switch (c) {
 		case 'i':
 			return buffer.getInt();
@@ -232,21 +483,23 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 
 	private void decodeArgument(OscMessage message, char c, IoBuffer buffer)
 			throws CharacterCodingException {
-		logger.debug("Read Arg " + c + " : " + buffer.position() + " : "
-				+ buffer.limit());
+		if (logger.isDebugEnabled()) {
+			logger.debug("Read Arg " + c + " : " + buffer.position() + " : "
+					+ buffer.limit());
+		}
 
 		switch (c) {
 		case 'i':
-			message.addArgument(buffer.getInt());
+			message.addInt(buffer.getInt());
 			break;
 		case 'h':
-			message.addArgument(BigInteger.valueOf(buffer.getLong()));
+			message.addLong(buffer.getLong());
 			break;
 		case 'f':
-			message.addArgument(buffer.getFloat());
+			message.addFloat(buffer.getFloat());
 			break;
 		case 'd':
-			message.addArgument(buffer.getDouble());
+			message.addDouble(buffer.getDouble());
 			break;
 		case 's':
 		case 'S':
@@ -271,60 +524,22 @@ public class OscDataDecoder extends CumulativeProtocolDecoder {
 		int size = buffer.getInt();
 		byte[] data = new byte[size];
 		buffer.get(data);
+		int mod = size % 4;
+		if (mod > 0) {
+			buffer.skip(4 - mod);
+		}
 		return data;
 	}
 
 	/**
-	 * Read the time tag and convert it to a Java Date object. A timestamp is a
-	 * 64 bit number representing the time in NTP format. The first 32 bits are
-	 * seconds since 1900, the second 32 bits are fractions of a second.
+	 * Read the time tag. A timestamp is a 64 bit number representing the time
+	 * in NTP format. The first 32 bits are seconds since 1900, the second 32
+	 * bits are fractions of a second. It is kept in that form, see OscTimeTag
+	 * for conversions.
 	 * 
-	 * @return a Date
+	 * @return the raw NTP time
 	 */
-	private Date readTimeTag(IoBuffer buffer) {
-		byte[] secondBytes = new byte[8];
-		byte[] fractionBytes = new byte[8];
-		for (int i = 0; i < 4; i++) {
-			// clear the higher order 4 bytes
-			secondBytes[i] = 0;
-			fractionBytes[i] = 0;
-		}
-		// while reading in the seconds & fraction, check if
-		// this timetag has immediate semantics
-		boolean isImmediate = true;
-		for (int i = 4; i < 8; i++) {
-			secondBytes[i] = buffer.get();
-			if (secondBytes[i] > 0)
-				isImmediate = false;
-		}
-		for (int i = 4; i < 8; i++) {
-			fractionBytes[i] = buffer.get();
-			if (i < 7) {
-				if (fractionBytes[i] > 0)
-					isImmediate = false;
-			} else {
-				if (fractionBytes[i] > 1)
-					isImmediate = false;
-			}
-		}
-
-		if (isImmediate) {
-			return OscBundle.IMMEDIATELY;
-		}
-
-		BigInteger secondsFrom1900 = new BigInteger(secondBytes);
-		long secondsFromEpoch = secondsFrom1900.longValue()
-				- OscBundle.SECONDS_TO_EPOCH.longValue();
-		if (secondsFromEpoch < 0)
-			secondsFromEpoch = 0; // no point maintaining
-		// times in the distant past
-		long fraction = (new BigInteger(fractionBytes).longValue());
-		// the next line was cribbed from jakarta commons-net's NTP TimeStamp
-		// code
-		fraction = (fraction * 1000) / 0x100000000L;
-		// I don't where, but I'm losing 1ms somewhere...
-		fraction = (fraction > 0) ? fraction + 1 : 0;
-		long millisecs = (secondsFromEpoch * 1000) + fraction;
-		return new Date(millisecs);
+	private long readTimeTag(IoBuffer buffer) {
+		return buffer.getLong();
 	}
 }
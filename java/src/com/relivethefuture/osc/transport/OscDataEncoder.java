@@ -22,11 +22,9 @@
 package com.relivethefuture.osc.transport;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Iterator;
 
 import org.apache.mina.core.buffer.IoBuffer;
@@ -38,14 +36,20 @@ import org.slf4j.LoggerFactory;
 
 import com.relivethefuture.osc.data.OscBundle;
 import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageTemplate;
 import com.relivethefuture.osc.data.OscPacket;
+import com.relivethefuture.osc.data.OscStringCodec;
 
+/**
+ * Encodes OSC packets for sending over UDP or TCP.
+ * 
+ * An encoder keeps no state between packets, so one can be shared by any
+ * number of sessions and threads.
+ */
 public class OscDataEncoder implements ProtocolEncoder {
 	final Logger logger = LoggerFactory.getLogger(OscDataEncoder.class);
 
-	private static CharsetEncoder cse = Charset.forName("UTF-8").newEncoder();
-
-	private boolean udp = false;
+	private final boolean udp;
 
 	public OscDataEncoder(Boolean isUDP) {
 		udp = isUDP;
@@ -90,8 +94,10 @@ public class OscDataEncoder implements ProtocolEncoder {
 	 */
 	public void encodePacket(OscPacket packet, IoBuffer buffer,
 			boolean writeSize) throws CharacterCodingException {
-		logger.debug("Encode Packet : " + packet.isBundle() + " : "
-				+ packet.isValid());
+		if (logger.isDebugEnabled()) {
+			logger.debug("Encode Packet : " + packet.isBundle() + " : "
+					+ packet.isValid());
+		}
 
 		if (writeSize) {
 			buffer.putInt(packet.getSize());
@@ -99,11 +105,24 @@ public class OscDataEncoder implements ProtocolEncoder {
 
 		if (packet.isBundle()) {
 			encodeBundle((OscBundle) packet, buffer);
+		} else if (packet instanceof OscMessageTemplate) {
+			// Already encoded, just copy the bytes
+			((OscMessageTemplate) packet).writeTo(buffer.buf());
 		} else {
 			encodeMessage((OscMessage) packet, buffer);
 		}
 	}
 
+	/**
+	 * Write an OscPacket into a plain ByteBuffer, for transports that don't
+	 * use MINA. The buffer must have room for the packet, plus 4 bytes if
+	 * writeSize is set.
+	 */
+	public void encodePacket(OscPacket packet, ByteBuffer buffer,
+			boolean writeSize) throws CharacterCodingException {
+		encodePacket(packet, IoBuffer.wrap(buffer), writeSize);
+	}
+
 	/**
 	 * Write an OSC bundle to a buffer.
 	 * 
@@ -117,7 +136,7 @@ public class OscDataEncoder implements ProtocolEncoder {
 			throws CharacterCodingException {
 		write(OscBundle.BUNDLE_HEADER, buffer);
 
-		writeTimestamp(bundle.getTimestamp(), buffer);
+		writeTimestamp(bundle.getTimeTag(), buffer);
 
 		for (Iterator<OscPacket> i = bundle.getPackets().iterator(); i
 				.hasNext();) {
@@ -130,20 +149,11 @@ public class OscDataEncoder implements ProtocolEncoder {
 		}
 	}
 
-	private void writeTimestamp(Date timestamp, IoBuffer buffer) {
-		if ((timestamp == null) || (timestamp == OscBundle.IMMEDIATELY)) {
-			buffer.putInt(0);
-			buffer.putInt(1);
-		} else {
-			long milliseconds = timestamp.getTime();
-			long secondsSinceEpoch = (long) (milliseconds / 1000);
-			long seconds = secondsSinceEpoch
-					+ OscBundle.SECONDS_TO_EPOCH.longValue();
-			long fraction = ((milliseconds % 1000) * 0x100000000L) / 1000;
-
-			buffer.putInt((int) seconds);
-			buffer.putInt((int) fraction);
-		}
+	/**
+	 * Write the raw NTP time tag, see OscTimeTag.
+	 */
+	private void writeTimestamp(long timeTag, IoBuffer buffer) {
+		buffer.putLong(timeTag);
 	}
 
 	/**
@@ -159,18 +169,56 @@ public class OscDataEncoder implements ProtocolEncoder {
 
 		write(addr, buffer);
 
-		ArrayList<Object> args = message.getArguments();
-
 		String typeTags = message.getTypeTags();
 
 		write(typeTags, buffer);
 
+		if (message.hasPrimitiveStorage()) {
+			writePrimitiveArguments(message, buffer);
+			return;
+		}
+
+		ArrayList<Object> args = message.getArguments();
+
 		for (Iterator<Object> i = args.iterator(); i.hasNext();) {
 			Object arg = (Object) i.next();
 			write(arg, buffer);
 		}
 	}
 
+	/**
+	 * Write the arguments of a message using primitive storage straight from
+	 * its slots.
+	 */
+	private void writePrimitiveArguments(OscMessage message, IoBuffer buffer)
+			throws CharacterCodingException {
+		int count = message.getArgumentCount();
+		for (int i = 0; i < count; i++) {
+			switch (message.getArgumentType(i)) {
+			case 'i':
+				buffer.putInt(message.getInt(i));
+				break;
+			case 'f':
+				buffer.putFloat(message.getFloat(i));
+				break;
+			case 'h':
+				buffer.putLong(message.getLong(i));
+				break;
+			case 'd':
+				buffer.putDouble(message.getDouble(i));
+				break;
+			case 'c':
+				buffer.putInt(message.getChar(i));
+				break;
+			case 'T':
+			case 'F':
+				break;
+			default:
+				write(message.getObject(i), buffer);
+			}
+		}
+	}
+
 	private void write(Object arg, IoBuffer buffer)
 			throws CharacterCodingException {
 		if (arg == null) {
@@ -180,11 +228,33 @@ public class OscDataEncoder implements ProtocolEncoder {
 
 		if (arg instanceof byte[]) {
 			byte[] bytes = (byte[]) arg;
+			buffer.putInt(bytes.length);
 			buffer.put(bytes);
 			padBuffer(bytes.length, buffer);
 			return;
 		}
 
+		if (arg instanceof float[]) {
+			float[] floats = (float[]) arg;
+			buffer.asFloatBuffer().put(floats);
+			buffer.skip(floats.length * 4);
+			return;
+		}
+
+		if (arg instanceof int[]) {
+			int[] ints = (int[]) arg;
+			buffer.asIntBuffer().put(ints);
+			buffer.skip(ints.length * 4);
+			return;
+		}
+
+		if (arg instanceof double[]) {
+			double[] doubles = (double[]) arg;
+			buffer.asDoubleBuffer().put(doubles);
+			buffer.skip(doubles.length * 8);
+			return;
+		}
+
 		if (arg instanceof Object[]) {
 			Object[] theArray = (Object[]) arg;
 			for (int i = 0; i < theArray.length; ++i) {
@@ -212,20 +282,26 @@ public class OscDataEncoder implements ProtocolEncoder {
 			buffer.putLong(((BigInteger) arg).longValue());
 			return;
 		}
+
+		if (arg instanceof Double) {
+			buffer.putDouble((Double) arg);
+			return;
+		}
+
+		if (arg instanceof Character) {
+			buffer.putInt((Character) arg);
+			return;
+		}
 	}
 
 	private void write(String s, IoBuffer buffer)
 			throws CharacterCodingException {
-		buffer.putString(s, cse);
-		buffer.put((byte) 0);
-		padBuffer(s.length() + 1, buffer);
+		OscStringCodec.write(s, buffer.buf());
 	}
 
 	private void padBuffer(int itemLength, IoBuffer buffer) {
-		int mod = itemLength % 4;
-		if (mod > 0) {
-			byte[] padding = new byte[4 - mod];
-			buffer.put(padding);
+		for (int mod = itemLength % 4; mod > 0 && mod < 4; mod++) {
+			buffer.put((byte) 0);
 		}
 	}
 }
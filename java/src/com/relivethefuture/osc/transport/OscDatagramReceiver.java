@@ -0,0 +1,375 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscPacketFactory;
+
+/**
+ * Receives UDP packets on several sockets bound to the same port with
+ * SO_REUSEPORT, each read by a thread of its own, so the kernel spreads
+ * senders across them rather than everything going through one selector.
+ * 
+ * Each socket has its own receive buffer and decoder, the decoders sharing
+ * their caches, and hands what it decodes to the server's handler, which
+ * passes it on to the dispatch stage if there is one. Packets from one sender
+ * always arrive on the same socket so stay in order, but there is no ordering
+ * between senders.
+ * 
+ * Rather than waking up for every packet each thread waits for its socket to
+ * become readable and then drains every datagram waiting, up to MAX_BATCH,
+ * into a buffer it allocated up front. The batch is decoded and handed to the
+ * listeners with a single deliver() call, so OscBatchListeners get the lot at
+ * once. Views delivered this way are over the drain buffer and are only valid
+ * until the listener returns. With a dispatch stage the packets are passed on
+ * one at a time as usual.
+ * 
+ * Where SO_REUSEPORT isn't available, before Java 9 or on platforms that don't
+ * support it, a single socket is bound instead. The option is looked up by
+ * reflection so this still builds and runs on Java 5.
+ */
+public class OscDatagramReceiver {
+	final Logger logger = LoggerFactory.getLogger(OscDatagramReceiver.class);
+
+	/**
+	 * Largest payload a UDP datagram can carry.
+	 */
+	public static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/**
+	 * Size of the buffer each socket drains datagrams into. Small packets are
+	 * packed into it one after another, so it holds a full batch of typical
+	 * OSC messages with room left for one maximum size datagram.
+	 */
+	public static final int DRAIN_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Most datagrams read from a socket before they are decoded and delivered.
+	 */
+	public static final int MAX_BATCH = 64;
+
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	// DatagramChannel.setOption() and SO_REUSEPORT, null if not available
+	private static final Method SET_OPTION = findSetOption();
+	private static final Object SO_REUSEPORT = findReusePort();
+
+	private final OscServerIoHandler handler;
+	private final OscCodecFactory codecs;
+	private final int socketCount;
+	private final List<Receiver> receivers = new ArrayList<Receiver>();
+
+	private int receiveBufferSize = 0;
+
+	private volatile boolean running;
+
+	/**
+	 * @param socketCount
+	 *            number of sockets to bind, 0 for one per processor
+	 */
+	public OscDatagramReceiver(OscServerIoHandler handler,
+			OscPacketFactory factory, boolean decodeViews, int socketCount) {
+		if (socketCount < 0) {
+			throw new IllegalArgumentException("Bad socket count : "
+					+ socketCount);
+		}
+		if (socketCount == 0) {
+			socketCount = Runtime.getRuntime().availableProcessors();
+		}
+		this.handler = handler;
+		this.codecs = new OscCodecFactory(factory, true, decodeViews);
+		this.socketCount = socketCount;
+	}
+
+	/**
+	 * Set the socket receive buffer size, SO_RCVBUF, to absorb larger bursts.
+	 * 0 leaves the operating system's default. Set before bind().
+	 */
+	public void setReceiveBufferSize(int size) {
+		receiveBufferSize = size;
+	}
+
+	/**
+	 * Can more than one socket be bound to the same port?
+	 */
+	public static boolean isReusePortSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	public synchronized void bind(InetSocketAddress address) throws IOException {
+		if (running) {
+			throw new IllegalStateException("Already bound");
+		}
+		int count = socketCount;
+		if (count > 1 && SO_REUSEPORT == null) {
+			logger.warn("SO_REUSEPORT is not available, receiving on one socket");
+			count = 1;
+		}
+		running = true;
+		try {
+			for (int i = 0; i < count; i++) {
+				DatagramChannel channel = DatagramChannel.open();
+				receivers.add(new Receiver(channel, i));
+				DatagramSocket socket = channel.socket();
+				socket.setReuseAddress(true);
+				if (count > 1) {
+					setReusePort(channel);
+				}
+				if (receiveBufferSize > 0) {
+					socket.setReceiveBufferSize(receiveBufferSize);
+				}
+				socket.bind(address);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (Receiver receiver : receivers) {
+			receiver.start();
+		}
+		logger.info("Receiving on " + count + " sockets");
+	}
+
+	/**
+	 * The number of sockets actually bound.
+	 */
+	public synchronized int getBoundCount() {
+		return receivers.size();
+	}
+
+	/**
+	 * Datagrams received across all the sockets.
+	 */
+	public synchronized long getReceivedCount() {
+		long total = 0;
+		for (Receiver receiver : receivers) {
+			total += receiver.receivedCount;
+		}
+		return total;
+	}
+
+	/**
+	 * Times the sockets were found readable. Packets received divided by this
+	 * is the average batch size.
+	 */
+	public synchronized long getWakeupCount() {
+		long total = 0;
+		for (Receiver receiver : receivers) {
+			total += receiver.wakeupCount;
+		}
+		return total;
+	}
+
+	public synchronized void close() {
+		running = false;
+		for (Receiver receiver : receivers) {
+			try {
+				receiver.channel.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close socket", e);
+			}
+			// The socket isn't really closed until its selector lets go of
+			// it, so wait for that before the port can be bound again
+			receiver.selector.wakeup();
+			try {
+				receiver.join(CLOSE_TIMEOUT);
+				if (!receiver.isAlive()) {
+					// In case bind() failed before it was started
+					receiver.selector.close();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				logger.warn("Failed to close selector", e);
+			}
+		}
+		receivers.clear();
+	}
+
+	private static Method findSetOption() {
+		try {
+			return DatagramChannel.class.getMethod("setOption", Class
+					.forName("java.net.SocketOption"), Object.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static Object findReusePort() {
+		if (SET_OPTION == null) {
+			return null;
+		}
+		try {
+			return Class.forName("java.net.StandardSocketOptions").getField(
+					"SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void setReusePort(DatagramChannel channel)
+			throws IOException {
+		try {
+			SET_OPTION.invoke(channel, SO_REUSEPORT, Boolean.TRUE);
+		} catch (Exception e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			IOException failed = new IOException("Failed to set SO_REUSEPORT");
+			failed.initCause(cause != null ? cause : e);
+			throw failed;
+		}
+	}
+
+	/**
+	 * One socket and the thread that reads it.
+	 */
+	private class Receiver extends Thread {
+		final DatagramChannel channel;
+		final Selector selector;
+		final ByteBuffer data = ByteBuffer.allocate(DRAIN_BUFFER_SIZE);
+		final IoBuffer in = IoBuffer.wrap(data);
+		final OscDataDecoder decoder = codecs.createDecoder();
+
+		final int[] starts = new int[MAX_BATCH];
+		final int[] ends = new int[MAX_BATCH];
+		final SocketAddress[] sources = new SocketAddress[MAX_BATCH];
+		final Object[] packets = new Object[MAX_BATCH];
+
+		volatile long receivedCount;
+		volatile long wakeupCount;
+
+		Receiver(DatagramChannel channel, int index) throws IOException {
+			super("OSC receiver " + index);
+			this.channel = channel;
+			this.selector = Selector.open();
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ);
+				while (running) {
+					selector.select();
+					selector.selectedKeys().clear();
+					wakeupCount++;
+					int count;
+					while ((count = drain()) > 0) {
+						receivedCount += count;
+						handle(count);
+						if (count < MAX_BATCH) {
+							break;
+						}
+					}
+				}
+			} catch (ClosedChannelException e) {
+				// Closed by close()
+			} catch (IOException e) {
+				if (running) {
+					logger.error("Receive failed", e);
+				}
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					logger.warn("Failed to close selector", e);
+				}
+			}
+		}
+
+		/**
+		 * Read datagrams one after another into the buffer until the socket
+		 * is empty, the batch is full or there isn't room for another.
+		 * 
+		 * @return the number read
+		 */
+		private int drain() throws IOException {
+			data.clear();
+			int count = 0;
+			while (count < MAX_BATCH
+					&& data.remaining() >= MAX_DATAGRAM_SIZE) {
+				int start = data.position();
+				SocketAddress source = channel.receive(data);
+				if (source == null) {
+					break;
+				}
+				starts[count] = start;
+				ends[count] = data.position();
+				sources[count] = source;
+				count++;
+				// Keep the next packet aligned
+				data.position((data.position() + 3) & ~3);
+			}
+			return count;
+		}
+
+		private void handle(int count) {
+			boolean staged = handler.getDispatchStage() != null;
+			int decoded = 0;
+			for (int i = 0; i < count; i++) {
+				in.limit(ends[i]);
+				in.position(starts[i]);
+				try {
+					Object packet = decoder.decodeDatagram(in);
+					if (staged) {
+						handler.packetReceived(sources[i], packet);
+					} else {
+						packets[decoded++] = packet;
+					}
+				} catch (Exception e) {
+					logger.warn("Dropped packet from " + sources[i], e);
+				}
+			}
+			// Views read up to the end of their own packet
+			in.limit(in.capacity());
+			if (decoded > 0) {
+				try {
+					handler.deliver(packets, decoded);
+				} catch (RuntimeException e) {
+					logger.error("Listener failed", e);
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				packets[i] = null;
+				sources[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+
+/**
+ * Somewhere between the decoder and the listeners that packets can be passed
+ * through, to move listener calls off the IO thread or to change the order or
+ * time in which packets are delivered.
+ * 
+ * The server hands each decoded packet to dispatch() on the IO thread, and the
+ * stage calls OscServerIoHandler.deliver() when the listeners should see it.
+ * Packet views are copied out of the receive buffer before they reach a stage
+ * so a stage can keep hold of them.
+ */
+public interface OscDispatchStage {
+	/**
+	 * Called when the server starts, before any packets are dispatched.
+	 */
+	void start(OscServerIoHandler handler);
+
+	/**
+	 * @param source
+	 *            where the packet came from, may be null
+	 * @param packet
+	 *            an OscMessage, OscBundle or a copied packet view
+	 */
+	void dispatch(SocketAddress source, Object packet);
+
+	/**
+	 * Called when the server stops. Packets not yet delivered may be dropped.
+	 */
+	void stop();
+}
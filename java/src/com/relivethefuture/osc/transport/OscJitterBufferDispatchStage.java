@@ -0,0 +1,467 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
+import com.relivethefuture.osc.data.OscTimeTag;
+
+/**
+ * Smooths out time tagged bundles from each sender, putting them back in
+ * order and playing them out with the same spacing they were sent with.
+ * 
+ * For each sender the stage measures how long bundles take to arrive, taking
+ * the time tag as the time they were sent, and how much that varies using the
+ * running jitter estimate from RFC 3550. A bundle is played out at its time
+ * tag plus a delay that follows the average transit time plus a few times the
+ * jitter, so the delay grows when the network gets bursty and shrinks again
+ * when it settles. The delay is eased towards its new value rather than
+ * jumping so the spacing between bundles stays even. The
+ * sender's clock doesn't need to match ours, only to run at the same rate.
+ * 
+ * Bundles that turn up after a later bundle from the same sender has been
+ * played out are counted as late and dropped. Each sender has a fixed size
+ * buffer, when it is full the earliest bundle is played out straight away,
+ * and the number of senders tracked is fixed too, so memory use is bounded.
+ * Messages, immediate bundles and senders over the limit go straight through.
+ * 
+ * Buffered bundles are all played out by the playout thread, which takes
+ * everything due while holding the lock and delivers it after letting go, so
+ * a slow listener never holds up dispatch(). Bundles played out early queue
+ * up for the playout thread to keep them in order, and if it falls a whole
+ * buffer behind dispatch() waits for it.
+ * 
+ * Packets are handed to the next stage if one is given, otherwise delivered
+ * to the listeners on the playout thread.
+ */
+public class OscJitterBufferDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory
+			.getLogger(OscJitterBufferDispatchStage.class);
+
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+	public static final int DEFAULT_MAX_SOURCES = 64;
+
+	/**
+	 * Multiple of the jitter added to the playout delay.
+	 */
+	public static final int JITTER_MULTIPLE = 4;
+
+	private static final long IDLE_NANOS = 1000000000L;
+
+	private final OscDispatchStage next;
+	private final int bufferSize;
+	private final int maxSources;
+	private final HashMap<SocketAddress, Source> sources = new HashMap<SocketAddress, Source>();
+
+	private long lateCount;
+	private long overflowCount;
+	private long deliveredCount;
+
+	// Bundles played out early, waiting for the playout thread
+	private final SocketAddress[] readySources;
+	private final Object[] readyPackets;
+	private int readyHead;
+	private int readyCount;
+
+	// Bundles taken out by the playout thread, to deliver once it has let go
+	// of the lock
+	private SocketAddress[] batchSources = new SocketAddress[16];
+	private Object[] batchPackets = new Object[16];
+	private int batchCount;
+
+	private OscServerIoHandler handler;
+	private Thread playout;
+	private volatile boolean running;
+	private long startNanos;
+	private long startWallNanos;
+
+	public OscJitterBufferDispatchStage() {
+		this(null, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_SOURCES);
+	}
+
+	/**
+	 * @param next
+	 *            stage to hand packets to when they are played out, null to
+	 *            deliver them directly
+	 * @param bufferSize
+	 *            most bundles held for one sender
+	 * @param maxSources
+	 *            most senders to buffer for at once
+	 */
+	public OscJitterBufferDispatchStage(OscDispatchStage next, int bufferSize,
+			int maxSources) {
+		if (bufferSize < 1 || maxSources < 1) {
+			throw new IllegalArgumentException("Bad jitter buffer settings");
+		}
+		this.next = next;
+		this.bufferSize = bufferSize;
+		this.maxSources = maxSources;
+		readySources = new SocketAddress[bufferSize];
+		readyPackets = new Object[bufferSize];
+	}
+
+	public void start(OscServerIoHandler handler) {
+		this.handler = handler;
+		if (next != null) {
+			next.start(handler);
+		}
+		startWallNanos = System.currentTimeMillis() * 1000000L;
+		startNanos = System.nanoTime();
+		running = true;
+		playout = new Thread("OSC jitter buffer") {
+			public void run() {
+				runPlayout();
+			}
+		};
+		playout.setDaemon(true);
+		playout.setPriority(Thread.MAX_PRIORITY);
+		playout.start();
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		long timeTag = OscTimeTag.IMMEDIATE;
+		if (packet instanceof OscBundle) {
+			timeTag = ((OscBundle) packet).getTimeTag();
+		} else if (packet instanceof OscBundleView) {
+			timeTag = ((OscBundleView) packet).getTimeTag();
+		}
+		if (OscTimeTag.isImmediate(timeTag) || source == null) {
+			forward(source, packet);
+			return;
+		}
+
+		Object direct = packet;
+		synchronized (this) {
+			Source buffer = getSource(source);
+			if (buffer != null) {
+				long playoutTime = buffer.playoutTime(
+						OscTimeTag.ntpToNanos(timeTag), System.nanoTime());
+				if (playoutTime < buffer.lastPlayout) {
+					lateCount++;
+					return;
+				}
+				buffer.add(playoutTime, packet);
+				direct = null;
+				if (buffer.size > bufferSize) {
+					// Full, play out the earliest straight away
+					overflowCount++;
+					buffer.lastPlayout = buffer.times[0];
+					Object overflow = buffer.poll();
+					if (!addReady(source, overflow)) {
+						// Stopped, so nothing can overtake it
+						direct = overflow;
+					}
+				}
+				LockSupport.unpark(playout);
+			}
+		}
+		if (direct != null) {
+			forward(source, direct);
+		}
+	}
+
+	/**
+	 * Queue a bundle played out early for the playout thread, waiting for room
+	 * if it has fallen behind. Called holding the lock.
+	 * 
+	 * @return false if the stage stopped before there was room
+	 */
+	private boolean addReady(SocketAddress source, Object packet) {
+		while (readyCount == readyPackets.length) {
+			if (!running) {
+				return false;
+			}
+			LockSupport.unpark(playout);
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		int tail = (readyHead + readyCount) % readyPackets.length;
+		readySources[tail] = source;
+		readyPackets[tail] = packet;
+		readyCount++;
+		return true;
+	}
+
+	public void stop() {
+		running = false;
+		if (playout != null) {
+			playout.interrupt();
+		}
+		synchronized (this) {
+			// Let go of any dispatch() waiting for room
+			notifyAll();
+		}
+		if (next != null) {
+			next.stop();
+		}
+	}
+
+	/**
+	 * Bundles dropped because a later one had already been played out.
+	 */
+	public synchronized long getLateCount() {
+		return lateCount;
+	}
+
+	/**
+	 * Bundles played out early because a sender's buffer was full.
+	 */
+	public synchronized long getOverflowCount() {
+		return overflowCount;
+	}
+
+	public synchronized long getDeliveredCount() {
+		return deliveredCount;
+	}
+
+	/**
+	 * The delay currently added for a sender on top of the average transit
+	 * time, in nanoseconds, or -1 if it isn't being tracked.
+	 */
+	public synchronized long getJitterDelayNanos(SocketAddress source) {
+		Source buffer = sources.get(source);
+		return (buffer == null) ? -1 : (long) (buffer.delay - buffer.transit);
+	}
+
+	/**
+	 * The current RFC 3550 jitter estimate for a sender, in nanoseconds, or -1
+	 * if it isn't being tracked.
+	 */
+	public synchronized long getJitterNanos(SocketAddress source) {
+		Source buffer = sources.get(source);
+		return (buffer == null) ? -1 : (long) buffer.jitter;
+	}
+
+	/**
+	 * Find the buffer for a sender, making one if there is room.
+	 */
+	private Source getSource(SocketAddress address) {
+		Source source = sources.get(address);
+		if (source == null) {
+			if (sources.size() >= maxSources) {
+				// Make room by forgetting a sender with nothing waiting
+				for (Iterator<Map.Entry<SocketAddress, Source>> i = sources
+						.entrySet().iterator(); i.hasNext();) {
+					if (i.next().getValue().size == 0) {
+						i.remove();
+						break;
+					}
+				}
+				if (sources.size() >= maxSources) {
+					return null;
+				}
+			}
+			source = new Source(address);
+			sources.put(address, source);
+		}
+		return source;
+	}
+
+	private void runPlayout() {
+		while (running) {
+			long wait = takeDue();
+			if (batchCount > 0) {
+				for (int i = 0; i < batchCount; i++) {
+					forward(batchSources[i], batchPackets[i]);
+					batchSources[i] = null;
+					batchPackets[i] = null;
+				}
+				batchCount = 0;
+				continue;
+			}
+			LockSupport.parkNanos(wait);
+			if (Thread.interrupted()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Take the bundles played out early and every bundle that is due into the
+	 * batch, in the order they are to be delivered.
+	 * 
+	 * @return how long until the next bundle is due
+	 */
+	private synchronized long takeDue() {
+		if (readyCount > 0) {
+			while (readyCount > 0) {
+				addToBatch(readySources[readyHead], readyPackets[readyHead]);
+				readySources[readyHead] = null;
+				readyPackets[readyHead] = null;
+				readyHead = (readyHead + 1) % readyPackets.length;
+				readyCount--;
+			}
+			notifyAll();
+		}
+
+		long wait = IDLE_NANOS;
+		long now = System.nanoTime();
+		for (Source source : sources.values()) {
+			while (source.size > 0 && source.times[0] - now <= 0) {
+				source.lastPlayout = source.times[0];
+				addToBatch(source.address, source.poll());
+			}
+			if (source.size > 0) {
+				wait = Math.min(wait, source.times[0] - now);
+			}
+		}
+		deliveredCount += batchCount;
+		return wait;
+	}
+
+	private void addToBatch(SocketAddress source, Object packet) {
+		if (batchCount == batchPackets.length) {
+			SocketAddress[] grownSources = new SocketAddress[batchCount * 2];
+			Object[] grownPackets = new Object[batchCount * 2];
+			System.arraycopy(batchSources, 0, grownSources, 0, batchCount);
+			System.arraycopy(batchPackets, 0, grownPackets, 0, batchCount);
+			batchSources = grownSources;
+			batchPackets = grownPackets;
+		}
+		batchSources[batchCount] = source;
+		batchPackets[batchCount] = packet;
+		batchCount++;
+	}
+
+	private void forward(SocketAddress source, Object packet) {
+		if (next != null) {
+			next.dispatch(source, packet);
+			return;
+		}
+		try {
+			handler.deliver(packet);
+		} catch (RuntimeException e) {
+			logger.error("Listener failed", e);
+		}
+	}
+
+	/**
+	 * The bundles waiting from one sender in a heap ordered by playout time,
+	 * along with its transit and jitter estimates.
+	 */
+	private class Source {
+		final SocketAddress address;
+		// One spare place for a packet added to a full buffer
+		final long[] times = new long[bufferSize + 1];
+		final Object[] packets = new Object[bufferSize + 1];
+		int size;
+
+		// Set once the first arrival has given the estimates a starting point
+		boolean estimated;
+		double transit;
+		double jitter;
+		long lastTransit;
+		double delay;
+		long lastPlayout = Long.MIN_VALUE;
+
+		Source(SocketAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Update the estimates with a new arrival and work out when it should
+		 * be played out, on the local clock.
+		 */
+		long playoutTime(long sentWallNanos, long now) {
+			long arrivedWallNanos = startWallNanos + (now - startNanos);
+			long sample = arrivedWallNanos - sentWallNanos;
+			if (!estimated) {
+				transit = sample;
+			} else {
+				// RFC 3550 section 6.4.1
+				long difference = Math.abs(sample - lastTransit);
+				jitter += (difference - jitter) / 16;
+				transit += (sample - transit) / 16;
+			}
+			lastTransit = sample;
+
+			// Ease the delay towards the target so that changes to it don't
+			// show up as gaps between bundles
+			double target = transit + JITTER_MULTIPLE * jitter;
+			if (!estimated) {
+				delay = target;
+				estimated = true;
+			} else {
+				delay += (target - delay) / 16;
+			}
+			return startNanos
+					+ (sentWallNanos + (long) delay - startWallNanos);
+		}
+
+		void add(long time, Object packet) {
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (times[parent] <= time) {
+					break;
+				}
+				times[i] = times[parent];
+				packets[i] = packets[parent];
+				i = parent;
+			}
+			times[i] = time;
+			packets[i] = packet;
+		}
+
+		Object poll() {
+			Object first = packets[0];
+			int last = --size;
+			long time = times[last];
+			Object packet = packets[last];
+			packets[last] = null;
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && times[child + 1] < times[child]) {
+					child++;
+				}
+				if (times[child] >= time) {
+					break;
+				}
+				times[i] = times[child];
+				packets[i] = packets[child];
+				i = child;
+			}
+			if (size > 0) {
+				times[i] = time;
+				packets[i] = packet;
+			}
+			return first;
+		}
+	}
+}
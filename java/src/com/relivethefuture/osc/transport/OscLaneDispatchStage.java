@@ -0,0 +1,249 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+import com.relivethefuture.osc.data.OscPacket;
+import com.relivethefuture.osc.data.OscSymbol;
+
+/**
+ * Spreads packets over a number of lanes, each with its own thread, by the
+ * hash of their address. Packets for one address always go down the same lane
+ * so they are delivered in the order they arrived, while different addresses
+ * are delivered in parallel.
+ * 
+ * A bundle goes down the lane of the first message in it so it is still
+ * delivered in one piece. This means the ordering only holds between packets
+ * routed by the same address. A message sent on its own and another to the
+ * same address inside a bundle led by a different address can be delivered in
+ * either order.
+ * 
+ * Each lane holds a fixed number of packets, when a lane is full packets for
+ * it are dropped and counted rather than letting a slow listener use up the
+ * heap.
+ */
+public class OscLaneDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory.getLogger(OscLaneDispatchStage.class);
+
+	public static final int DEFAULT_LANE_CAPACITY = 4096;
+
+	private static final long STOP_TIMEOUT = 1000;
+
+	private final Lane[] lanes;
+
+	/**
+	 * One lane per available processor.
+	 */
+	public OscLaneDispatchStage() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public OscLaneDispatchStage(int laneCount) {
+		this(laneCount, DEFAULT_LANE_CAPACITY);
+	}
+
+	/**
+	 * @param laneCapacity
+	 *            most packets that can be waiting in each lane
+	 */
+	public OscLaneDispatchStage(int laneCount, int laneCapacity) {
+		if (laneCount < 1) {
+			throw new IllegalArgumentException("Need at least one lane");
+		}
+		lanes = new Lane[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new Lane(i, laneCapacity);
+		}
+	}
+
+	public void start(OscServerIoHandler handler) {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].start(handler);
+		}
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		lanes[laneOf(addressOf(packet))].add(packet);
+	}
+
+	public void stop() {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].stop();
+		}
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * Packets waiting in a lane right now.
+	 */
+	public int getQueueDepth(int lane) {
+		return lanes[lane].queue.size();
+	}
+
+	/**
+	 * The most packets that have been waiting in a lane at once.
+	 */
+	public int getPeakQueueDepth(int lane) {
+		return lanes[lane].peakDepth.get();
+	}
+
+	/**
+	 * Packets thrown away because a lane was full.
+	 */
+	public long getDroppedCount(int lane) {
+		return lanes[lane].dropped.get();
+	}
+
+	/**
+	 * Packets a lane has handed to the listeners.
+	 */
+	public long getDeliveredCount(int lane) {
+		return lanes[lane].delivered.get();
+	}
+
+	public void resetPeakQueueDepths() {
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i].peakDepth.set(0);
+		}
+	}
+
+	private int laneOf(OscSymbol address) {
+		if (address == null) {
+			return 0;
+		}
+		int hash = address.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & 0x7FFFFFFF) % lanes.length;
+	}
+
+	/**
+	 * The address of a message, or of the first message in a bundle. Null if
+	 * there isn't one.
+	 */
+	static OscSymbol addressOf(Object packet) {
+		if (packet instanceof OscMessage) {
+			return ((OscMessage) packet).getAddressSymbol();
+		}
+		if (packet instanceof OscMessageView) {
+			return ((OscMessageView) packet).getAddressSymbol();
+		}
+		if (packet instanceof OscBundle) {
+			ArrayList<OscPacket> packets = ((OscBundle) packet).getPackets();
+			for (int i = 0; i < packets.size(); i++) {
+				OscSymbol address = addressOf(packets.get(i));
+				if (address != null) {
+					return address;
+				}
+			}
+		}
+		if (packet instanceof OscBundleView) {
+			OscBundleView view = (OscBundleView) packet;
+			for (int i = 0; i < view.getElementCount(); i++) {
+				OscSymbol address = view.isElementBundle(i) ? addressOf(view
+						.getBundle(i)) : view.getMessage(i).getAddressSymbol();
+				if (address != null) {
+					return address;
+				}
+			}
+		}
+		return null;
+	}
+
+	private class Lane implements Runnable {
+		final String name;
+		final LinkedBlockingQueue<Object> queue;
+		final AtomicInteger peakDepth = new AtomicInteger();
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		private OscServerIoHandler handler;
+		private Thread thread;
+
+		Lane(int index, int capacity) {
+			name = "OSC lane " + index;
+			queue = new LinkedBlockingQueue<Object>(capacity);
+		}
+
+		void start(OscServerIoHandler handler) {
+			this.handler = handler;
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			if (thread == null) {
+				return;
+			}
+			thread.interrupt();
+			try {
+				thread.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+			queue.clear();
+		}
+
+		void add(Object packet) {
+			if (!queue.offer(packet)) {
+				dropped.incrementAndGet();
+				return;
+			}
+			int depth = queue.size();
+			int peak = peakDepth.get();
+			while (depth > peak && !peakDepth.compareAndSet(peak, depth)) {
+				peak = peakDepth.get();
+			}
+		}
+
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					Object packet = queue.take();
+					try {
+						handler.deliver(packet);
+					} catch (RuntimeException e) {
+						logger.error("Listener failed in " + name, e);
+					}
+					delivered.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// Stopped
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscPacket;
+
+/**
+ * OSC Client that writes straight to a java.nio channel rather than going
+ * through MINA.
+ * 
+ * Packets are encoded into a buffer the client keeps and written on the
+ * calling thread, so sendPacket() returns once the data is with the operating
+ * system. It is safe to send from more than one thread.
+ */
+public class OscNioClient {
+	final Logger logger = LoggerFactory.getLogger(OscNioClient.class);
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final boolean udp;
+	private final OscDataEncoder encoder;
+	private ByteChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+	public OscNioClient(boolean isUDP) {
+		udp = isUDP;
+		encoder = new OscDataEncoder(udp);
+	}
+
+	public synchronized void connect(InetSocketAddress address)
+			throws IOException {
+		if (channel != null) {
+			throw new IllegalStateException("Already connected");
+		}
+		logger.debug("Connect : " + address.getHostName() + " : "
+				+ address.getPort());
+		if (udp) {
+			DatagramChannel datagramChannel = DatagramChannel.open();
+			datagramChannel.connect(address);
+			channel = datagramChannel;
+		} else {
+			SocketChannel socketChannel = SocketChannel.open(address);
+			socketChannel.socket().setTcpNoDelay(true);
+			channel = socketChannel;
+		}
+	}
+
+	public synchronized boolean isConnected() {
+		return channel != null;
+	}
+
+	public synchronized void sendPacket(OscPacket packet) throws IOException,
+			PacketNotValidException {
+		if (channel == null) {
+			throw new IllegalStateException("Not connected");
+		}
+		if (!packet.isValid()) {
+			throw new PacketNotValidException();
+		}
+
+		// Room for the size prefix when using TCP
+		int size = udp ? packet.getSize() : packet.getSize() + 4;
+		if (buffer.capacity() < size) {
+			buffer = ByteBuffer.allocate(Math.max(size,
+					buffer.capacity() * 2));
+		}
+		buffer.clear();
+		encoder.encodePacket(packet, buffer, !udp);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	public synchronized void disconnect() {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close channel", e);
+		}
+		channel = null;
+	}
+}
@@ -0,0 +1,348 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscBatchListener;
+import com.relivethefuture.osc.data.OscListener;
+import com.relivethefuture.osc.data.OscPacketFactory;
+
+/**
+ * OSC Server that runs straight on java.nio channels and a selector rather
+ * than on MINA, with the same listener API as OscServer.
+ * 
+ * There is no filter chain or session to go through, each packet is decoded
+ * by OscDataDecoder from the channel's receive buffer and passed to the
+ * listeners, or the dispatch stage, on the selector thread. UDP is received
+ * by an OscDatagramReceiver, TCP connections are all served by one thread.
+ * 
+ * Defaults to UDP, call setUDP(false) to use TCP.
+ */
+public class OscNioServer {
+	final Logger logger = LoggerFactory.getLogger(OscNioServer.class);
+
+	/**
+	 * Initial size of each TCP connection's receive buffer, it grows to fit
+	 * larger packets.
+	 */
+	public static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * Largest TCP packet accepted, connections sending anything bigger are
+	 * closed.
+	 */
+	public static final int MAX_PACKET_SIZE = OscDataDecoder.MAX_PACKET_SIZE;
+
+	private static final long CLOSE_TIMEOUT = 1000;
+
+	private final int port;
+	private final OscServerIoHandler handler;
+	private OscPacketFactory oscPacketFactory;
+	private boolean udp = true;
+	private boolean decodeViews = false;
+	private int receiveSockets = 1;
+	private OscDispatchStage dispatchStage;
+
+	private OscDatagramReceiver receiver;
+	private OscCodecFactory codecs;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	public OscNioServer(int port) {
+		this.port = port;
+		this.handler = new OscServerIoHandler();
+	}
+
+	public void setUDP(boolean udp) {
+		this.udp = udp;
+	}
+
+	public void setOscFactory(OscPacketFactory factory) {
+		oscPacketFactory = factory;
+	}
+
+	/**
+	 * @see OscServer#setDecodeViews(boolean)
+	 */
+	public void setDecodeViews(boolean decodeViews) {
+		this.decodeViews = decodeViews;
+	}
+
+	/**
+	 * @see OscServer#setDispatchStage(OscDispatchStage)
+	 */
+	public void setDispatchStage(OscDispatchStage stage) {
+		dispatchStage = stage;
+	}
+
+	/**
+	 * Number of UDP sockets to bind with SO_REUSEPORT, 0 for one per
+	 * processor. Defaults to 1. Set before start().
+	 */
+	public void setReceiveSockets(int count) {
+		receiveSockets = count;
+	}
+
+	public void addOscListener(OscListener listener) {
+		handler.addListener(listener);
+	}
+
+	public void removeOscListener(OscListener listener) {
+		handler.removeListener(listener);
+	}
+
+	public void addOscBatchListener(OscBatchListener listener) {
+		handler.addBatchListener(listener);
+	}
+
+	public void removeOscBatchListener(OscBatchListener listener) {
+		handler.removeBatchListener(listener);
+	}
+
+	public void start() throws IOException {
+		if (oscPacketFactory == null) {
+			oscPacketFactory = new BasicOscFactory();
+		}
+
+		handler.setOscFactory(oscPacketFactory);
+		handler.setDispatchStage(dispatchStage);
+		if (dispatchStage != null) {
+			dispatchStage.start(handler);
+		}
+
+		if (udp) {
+			receiver = new OscDatagramReceiver(handler, oscPacketFactory,
+					decodeViews, Math.max(receiveSockets, 0));
+			receiver.bind(new InetSocketAddress(port));
+		} else {
+			codecs = new OscCodecFactory(oscPacketFactory, false, decodeViews);
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			running = true;
+			selectorThread = new Thread("OSC NIO server") {
+				public void run() {
+					runSelector();
+				}
+			};
+			selectorThread.setDaemon(true);
+			selectorThread.start();
+		}
+		logger.info("server is listening at port " + port);
+	}
+
+	public void stop() {
+		if (receiver != null) {
+			receiver.close();
+			receiver = null;
+		}
+		if (selector != null) {
+			running = false;
+			selector.wakeup();
+			try {
+				selectorThread.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			selector = null;
+			selectorThread = null;
+		}
+		if (dispatchStage != null) {
+			dispatchStage.stop();
+		}
+	}
+
+	private void runSelector() {
+		Selector selector = this.selector;
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(selector);
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				logger.error("Selector failed", e);
+			}
+		} finally {
+			close(selector);
+		}
+	}
+
+	/**
+	 * Close every connection and the server socket, then the selector.
+	 * Closing the selector on its own would leave the channels open.
+	 */
+	private void close(Selector selector) {
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				logger.warn("Failed to close channel", e);
+			}
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close server", e);
+		}
+	}
+
+	private void accept(Selector selector) throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(
+				channel));
+		logger.debug("Accepted " + channel.socket().getRemoteSocketAddress());
+	}
+
+	private void read(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		try {
+			if (!connection.read()) {
+				close(key);
+			}
+		} catch (IOException e) {
+			logger.warn("Closing connection from " + connection.remote, e);
+			close(key);
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.warn("Failed to close connection", e);
+		}
+	}
+
+	/**
+	 * A TCP connection along with the data received on it that hasn't formed
+	 * a whole packet yet.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final SocketAddress remote;
+		final OscDataDecoder decoder = codecs.createDecoder();
+		ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			this.remote = channel.socket().getRemoteSocketAddress();
+		}
+
+		/**
+		 * Read what's waiting and deliver any packets that are complete.
+		 * 
+		 * @return false if the other end has closed the connection
+		 */
+		boolean read() throws IOException {
+			int count;
+			while ((count = channel.read(in)) > 0) {
+				in.flip();
+				deliverPackets();
+				in.compact();
+				if (!in.hasRemaining()) {
+					grow();
+				}
+			}
+			return count >= 0;
+		}
+
+		private void deliverPackets() throws IOException {
+			while (true) {
+				int start = in.position();
+				Object packet;
+				try {
+					packet = decoder.decode(in);
+				} catch (Exception e) {
+					if (in.position() == start) {
+						// Can't tell where the next packet starts
+						throw new IOException("Bad data : " + e.getMessage());
+					}
+					logger.warn("Dropped packet from " + remote, e);
+					continue;
+				}
+				if (packet == null) {
+					return;
+				}
+				try {
+					handler.packetReceived(remote, packet);
+				} catch (RuntimeException e) {
+					logger.error("Listener failed", e);
+				}
+			}
+		}
+
+		/**
+		 * Make room for a packet that won't fit in the receive buffer.
+		 */
+		private void grow() throws IOException {
+			// Check the size before adding to it, a huge one would wrap round
+			int size = in.getInt(0);
+			if (size < 0 || size > MAX_PACKET_SIZE - 4) {
+				throw new IOException("Bad packet length : " + size);
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(size + 4, Math
+					.min(in.capacity() * 2, MAX_PACKET_SIZE)));
+			in.flip();
+			larger.put(in);
+			in = larger;
+		}
+	}
+}
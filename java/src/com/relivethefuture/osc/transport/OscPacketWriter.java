@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscStringCodec;
+import com.relivethefuture.osc.data.OscTimeTag;
+
+/**
+ * Writes messages and bundles straight into a buffer without building
+ * OscMessage and OscBundle objects first.
+ * 
+ * <pre>
+ * writer.beginBundle(OscTimeTag.IMMEDIATE);
+ * writer.message(&quot;/mixer/1/gain&quot;).f(0.5f).end();
+ * writer.message(&quot;/mixer/1/name&quot;).s(&quot;kick&quot;).end();
+ * writer.endBundle();
+ * </pre>
+ * 
+ * The size in front of each bundle element is left blank and filled in once
+ * the element is finished. Arguments are collected in scratch buffers until
+ * end() because the type tags have to be written before them, the scratch
+ * buffers are kept for the next message.
+ * 
+ * The buffer has to be big enough for everything written to it, an IoBuffer
+ * will not expand. A writer is not thread safe.
+ */
+public class OscPacketWriter {
+	private ByteBuffer buffer;
+	private boolean writeSize;
+
+	// Positions of the blank sizes waiting to be filled in
+	private int[] sizePositions = new int[8];
+	private int depth;
+	private int bundleDepth;
+
+	private boolean inMessage;
+	private byte[] tags = new byte[16];
+	private int tagCount;
+	private ByteBuffer arguments = ByteBuffer.allocate(256);
+
+	public OscPacketWriter(ByteBuffer buffer) {
+		this(buffer, false);
+	}
+
+	/**
+	 * @param writeSize
+	 *            write the size of each top level packet before it, as needed
+	 *            for TCP.
+	 */
+	public OscPacketWriter(ByteBuffer buffer, boolean writeSize) {
+		this.buffer = buffer;
+		this.writeSize = writeSize;
+	}
+
+	public OscPacketWriter(IoBuffer buffer, boolean writeSize) {
+		this(buffer.buf(), writeSize);
+	}
+
+	/**
+	 * Carry on writing into a different buffer.
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		if (!isComplete()) {
+			throw new IllegalStateException("Packet not finished");
+		}
+		this.buffer = buffer;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Start a bundle, at the top level or inside the current bundle.
+	 * 
+	 * @param timeTag
+	 *            raw NTP time tag, see OscTimeTag
+	 */
+	public OscPacketWriter beginBundle(long timeTag) {
+		checkNotInMessage();
+		beginPacket();
+		try {
+			OscStringCodec.write(OscBundle.BUNDLE_HEADER, buffer);
+		} catch (CharacterCodingException e) {
+			throw new IllegalStateException(e);
+		}
+		buffer.putLong(timeTag);
+		bundleDepth++;
+		return this;
+	}
+
+	public OscPacketWriter beginBundle() {
+		return beginBundle(OscTimeTag.IMMEDIATE);
+	}
+
+	public OscPacketWriter endBundle() {
+		checkNotInMessage();
+		if (bundleDepth == 0) {
+			throw new IllegalStateException("No bundle to end");
+		}
+		bundleDepth--;
+		endPacket();
+		return this;
+	}
+
+	/**
+	 * Start a message, follow it with the arguments and then end().
+	 */
+	public OscPacketWriter message(String address) {
+		checkNotInMessage();
+		beginPacket();
+		try {
+			OscStringCodec.write(address, buffer);
+		} catch (CharacterCodingException e) {
+			throw new IllegalArgumentException("Can't encode " + address, e);
+		}
+		inMessage = true;
+		tagCount = 0;
+		addTag(',');
+		arguments.clear();
+		return this;
+	}
+
+	public OscPacketWriter i(int value) {
+		addTag('i');
+		reserve(4).putInt(value);
+		return this;
+	}
+
+	public OscPacketWriter h(long value) {
+		addTag('h');
+		reserve(8).putLong(value);
+		return this;
+	}
+
+	public OscPacketWriter f(float value) {
+		addTag('f');
+		reserve(4).putFloat(value);
+		return this;
+	}
+
+	public OscPacketWriter d(double value) {
+		addTag('d');
+		reserve(8).putDouble(value);
+		return this;
+	}
+
+	public OscPacketWriter c(char value) {
+		addTag('c');
+		reserve(4).putInt(value);
+		return this;
+	}
+
+	public OscPacketWriter t(boolean value) {
+		addTag(value ? 'T' : 'F');
+		return this;
+	}
+
+	public OscPacketWriter s(String value) {
+		addTag('s');
+		try {
+			OscStringCodec.write(value, reserve(OscStringCodec
+					.encodedSize(value)));
+		} catch (CharacterCodingException e) {
+			throw new IllegalArgumentException("Can't encode " + value, e);
+		}
+		return this;
+	}
+
+	public OscPacketWriter b(byte[] value) {
+		addTag('b');
+		ByteBuffer out = reserve(4 + ((value.length + 3) & ~3));
+		out.putInt(value.length);
+		out.put(value);
+		while ((out.position() & 3) != 0) {
+			out.put((byte) 0);
+		}
+		return this;
+	}
+
+	/**
+	 * Finish the current message, writing its type tags and arguments.
+	 */
+	public OscPacketWriter end() {
+		if (!inMessage) {
+			throw new IllegalStateException("No message to end");
+		}
+		inMessage = false;
+
+		buffer.put(tags, 0, tagCount);
+		for (int i = tagCount, padded = (tagCount + 4) & ~3; i < padded; i++) {
+			buffer.put((byte) 0);
+		}
+		arguments.flip();
+		buffer.put(arguments);
+		endPacket();
+		return this;
+	}
+
+	/**
+	 * @return true when every message and bundle started has been ended
+	 */
+	public boolean isComplete() {
+		// A top level bundle without a size leaves no blank size behind
+		return depth == 0 && bundleDepth == 0 && !inMessage;
+	}
+
+	/**
+	 * Leave a blank size if this packet needs one.
+	 */
+	private void beginPacket() {
+		if (bundleDepth > 0 || writeSize) {
+			if (depth == sizePositions.length) {
+				int[] grown = new int[depth * 2];
+				System.arraycopy(sizePositions, 0, grown, 0, depth);
+				sizePositions = grown;
+			}
+			sizePositions[depth++] = buffer.position();
+			buffer.putInt(0);
+		}
+	}
+
+	/**
+	 * Fill in the blank size left by beginPacket().
+	 */
+	private void endPacket() {
+		if (bundleDepth > 0 || writeSize) {
+			int sizePosition = sizePositions[--depth];
+			buffer.putInt(sizePosition, buffer.position() - sizePosition - 4);
+		}
+	}
+
+	private void addTag(char tag) {
+		if (!inMessage) {
+			throw new IllegalStateException("No message started");
+		}
+		if (tagCount == tags.length) {
+			byte[] grown = new byte[tagCount * 2];
+			System.arraycopy(tags, 0, grown, 0, tagCount);
+			tags = grown;
+		}
+		tags[tagCount++] = (byte) tag;
+	}
+
+	/**
+	 * Make sure the argument scratch buffer has room for more bytes.
+	 */
+	private ByteBuffer reserve(int bytes) {
+		if (arguments.remaining() < bytes) {
+			int capacity = arguments.capacity() * 2;
+			while (capacity - arguments.position() < bytes) {
+				capacity *= 2;
+			}
+			ByteBuffer grown = ByteBuffer.allocate(capacity);
+			arguments.flip();
+			grown.put(arguments);
+			arguments = grown;
+		}
+		return arguments;
+	}
+
+	private void checkNotInMessage() {
+		if (inMessage) {
+			throw new IllegalStateException("Message not ended");
+		}
+	}
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands packets from the IO threads to the listener threads through a ring of
+ * slots that is allocated once, so passing a packet on makes no garbage.
+ * 
+ * Each slot has a sequence number that says whether it is waiting to be
+ * filled or waiting to be read, so any number of IO threads can add packets
+ * and any number of consumer threads can take them without locks. A consumer
+ * takes every ready packet up to the batch size in one go. When the ring is
+ * full the IO thread waits, which pushes back on the senders.
+ * 
+ * With one consumer, the default, packets are delivered in the order they
+ * arrived. More consumers deliver in parallel without any ordering. Each batch
+ * taken from the ring goes to the batch listeners in one call.
+ * 
+ * Packets dispatched before start() or after stop(), and any still in the
+ * ring when it stops, are dropped and counted as the lane stage does.
+ */
+public class OscRingBufferDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory
+			.getLogger(OscRingBufferDispatchStage.class);
+
+	/**
+	 * How threads wait when there is nothing to read or nowhere to write.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Keep checking, lowest latency but burns a core per waiting thread.
+		 */
+		BUSY_SPIN,
+		/**
+		 * Give up the processor between checks.
+		 */
+		YIELD,
+		/**
+		 * Spin, then yield, then sleep for short spells. Uses little CPU when
+		 * idle at the cost of some wake up latency.
+		 */
+		PARK
+	}
+
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int DEFAULT_BATCH_SIZE = 64;
+
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+	private static final long PARK_NANOS = 1000;
+	private static final long STOP_TIMEOUT = 1000;
+
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	private final WaitStrategy waitStrategy;
+	private final int batchSize;
+	private final Consumer[] consumers;
+
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong producerWaits = new AtomicLong();
+
+	private volatile boolean running;
+	private OscServerIoHandler handler;
+
+	public OscRingBufferDispatchStage() {
+		this(DEFAULT_CAPACITY, WaitStrategy.PARK, 1, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two
+	 * @param consumerCount
+	 *            number of threads delivering packets
+	 * @param batchSize
+	 *            most packets a consumer takes at once
+	 */
+	public OscRingBufferDispatchStage(int capacity, WaitStrategy waitStrategy,
+			int consumerCount, int batchSize) {
+		if (capacity < 2 || consumerCount < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Bad ring buffer settings");
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		slots = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		this.waitStrategy = waitStrategy;
+		this.batchSize = Math.min(batchSize, size);
+		consumers = new Consumer[consumerCount];
+	}
+
+	public void start(OscServerIoHandler handler) {
+		this.handler = handler;
+		running = true;
+		for (int i = 0; i < consumers.length; i++) {
+			consumers[i] = new Consumer(i);
+			consumers[i].start();
+		}
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		int tries = 0;
+		boolean waited = false;
+		while (running) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long sequence = sequences.get(index);
+			if (sequence == position) {
+				// Free, try to claim it
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = packet;
+					sequences.set(index, position + 1);
+					return;
+				}
+			} else if (sequence < position) {
+				// Full, wait for a consumer to catch up
+				if (!waited) {
+					producerWaits.incrementAndGet();
+					waited = true;
+				}
+				idle(tries++);
+			}
+		}
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * Wait a short while for the consumers to finish their batches, then drop
+	 * whatever is left in the ring.
+	 */
+	public void stop() {
+		running = false;
+		for (int i = 0; i < consumers.length; i++) {
+			Consumer consumer = consumers[i];
+			if (consumer == null) {
+				continue;
+			}
+			LockSupport.unpark(consumer);
+			try {
+				consumer.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			consumers[i] = null;
+		}
+
+		Object[] batch = new Object[batchSize];
+		int count;
+		while ((count = take(batch)) > 0) {
+			dropped.addAndGet(count);
+		}
+	}
+
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Packets waiting in the ring right now.
+	 */
+	public int getQueueDepth() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	/**
+	 * Packets thrown away because the stage was not running.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of packets that found the ring full and had to wait.
+	 */
+	public long getProducerWaitCount() {
+		return producerWaits.get();
+	}
+
+	/**
+	 * Take up to the batch size of ready packets.
+	 * 
+	 * @return number of packets copied into the batch
+	 */
+	private int take(Object[] batch) {
+		while (true) {
+			long position = head.get();
+			int count = 0;
+			while (count < batchSize
+					&& sequences.get((int) (position + count) & mask) == position
+							+ count + 1) {
+				count++;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			if (head.compareAndSet(position, position + count)) {
+				for (int i = 0; i < count; i++) {
+					int index = (int) (position + i) & mask;
+					batch[i] = slots[index];
+					slots[index] = null;
+					// Free the slot for the lap after this one
+					sequences.set(index, position + i + slots.length);
+				}
+				return count;
+			}
+		}
+	}
+
+	private void idle(int tries) {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		case PARK:
+			if (tries < SPIN_TRIES) {
+				break;
+			} else if (tries < SPIN_TRIES + YIELD_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+			break;
+		}
+	}
+
+	private class Consumer extends Thread {
+		private final Object[] batch = new Object[batchSize];
+
+		Consumer(int index) {
+			super("OSC ring consumer " + index);
+			setDaemon(true);
+		}
+
+		public void run() {
+			int tries = 0;
+			while (running) {
+				int count = take(batch);
+				if (count == 0) {
+					idle(tries++);
+					continue;
+				}
+				tries = 0;
+				try {
+					handler.deliver(batch, count);
+				} catch (RuntimeException e) {
+					logger.error("Listener failed in " + getName(), e);
+				}
+				for (int i = 0; i < count; i++) {
+					batch[i] = null;
+				}
+				delivered.addAndGet(count);
+			}
+		}
+	}
+}
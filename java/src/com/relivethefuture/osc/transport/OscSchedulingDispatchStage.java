@@ -0,0 +1,465 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
+import com.relivethefuture.osc.data.OscTimeTag;
+
+/**
+ * Holds bundles with a time tag in the future and delivers them when their
+ * time comes. Messages, immediate bundles and bundles whose time has already
+ * passed go straight through.
+ * 
+ * Waiting bundles are kept in a hashed timing wheel, a ring of buckets that
+ * each cover one tick. A bundle goes into the bucket for the tick it is due
+ * in, later turns of the wheel sharing the same bucket, so adding one and
+ * expiring one are both constant time however many are waiting. A timer thread
+ * sleeps until the earliest bundle is due and then expires the buckets for the
+ * ticks that have gone by. Each bucket remembers its earliest tick, so finding
+ * the next one due only looks at buckets, and only once the earliest has gone.
+ * Adding a bundle only wakes the timer when it is due before the timer was
+ * going to wake anyway.
+ * 
+ * Only the time tag of the outer bundle is used. Time tags are turned into
+ * times on the local clock, so sender and receiver clocks need to be kept in
+ * step by something like NTP.
+ * 
+ * The local clock is tied to the wall clock by watching for the moment
+ * System.currentTimeMillis() ticks over, a few times, and averaging. That
+ * usually puts it within a few tens of microseconds of the system clock,
+ * though on systems whose millisecond clock moves in coarser steps it is only
+ * as good as those steps. The tie is renewed about every 10 seconds while the
+ * timer has time to spare, so NTP corrections to the system clock are
+ * followed. Bundles already waiting keep the time they were given.
+ * 
+ * Packets are delivered by the next stage if one is given, otherwise they are
+ * delivered straight to the listeners, on the timer thread for scheduled
+ * bundles.
+ */
+public class OscSchedulingDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory
+			.getLogger(OscSchedulingDispatchStage.class);
+
+	/**
+	 * Default tick length, 100 microseconds.
+	 */
+	public static final long DEFAULT_TICK_NANOS = 100000;
+
+	/**
+	 * Default number of buckets, a turn of the wheel takes about 0.4 seconds
+	 * with the default tick.
+	 */
+	public static final int DEFAULT_WHEEL_SIZE = 4096;
+
+	private static final long IDLE_NANOS = 1000000000L;
+
+	private static final long STOP_TIMEOUT = 1000;
+
+	private static final int ANCHOR_SAMPLES = 3;
+	private static final long ANCHOR_INTERVAL_NANOS = 10000000000L;
+
+	private final OscDispatchStage next;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong maxLateness = new AtomicLong();
+
+	// Local clock time the timer will next wake by
+	private final AtomicLong earliestDue = new AtomicLong();
+
+	private OscServerIoHandler handler;
+	private Thread timer;
+	private volatile boolean running;
+
+	// Local clock reading for the start of tick 0
+	private long startNanos;
+	private long tick;
+
+	// Wall clock nanoseconds less System.nanoTime()
+	private volatile long wallOffsetNanos;
+	private long anchorNanos;
+	// How long the last anchor() took, a few milliseconds on most systems
+	private long anchorCostNanos;
+
+	// Earliest tick anything on the wheel is due in, only used by the timer
+	private long nextDue;
+
+	public OscSchedulingDispatchStage() {
+		this(null);
+	}
+
+	/**
+	 * @param next
+	 *            stage to hand packets to when they are due, null to deliver
+	 *            them directly
+	 */
+	public OscSchedulingDispatchStage(OscDispatchStage next) {
+		this(next, DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two
+	 */
+	public OscSchedulingDispatchStage(OscDispatchStage next, long tickNanos,
+			int wheelSize) {
+		if (tickNanos < 1 || wheelSize < 2) {
+			throw new IllegalArgumentException("Bad timing wheel settings");
+		}
+		this.next = next;
+		this.tickNanos = tickNanos;
+		int size = Integer.highestOneBit(wheelSize - 1) << 1;
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+	}
+
+	public void start(OscServerIoHandler handler) {
+		this.handler = handler;
+		if (next != null) {
+			next.start(handler);
+		}
+		// Forget anything left from a previous run
+		added.clear();
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i].clear();
+		}
+		pending.set(0);
+		tick = 0;
+		nextDue = Long.MAX_VALUE;
+		anchor();
+		startNanos = System.nanoTime();
+		earliestDue.set(startNanos);
+		running = true;
+		timer = new Thread("OSC bundle scheduler") {
+			public void run() {
+				runWheel();
+			}
+		};
+		timer.setDaemon(true);
+		timer.setPriority(Thread.MAX_PRIORITY);
+		timer.start();
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		long timeTag = OscTimeTag.IMMEDIATE;
+		if (packet instanceof OscBundle) {
+			timeTag = ((OscBundle) packet).getTimeTag();
+		} else if (packet instanceof OscBundleView) {
+			timeTag = ((OscBundleView) packet).getTimeTag();
+		}
+
+		if (!OscTimeTag.isImmediate(timeTag)) {
+			// Where the time tag falls on the local clock
+			long deadline = OscTimeTag.ntpToNanos(timeTag) - wallOffsetNanos;
+			if (deadline - System.nanoTime() > tickNanos) {
+				pending.incrementAndGet();
+				scheduled.incrementAndGet();
+				added.add(new Timeout(source, packet, deadline));
+				wakeBy(deadline);
+				return;
+			}
+		}
+		forward(source, packet);
+	}
+
+	/**
+	 * Make sure the timer wakes by the deadline, unparking it only if it was
+	 * going to sleep past it.
+	 */
+	private void wakeBy(long deadline) {
+		long due = earliestDue.get();
+		while (deadline - due < 0) {
+			if (earliestDue.compareAndSet(due, deadline)) {
+				LockSupport.unpark(timer);
+				return;
+			}
+			due = earliestDue.get();
+		}
+	}
+
+	public void stop() {
+		running = false;
+		if (timer != null) {
+			timer.interrupt();
+			try {
+				timer.join(STOP_TIMEOUT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			timer = null;
+		}
+		if (next != null) {
+			next.stop();
+		}
+	}
+
+	/**
+	 * Bundles waiting for their time.
+	 */
+	public int getPendingCount() {
+		return pending.get();
+	}
+
+	/**
+	 * Bundles that have been held back since the stage started.
+	 */
+	public long getScheduledCount() {
+		return scheduled.get();
+	}
+
+	/**
+	 * The latest a scheduled bundle has been delivered after its time, in
+	 * nanoseconds.
+	 */
+	public long getMaxLatenessNanos() {
+		return maxLateness.get();
+	}
+
+	private void forward(SocketAddress source, Object packet) {
+		if (next != null) {
+			next.dispatch(source, packet);
+			return;
+		}
+		try {
+			handler.deliver(packet);
+		} catch (RuntimeException e) {
+			logger.error("Listener failed", e);
+		}
+	}
+
+	private void runWheel() {
+		while (running) {
+			addNewTimeouts();
+			// Expire every tick that has finished
+			long now = System.nanoTime();
+			advance((now - startNanos) / tickNanos);
+			long wakeAt = now + IDLE_NANOS;
+			if (nextDue != Long.MAX_VALUE) {
+				// Wake once the tick it is due in has finished
+				long due = startNanos + (nextDue + 1) * tickNanos;
+				if (due - wakeAt < 0) {
+					wakeAt = due;
+				}
+			}
+			if (now - anchorNanos >= ANCHOR_INTERVAL_NANOS
+					&& wakeAt - now > 2 * anchorCostNanos) {
+				anchor();
+				continue;
+			}
+
+			// Tell dispatch() when we'll wake, then look again for anything
+			// added before it could see that
+			earliestDue.set(wakeAt);
+			if (!added.isEmpty()) {
+				continue;
+			}
+			long wait = wakeAt - System.nanoTime();
+			if (wait > 0) {
+				// Woken early by dispatch() when an earlier bundle is added
+				LockSupport.parkNanos(wait);
+				if (Thread.interrupted()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Work out the offset from the local clock to the wall clock. Reading
+	 * both clocks right after the millisecond clock ticks over puts the local
+	 * reading within a few microseconds of the whole millisecond, rather than
+	 * anywhere up to a millisecond after it.
+	 */
+	private void anchor() {
+		long begin = System.nanoTime();
+		long first = 0;
+		long total = 0;
+		for (int i = 0; i < ANCHOR_SAMPLES; i++) {
+			long millis = System.currentTimeMillis();
+			long edge;
+			while ((edge = System.currentTimeMillis()) == millis) {
+				// Spin until the next millisecond starts
+			}
+			long offset = edge * 1000000L - System.nanoTime();
+			if (i == 0) {
+				first = offset;
+			}
+			// Sum the differences, the offsets themselves are too big
+			total += offset - first;
+		}
+		wallOffsetNanos = first + total / ANCHOR_SAMPLES;
+		anchorNanos = System.nanoTime();
+		anchorCostNanos = anchorNanos - begin;
+	}
+
+	/**
+	 * Put the timeouts added since the last pass into their buckets. Only the
+	 * timer thread touches the wheel.
+	 */
+	private void addNewTimeouts() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			// Anything due in a tick already expired goes in the next one
+			timeout.dueTick = Math.max(
+					(timeout.deadline - startNanos) / tickNanos, tick);
+			wheel[(int) timeout.dueTick & mask].add(timeout);
+			nextDue = Math.min(nextDue, timeout.dueTick);
+		}
+	}
+
+	/**
+	 * Expire the buckets for the ticks up to, but not including, the given
+	 * one.
+	 */
+	private void advance(long limit) {
+		if (limit - tick > wheel.length) {
+			// Slept through more than a turn, every bucket is due
+			for (int i = 0; i < wheel.length; i++) {
+				expire(wheel[i], limit - 1);
+			}
+			tick = limit;
+		}
+		while (tick < limit) {
+			expire(wheel[(int) tick & mask], tick);
+			tick++;
+		}
+		if (nextDue < tick) {
+			nextDue = findNextDue();
+		}
+	}
+
+	/**
+	 * The tick the earliest waiting timeout is due in, Long.MAX_VALUE if none
+	 * are waiting. Everything before the current tick has expired, so the
+	 * first bucket with a timeout due this turn holds the earliest.
+	 */
+	private long findNextDue() {
+		if (pending.get() == 0) {
+			return Long.MAX_VALUE;
+		}
+		long end = tick + wheel.length;
+		long earliest = Long.MAX_VALUE;
+		for (long t = tick; t < end; t++) {
+			long due = wheel[(int) t & mask].minDueTick;
+			if (due < end) {
+				return due;
+			}
+			earliest = Math.min(earliest, due);
+		}
+		return earliest;
+	}
+
+	/**
+	 * Deliver the timeouts in a bucket that are due by the given tick, leaving
+	 * those for later turns.
+	 */
+	private void expire(Bucket bucket, long upToTick) {
+		if (bucket.minDueTick > upToTick) {
+			return;
+		}
+		long minDueTick = Long.MAX_VALUE;
+		Timeout previous = null;
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout following = timeout.next;
+			if (timeout.dueTick > upToTick) {
+				previous = timeout;
+				minDueTick = Math.min(minDueTick, timeout.dueTick);
+			} else {
+				if (previous == null) {
+					bucket.head = following;
+				} else {
+					previous.next = following;
+				}
+				if (bucket.tail == timeout) {
+					bucket.tail = previous;
+				}
+				pending.decrementAndGet();
+				recordLateness(System.nanoTime() - timeout.deadline);
+				forward(timeout.source, timeout.packet);
+			}
+			timeout = following;
+		}
+		bucket.minDueTick = minDueTick;
+	}
+
+	private void recordLateness(long lateness) {
+		long max = maxLateness.get();
+		while (lateness > max && !maxLateness.compareAndSet(max, lateness)) {
+			max = maxLateness.get();
+		}
+	}
+
+	private static class Timeout {
+		final SocketAddress source;
+		final Object packet;
+		final long deadline;
+		long dueTick;
+		Timeout next;
+
+		Timeout(SocketAddress source, Object packet, long deadline) {
+			this.source = source;
+			this.packet = packet;
+			this.deadline = deadline;
+		}
+	}
+
+	private static class Bucket {
+		Timeout head;
+		Timeout tail;
+		long minDueTick = Long.MAX_VALUE;
+
+		void add(Timeout timeout) {
+			timeout.next = null;
+			if (head == null) {
+				head = timeout;
+			} else {
+				tail.next = timeout;
+			}
+			tail = timeout;
+			minDueTick = Math.min(minDueTick, timeout.dueTick);
+		}
+
+		void clear() {
+			head = null;
+			tail = null;
+			minDueTick = Long.MAX_VALUE;
+		}
+	}
+}
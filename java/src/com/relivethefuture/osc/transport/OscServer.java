@@ -24,10 +24,14 @@ package com.relivethefuture.osc.transport;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
 import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.session.IoSessionConfig;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.logging.LoggingFilter;
 import org.apache.mina.transport.socket.DatagramSessionConfig;
+import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioDatagramAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.slf4j.Logger;
@@ -35,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import com.relivethefuture.osc.data.BasicOscFactory;
 import com.relivethefuture.osc.data.BasicOscListener;
+import com.relivethefuture.osc.data.OscBatchListener;
 import com.relivethefuture.osc.data.OscListener;
 import com.relivethefuture.osc.data.OscPacketFactory;
 
@@ -43,6 +48,9 @@ import com.relivethefuture.osc.data.OscPacketFactory;
  * 
  * Defaults to UDP, call setUDP(false) to use HTTP
  * 
+ * Use an OscServerBuilder to tune the sockets, IO processors and filter chain,
+ * or to start from one of its profiles.
+ * 
  * 
  * @author Martin Wood-Mitrvoski
  */
@@ -57,11 +65,48 @@ public class OscServer {
 
 	private boolean udp = true;
 
+	private boolean decodeViews = false;
+
+	private OscDispatchStage dispatchStage;
+
+	private int receiveSockets = -1;
+	private OscDatagramReceiver receiver;
+
+	// Tuning, set through OscServerBuilder
+	private boolean logging = false;
+	private int processorCount = 0;
+	private int receiveBufferSize = 0;
+	private int readBufferSize = 0;
+	private int minReadBufferSize = 0;
+	private int maxReadBufferSize = 0;
+	private boolean tcpNoDelay = false;
+	private OscServerBuilder.ExecutorPlacement executorPlacement = OscServerBuilder.ExecutorPlacement.NONE;
+	private int executorThreads = 0;
+	private ExecutorFilter executorFilter;
+
 	public OscServer(int port) {
 		this.port = port;
 		this.handler = new OscServerIoHandler();
 	}
 
+	OscServer(OscServerBuilder builder) {
+		this(builder.port);
+		udp = builder.udp;
+		oscPacketFactory = builder.oscPacketFactory;
+		decodeViews = builder.decodeViews;
+		dispatchStage = builder.dispatchStage;
+		receiveSockets = builder.receiveSockets;
+		logging = builder.logging;
+		processorCount = builder.processorCount;
+		receiveBufferSize = builder.receiveBufferSize;
+		readBufferSize = builder.readBufferSize;
+		minReadBufferSize = builder.minReadBufferSize;
+		maxReadBufferSize = builder.maxReadBufferSize;
+		tcpNoDelay = builder.tcpNoDelay;
+		executorPlacement = builder.executorPlacement;
+		executorThreads = builder.executorThreads;
+	}
+
 	public void setUDP(boolean udp) {
 		this.udp = udp;
 	}
@@ -70,6 +115,37 @@ public class OscServer {
 		oscPacketFactory = factory;
 	}
 
+	/**
+	 * Hand messages and bundles to listeners as OscMessageViews and
+	 * OscBundleViews over the received data instead of fully decoding them.
+	 * Only OscViewListeners see the views, other listeners still get a decoded
+	 * OscMessage or OscBundle.
+	 */
+	public void setDecodeViews(boolean decodeViews) {
+		this.decodeViews = decodeViews;
+	}
+
+	/**
+	 * Deliver packets to the listeners through a stage, such as an
+	 * OscLaneDispatchStage or an OscVirtualThreadDispatchStage for listeners
+	 * that block, instead of on the IO thread. Set before start().
+	 */
+	public void setDispatchStage(OscDispatchStage stage) {
+		dispatchStage = stage;
+	}
+
+	/**
+	 * Receive UDP on this many sockets bound to the port with SO_REUSEPORT,
+	 * each read by its own thread that drains waiting datagrams in batches,
+	 * instead of on a MINA acceptor. Use 0 for one per processor, or 1 for
+	 * batched receive on a single socket. Set before start().
+	 * 
+	 * @see OscDatagramReceiver
+	 */
+	public void setReceiveSockets(int count) {
+		receiveSockets = count;
+	}
+
 	public void addOscListener(OscListener listener) {
 		handler.addListener(listener);
 	}
@@ -78,35 +154,116 @@ public class OscServer {
 		handler.removeListener(listener);
 	}
 
+	/**
+	 * Add a listener that gets all the messages from a packet, or from a
+	 * batch of packets, in one call.
+	 */
+	public void addOscBatchListener(OscBatchListener listener) {
+		handler.addBatchListener(listener);
+	}
+
+	public void removeOscBatchListener(OscBatchListener listener) {
+		handler.removeBatchListener(listener);
+	}
+
 	public void start() throws IOException {
+		if (decodeViews && !(udp && receiveSockets >= 0)
+				&& executorPlacement == OscServerBuilder.ExecutorPlacement.AFTER_CODEC) {
+			throw new IllegalStateException(
+					"Views can't be passed to an executor, place it before the codec");
+		}
 		if (oscPacketFactory == null) {
 			oscPacketFactory = new BasicOscFactory();
 		}
 
+		handler.setOscFactory(oscPacketFactory);
+		handler.setDispatchStage(dispatchStage);
+		if (dispatchStage != null) {
+			dispatchStage.start(handler);
+		}
+
+		if (udp && receiveSockets >= 0) {
+			receiver = new OscDatagramReceiver(handler, oscPacketFactory,
+					decodeViews, receiveSockets);
+			receiver.setReceiveBufferSize(receiveBufferSize);
+			receiver.bind(new InetSocketAddress(port));
+			logger.info("server is listening at port " + port);
+			return;
+		}
+
 		acceptor = createAcceptor();
-		acceptor.getFilterChain().addLast("logger", new LoggingFilter());
-		acceptor.getFilterChain().addLast(
-				"protocol",
-				new ProtocolCodecFilter(new OscCodecFactory(oscPacketFactory,
-						udp)));
+		DefaultIoFilterChainBuilder chain = acceptor.getFilterChain();
+		if (logging) {
+			chain.addLast("logger", new LoggingFilter());
+		}
+		if (executorPlacement != OscServerBuilder.ExecutorPlacement.NONE) {
+			// Ordered, so packets from each sender stay in sequence
+			executorFilter = new ExecutorFilter(executorThreads,
+					executorThreads);
+		}
+		if (executorPlacement == OscServerBuilder.ExecutorPlacement.BEFORE_CODEC) {
+			chain.addLast("executor", executorFilter);
+		}
+		chain.addLast("protocol", new ProtocolCodecFilter(new OscCodecFactory(
+				oscPacketFactory, udp, decodeViews)));
+		if (executorPlacement == OscServerBuilder.ExecutorPlacement.AFTER_CODEC) {
+			chain.addLast("executor", executorFilter);
+		}
 		acceptor.setHandler(handler);
 		acceptor.bind(new InetSocketAddress(port));
 		logger.info("server is listening at port " + port);
 	}
 
 	private IoAcceptor createAcceptor() {
+		IoAcceptor acceptor;
 		if (udp) {
 			NioDatagramAcceptor nda = new NioDatagramAcceptor();
 			DatagramSessionConfig dcfg = nda.getSessionConfig();
 			dcfg.setReuseAddress(true);
-			return nda;
+			if (receiveBufferSize > 0) {
+				dcfg.setReceiveBufferSize(receiveBufferSize);
+			}
+			acceptor = nda;
 		} else {
-			return new NioSocketAcceptor();
+			NioSocketAcceptor nsa = (processorCount > 0) ? new NioSocketAcceptor(
+					processorCount)
+					: new NioSocketAcceptor();
+			nsa.setReuseAddress(true);
+			SocketSessionConfig scfg = nsa.getSessionConfig();
+			scfg.setTcpNoDelay(tcpNoDelay);
+			if (receiveBufferSize > 0) {
+				scfg.setReceiveBufferSize(receiveBufferSize);
+			}
+			acceptor = nsa;
+		}
+		IoSessionConfig config = acceptor.getSessionConfig();
+		if (minReadBufferSize > 0) {
+			config.setMinReadBufferSize(minReadBufferSize);
+		}
+		if (maxReadBufferSize > 0) {
+			config.setMaxReadBufferSize(maxReadBufferSize);
+		}
+		if (readBufferSize > 0) {
+			config.setReadBufferSize(readBufferSize);
 		}
+		return acceptor;
 	}
 
 	public void stop() {
-		acceptor.unbind();
+		if (receiver != null) {
+			receiver.close();
+			receiver = null;
+		} else {
+			acceptor.unbind();
+			acceptor.dispose();
+		}
+		if (executorFilter != null) {
+			executorFilter.destroy();
+			executorFilter = null;
+		}
+		if (dispatchStage != null) {
+			dispatchStage.stop();
+		}
 	}
 
 	public static void main(String[] args) throws IOException {
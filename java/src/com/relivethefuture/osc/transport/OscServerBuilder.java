@@ -0,0 +1,279 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import com.relivethefuture.osc.data.OscPacketFactory;
+
+/**
+ * Builds an OscServer with its sockets, IO processors and filter chain tuned,
+ * either setting each option or starting from a named profile.
+ * 
+ * <pre>
+ * OscServer server = new OscServerBuilder(10000)
+ * 		.profile(OscServerBuilder.Profile.LOW_LATENCY).build();
+ * </pre>
+ * 
+ * Options set after profile() override the profile's. Anything not set is
+ * left at the MINA or operating system default. OscServerBenchmark, in the
+ * bench source folder, compares the profiles.
+ */
+public class OscServerBuilder {
+	/**
+	 * Where to put an ExecutorFilter in the filter chain.
+	 */
+	public enum ExecutorPlacement {
+		/**
+		 * Everything runs on the IO processor threads.
+		 */
+		NONE,
+
+		/**
+		 * Decoding and delivery run on the executor's threads, leaving the IO
+		 * processors to read.
+		 */
+		BEFORE_CODEC,
+
+		/**
+		 * Decoding runs on the IO processor, delivery on the executor's
+		 * threads. Can't be used with views.
+		 */
+		AFTER_CODEC
+	}
+
+	public enum Profile {
+		/**
+		 * MINA and operating system defaults.
+		 */
+		DEFAULT("default"),
+
+		/**
+		 * Get each packet to the listeners as soon as possible. TCP_NODELAY,
+		 * fixed size read buffers, and UDP read straight from one socket by
+		 * an OscDatagramReceiver with no filter chain.
+		 */
+		LOW_LATENCY("low-latency"),
+
+		/**
+		 * Keep up with as many packets as possible. Large socket buffers to
+		 * absorb bursts, UDP spread over a socket per processor, and an IO
+		 * processor per processor for TCP.
+		 */
+		HIGH_THROUGHPUT("high-throughput");
+
+		private final String name;
+
+		private Profile(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Look up a profile by name, such as "low-latency".
+		 */
+		public static Profile forName(String name) {
+			for (Profile profile : values()) {
+				if (profile.name.equals(name)) {
+					return profile;
+				}
+			}
+			throw new IllegalArgumentException("Unknown profile : " + name);
+		}
+	}
+
+	public static final int LOW_LATENCY_READ_BUFFER_SIZE = 2048;
+	public static final int LOW_LATENCY_RECEIVE_BUFFER_SIZE = 256 * 1024;
+	public static final int HIGH_THROUGHPUT_READ_BUFFER_SIZE = 64 * 1024;
+	public static final int HIGH_THROUGHPUT_RECEIVE_BUFFER_SIZE = 8 * 1024 * 1024;
+
+	final int port;
+	boolean udp = true;
+	OscPacketFactory oscPacketFactory;
+	boolean decodeViews = false;
+	OscDispatchStage dispatchStage;
+	int receiveSockets = -1;
+	boolean logging = false;
+	int processorCount = 0;
+	int receiveBufferSize = 0;
+	int readBufferSize = 0;
+	int minReadBufferSize = 0;
+	int maxReadBufferSize = 0;
+	boolean tcpNoDelay = false;
+	ExecutorPlacement executorPlacement = ExecutorPlacement.NONE;
+	int executorThreads = 0;
+
+	public OscServerBuilder(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Set all the tuning options from a profile.
+	 */
+	public OscServerBuilder profile(Profile profile) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		receiveSockets = -1;
+		processorCount = 0;
+		receiveBufferSize = 0;
+		readBufferSize = 0;
+		minReadBufferSize = 0;
+		maxReadBufferSize = 0;
+		tcpNoDelay = false;
+		executorPlacement = ExecutorPlacement.NONE;
+		executorThreads = 0;
+		switch (profile) {
+		case LOW_LATENCY:
+			receiveSockets = 1;
+			tcpNoDelay = true;
+			receiveBufferSize = LOW_LATENCY_RECEIVE_BUFFER_SIZE;
+			// Fixed size so MINA doesn't resize it between reads
+			readBufferSize = LOW_LATENCY_READ_BUFFER_SIZE;
+			minReadBufferSize = LOW_LATENCY_READ_BUFFER_SIZE;
+			maxReadBufferSize = LOW_LATENCY_READ_BUFFER_SIZE;
+			break;
+		case HIGH_THROUGHPUT:
+			receiveSockets = 0;
+			processorCount = processors;
+			receiveBufferSize = HIGH_THROUGHPUT_RECEIVE_BUFFER_SIZE;
+			readBufferSize = HIGH_THROUGHPUT_READ_BUFFER_SIZE;
+			maxReadBufferSize = HIGH_THROUGHPUT_READ_BUFFER_SIZE;
+			break;
+		default:
+			break;
+		}
+		return this;
+	}
+
+	public OscServerBuilder profile(String name) {
+		return profile(Profile.forName(name));
+	}
+
+	public OscServerBuilder udp(boolean udp) {
+		this.udp = udp;
+		return this;
+	}
+
+	public OscServerBuilder oscFactory(OscPacketFactory factory) {
+		oscPacketFactory = factory;
+		return this;
+	}
+
+	/**
+	 * @see OscServer#setDecodeViews(boolean)
+	 */
+	public OscServerBuilder decodeViews(boolean decodeViews) {
+		this.decodeViews = decodeViews;
+		return this;
+	}
+
+	/**
+	 * @see OscServer#setDispatchStage(OscDispatchStage)
+	 */
+	public OscServerBuilder dispatchStage(OscDispatchStage stage) {
+		dispatchStage = stage;
+		return this;
+	}
+
+	/**
+	 * @see OscServer#setReceiveSockets(int)
+	 */
+	public OscServerBuilder receiveSockets(int count) {
+		receiveSockets = count;
+		return this;
+	}
+
+	/**
+	 * Add MINA's LoggingFilter to the chain, which logs every event. Off by
+	 * default.
+	 */
+	public OscServerBuilder logging(boolean logging) {
+		this.logging = logging;
+		return this;
+	}
+
+	/**
+	 * Number of IO processor threads for TCP, 0 for MINA's default of one
+	 * more than the number of processors. UDP always has one.
+	 */
+	public OscServerBuilder processorCount(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("Bad processor count : "
+					+ count);
+		}
+		processorCount = count;
+		return this;
+	}
+
+	/**
+	 * Socket receive buffer size, SO_RCVBUF, in bytes.
+	 */
+	public OscServerBuilder receiveBufferSize(int size) {
+		receiveBufferSize = size;
+		return this;
+	}
+
+	/**
+	 * Size of the buffer MINA first reads each session into. For UDP this is
+	 * the largest datagram that can be received.
+	 */
+	public OscServerBuilder readBufferSize(int size) {
+		readBufferSize = size;
+		return this;
+	}
+
+	/**
+	 * Limits MINA resizes the read buffer between as reads fill it or not.
+	 */
+	public OscServerBuilder readBufferLimits(int min, int max) {
+		if (min > max) {
+			throw new IllegalArgumentException("Bad read buffer limits : "
+					+ min + " > " + max);
+		}
+		minReadBufferSize = min;
+		maxReadBufferSize = max;
+		return this;
+	}
+
+	public OscServerBuilder tcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * Add an ExecutorFilter with a fixed number of threads. Events for each
+	 * session are kept in order.
+	 */
+	public OscServerBuilder executor(ExecutorPlacement placement, int threads) {
+		if (placement != ExecutorPlacement.NONE && threads < 1) {
+			throw new IllegalArgumentException("Bad executor thread count : "
+					+ threads);
+		}
+		executorPlacement = placement;
+		executorThreads = threads;
+		return this;
+	}
+
+	public OscServer build() {
+		return new OscServer(this);
+	}
+}
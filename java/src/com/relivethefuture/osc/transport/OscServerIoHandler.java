@@ -21,17 +21,25 @@
  */
 package com.relivethefuture.osc.transport;
 
+import java.net.SocketAddress;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscBatchListener;
 import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
 import com.relivethefuture.osc.data.OscListener;
 import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+import com.relivethefuture.osc.data.OscPacket;
+import com.relivethefuture.osc.data.OscPacketFactory;
+import com.relivethefuture.osc.data.OscPacketView;
+import com.relivethefuture.osc.data.OscViewListener;
 
 
 public class OscServerIoHandler extends IoHandlerAdapter {
@@ -40,24 +48,92 @@ public class OscServerIoHandler extends IoHandlerAdapter {
 	
 	public static final String INDEX_KEY = OscServerIoHandler.class.getName()
 			+ ".INDEX";
-	private ArrayList<OscListener> listeners;
+	private static final OscListener[] NO_LISTENERS = new OscListener[0];
+	private static final OscBatchListener[] NO_BATCH_LISTENERS = new OscBatchListener[0];
 
-	public void addListener(OscListener listener) {
-		if (listeners == null) {
-			listeners = new ArrayList<OscListener>();
+	/**
+	 * Replaced, never changed, so IO threads can loop over it without locking
+	 * while listeners are added and removed.
+	 */
+	private volatile OscListener[] listeners = NO_LISTENERS;
+
+	private volatile OscBatchListener[] batchListeners = NO_BATCH_LISTENERS;
+
+	// Each delivering thread fills its own batch
+	private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+		protected Batch initialValue() {
+			return new Batch();
+		}
+	};
+
+	private OscPacketFactory oscPacketFactory = new BasicOscFactory();
+
+	private OscDispatchStage dispatchStage;
+
+	/**
+	 * Factory used to decode message views for listeners that can't take
+	 * them.
+	 */
+	public void setOscFactory(OscPacketFactory factory) {
+		oscPacketFactory = factory;
+	}
+
+	/**
+	 * Pass packets through a stage rather than calling the listeners on the
+	 * IO thread. Set before the server starts, null to call them directly.
+	 */
+	public void setDispatchStage(OscDispatchStage stage) {
+		dispatchStage = stage;
+	}
+
+	public OscDispatchStage getDispatchStage() {
+		return dispatchStage;
+	}
+
+	public synchronized void addListener(OscListener listener) {
+		OscListener[] current = listeners;
+		OscListener[] grown = new OscListener[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = listener;
+		listeners = grown;
+	}
+
+	public synchronized void removeListener(OscListener listener) {
+		OscListener[] current = listeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				OscListener[] shrunk = new OscListener[current.length - 1];
+				System.arraycopy(current, 0, shrunk, 0, i);
+				System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+				listeners = shrunk;
+				return;
+			}
 		}
-		listeners.add(listener);
 	}
 
-	public void removeListener(OscListener listener) {
-		listeners.remove(listener);
+	public synchronized void addBatchListener(OscBatchListener listener) {
+		OscBatchListener[] current = batchListeners;
+		OscBatchListener[] grown = new OscBatchListener[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = listener;
+		batchListeners = grown;
+	}
+
+	public synchronized void removeBatchListener(OscBatchListener listener) {
+		OscBatchListener[] current = batchListeners;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == listener) {
+				OscBatchListener[] shrunk = new OscBatchListener[current.length - 1];
+				System.arraycopy(current, 0, shrunk, 0, i);
+				System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+				batchListeners = shrunk;
+				return;
+			}
+		}
 	}
 
 	public void sessionOpened(IoSession session) throws Exception {
 		session.setAttribute(INDEX_KEY, new Integer(0));
-		if (listeners == null) {
-			listeners = new ArrayList<OscListener>();
-		}
 	}
 
 	public void exceptionCaught(IoSession session, Throwable cause)
@@ -70,11 +146,74 @@ public class OscServerIoHandler extends IoHandlerAdapter {
 
 	public void messageReceived(IoSession session, Object message)
 			throws Exception {
+		packetReceived(session.getRemoteAddress(), message);
+		// NOTE : uncomment this to echo packets back to the client. useful for
+		// testing.
+		// session.write(message);
+	}
+
+	/**
+	 * Pass a decoded packet on to the dispatch stage, or straight to the
+	 * listeners if there isn't one.
+	 */
+	public void packetReceived(SocketAddress source, Object packet) {
+		if (dispatchStage == null) {
+			deliver(packet);
+		} else {
+			if (packet instanceof OscPacketView) {
+				// The receive buffer is reused once this returns
+				packet = ((OscPacketView) packet).copy();
+			}
+			dispatchStage.dispatch(source, packet);
+		}
+	}
+
+	/**
+	 * Hand a packet to the listeners on the calling thread.
+	 */
+	public void deliver(Object message) {
+		message = deliverToListeners(message);
+
+		OscBatchListener[] batchListeners = this.batchListeners;
+		if (batchListeners.length > 0 && message != null) {
+			Batch batch = batches.get();
+			batch.add(message);
+			batch.deliver(batchListeners);
+		}
+	}
+
+	/**
+	 * Hand a run of packets to the listeners on the calling thread. Batch
+	 * listeners get the messages from all of them in one call.
+	 */
+	public void deliver(Object[] messages, int count) {
+		OscBatchListener[] batchListeners = this.batchListeners;
+		Batch batch = batchListeners.length > 0 ? batches.get() : null;
+		for (int i = 0; i < count; i++) {
+			Object message = deliverToListeners(messages[i]);
+			if (batch != null && message != null) {
+				batch.add(message);
+			}
+		}
+
+		if (batch != null) {
+			batch.deliver(batchListeners);
+		}
+	}
+
+	/**
+	 * Hand a packet to the plain listeners. A view is only decoded if one of
+	 * them needs it.
+	 * 
+	 * @return the decoded packet if the view was decoded, otherwise the packet
+	 *         that was passed in, or null if it was badly formed
+	 */
+	private Object deliverToListeners(Object message) {
+		OscListener[] listeners = this.listeners;
 		if (message instanceof OscMessage) {
 			OscMessage oscMessage = (OscMessage) message;
-			for (Iterator<OscListener> i = listeners.iterator(); i.hasNext();) {
-				OscListener listener = (OscListener) i.next();
-				listener.handleMessage(oscMessage);
+			for (int i = 0; i < listeners.length; i++) {
+				listeners[i].handleMessage(oscMessage);
 			}
 
 			// SessionLog.debug(session, "Received OSC Message : " +
@@ -82,18 +221,101 @@ public class OscServerIoHandler extends IoHandlerAdapter {
 			// oscMessage.getArguments().size());
 		} else if (message instanceof OscBundle) {
 			OscBundle oscBundle = (OscBundle) message;
-			for (Iterator<OscListener> i = listeners.iterator(); i.hasNext();) {
-				OscListener listener = (OscListener) i.next();
-				listener.handleBundle(oscBundle);
+			for (int i = 0; i < listeners.length; i++) {
+				listeners[i].handleBundle(oscBundle);
 			}
 
 			// SessionLog.debug(session, "Received OSC Message : " +
 			// oscBundle.getTimestamp() + " : " +
 			// oscBundle.getPackets().size());
+		} else if (message instanceof OscMessageView) {
+			OscMessageView view = (OscMessageView) message;
+			if (!view.isValid()) {
+				logger.warn("Dropping badly formed message");
+				return null;
+			}
+			// Only decode the message if a listener needs it
+			OscMessage oscMessage = null;
+			for (int i = 0; i < listeners.length; i++) {
+				OscListener listener = listeners[i];
+				if (listener instanceof OscViewListener) {
+					((OscViewListener) listener).handleMessageView(view);
+				} else {
+					if (oscMessage == null) {
+						oscMessage = view.toMessage(oscPacketFactory);
+					}
+					listener.handleMessage(oscMessage);
+				}
+			}
+			if (oscMessage != null) {
+				return oscMessage;
+			}
+		} else if (message instanceof OscBundleView) {
+			OscBundleView view = (OscBundleView) message;
+			if (!view.isValid()) {
+				logger.warn("Dropping badly formed bundle");
+				return null;
+			}
+			OscBundle oscBundle = null;
+			for (int i = 0; i < listeners.length; i++) {
+				OscListener listener = listeners[i];
+				if (listener instanceof OscViewListener) {
+					((OscViewListener) listener).handleBundleView(view);
+				} else {
+					if (oscBundle == null) {
+						oscBundle = view.toBundle(oscPacketFactory);
+					}
+					listener.handleBundle(oscBundle);
+				}
+			}
+			if (oscBundle != null) {
+				return oscBundle;
+			}
 		}
-		// NOTE : uncomment this to echo packets back to the client. useful for
-		// testing.
-		// session.write(message);
+		return message;
 	}
 
+	/**
+	 * Messages collected for the batch listeners, with bundles flattened.
+	 */
+	private class Batch {
+		private OscMessage[] messages = new OscMessage[16];
+		private int count;
+
+		void add(Object packet) {
+			if (packet instanceof OscMessage) {
+				if (count == messages.length) {
+					OscMessage[] grown = new OscMessage[count * 2];
+					System.arraycopy(messages, 0, grown, 0, count);
+					messages = grown;
+				}
+				messages[count++] = (OscMessage) packet;
+			} else if (packet instanceof OscBundle) {
+				ArrayList<OscPacket> packets = ((OscBundle) packet).getPackets();
+				for (int i = 0; i < packets.size(); i++) {
+					add(packets.get(i));
+				}
+			} else if (packet instanceof OscMessageView) {
+				// Only reached if no plain listener has decoded it already
+				add(((OscMessageView) packet).toMessage(oscPacketFactory));
+			} else if (packet instanceof OscBundleView) {
+				add(((OscBundleView) packet).toBundle(oscPacketFactory));
+			}
+		}
+
+		void deliver(OscBatchListener[] listeners) {
+			try {
+				if (count > 0) {
+					for (int i = 0; i < listeners.length; i++) {
+						listeners[i].handleMessages(messages, count);
+					}
+				}
+			} finally {
+				for (int i = 0; i < count; i++) {
+					messages[i] = null;
+				}
+				count = 0;
+			}
+		}
+	}
 }
@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.relivethefuture.osc.data.OscSymbol;
+
+/**
+ * Runs listeners on virtual threads so that listeners which block, writing to
+ * a database or calling out over HTTP, never hold up the IO thread and don't
+ * need a thread pool sized for them.
+ * 
+ * By default packets are shared out over a fixed number of strands by the
+ * hash of their address. A strand delivers its packets one at a time on a
+ * virtual thread of its own while it has any, so packets for one address keep
+ * their order and up to that many addresses can be blocked at once. When the
+ * order doesn't matter every packet can be given its own virtual thread
+ * instead.
+ * 
+ * The stage holds a fixed number of packets, over all its strands or threads
+ * and counting the ones being delivered, so listeners that block can't pile
+ * up threads or queued packets without end. Once it is full, and before
+ * start() or after stop(), packets are dropped and counted as the lane stage
+ * does.
+ * 
+ * Virtual threads need Java 21, on older runtimes a cached thread pool is used
+ * so the stage still works but blocking listeners cost a platform thread each.
+ */
+public class OscVirtualThreadDispatchStage implements OscDispatchStage {
+	final Logger logger = LoggerFactory
+			.getLogger(OscVirtualThreadDispatchStage.class);
+
+	/**
+	 * Default number of strands packets are ordered in.
+	 */
+	public static final int STRAND_COUNT = 1024;
+
+	/**
+	 * Default number of packets the stage can hold.
+	 */
+	public static final int DEFAULT_CAPACITY = 16384;
+
+	private static final long STOP_TIMEOUT = 1000;
+
+	private final boolean ordered;
+	private final int capacity;
+	private final AtomicReferenceArray<Strand> strands;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile ExecutorService executor;
+	private volatile boolean virtual;
+	private volatile OscServerIoHandler handler;
+
+	// Replaced on start so that threads left over from before a stop can't
+	// change the count for the next run
+	private volatile AtomicInteger waiting = new AtomicInteger();
+
+	public OscVirtualThreadDispatchStage() {
+		this(true, STRAND_COUNT);
+	}
+
+	/**
+	 * @param ordered
+	 *            keep packets for the same address in order, otherwise every
+	 *            packet is delivered on a thread of its own
+	 * @param strandCount
+	 *            number of strands packets are shared over when ordered
+	 */
+	public OscVirtualThreadDispatchStage(boolean ordered, int strandCount) {
+		this(ordered, strandCount, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            most packets that can be waiting or being delivered
+	 */
+	public OscVirtualThreadDispatchStage(boolean ordered, int strandCount,
+			int capacity) {
+		if (ordered && strandCount < 1) {
+			throw new IllegalArgumentException("Need at least one strand");
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.ordered = ordered;
+		this.capacity = capacity;
+		strands = new AtomicReferenceArray<Strand>(ordered ? strandCount : 0);
+	}
+
+	public void start(OscServerIoHandler handler) {
+		this.handler = handler;
+		waiting = new AtomicInteger();
+		// Strands from before a stop may still think they are running
+		for (int i = 0; i < strands.length(); i++) {
+			strands.set(i, null);
+		}
+		executor = createExecutor();
+	}
+
+	/**
+	 * @return true if listeners are running on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Packets thrown away because the stage was full or not running.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Packets waiting or being delivered right now.
+	 */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	public void dispatch(SocketAddress source, Object packet) {
+		ExecutorService current = executor;
+		if (current == null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		AtomicInteger count = waiting;
+		if (count.incrementAndGet() > capacity) {
+			count.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		if (ordered) {
+			strandFor(OscLaneDispatchStage.addressOf(packet), current, count)
+					.add(packet);
+			return;
+		}
+		try {
+			current.execute(new Delivery(packet, count));
+		} catch (RejectedExecutionException e) {
+			count.decrementAndGet();
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Interrupt the listeners that are running, wait a short while for them
+	 * to return and drop the packets still waiting.
+	 */
+	public void stop() {
+		ExecutorService current = executor;
+		if (current == null) {
+			return;
+		}
+		executor = null;
+		List<Runnable> unstarted = current.shutdownNow();
+		for (Runnable task : unstarted) {
+			if (task instanceof Delivery) {
+				dropped.incrementAndGet();
+			}
+		}
+		try {
+			current.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (int i = 0; i < strands.length(); i++) {
+			Strand strand = strands.getAndSet(i, null);
+			if (strand != null) {
+				strand.drop();
+			}
+		}
+	}
+
+	private Strand strandFor(OscSymbol address, ExecutorService current,
+			AtomicInteger count) {
+		int index = 0;
+		if (address != null) {
+			int hash = address.hashCode();
+			hash ^= (hash >>> 16);
+			index = (hash & 0x7FFFFFFF) % strands.length();
+		}
+		Strand strand = strands.get(index);
+		if (strand == null) {
+			strands.compareAndSet(index, null, new Strand(current, count));
+			strand = strands.get(index);
+		}
+		return strand;
+	}
+
+	private void deliver(Object packet) {
+		try {
+			handler.deliver(packet);
+		} catch (RuntimeException e) {
+			logger.error("Listener failed", e);
+		}
+	}
+
+	private ExecutorService createExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			virtual = true;
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			logger.info("Virtual threads not available, using a thread pool");
+			virtual = false;
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * One packet on a thread of its own, for when the order doesn't matter.
+	 */
+	private class Delivery implements Runnable {
+		private final Object packet;
+		private final AtomicInteger count;
+
+		Delivery(Object packet, AtomicInteger count) {
+			this.packet = packet;
+			this.count = count;
+		}
+
+		public void run() {
+			deliver(packet);
+			count.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Packets waiting to be delivered in order. Only one thread at a time runs
+	 * a strand, and only while it has packets.
+	 */
+	private class Strand implements Runnable {
+		private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+		private final AtomicBoolean running = new AtomicBoolean();
+		private final ExecutorService executor;
+		private final AtomicInteger count;
+
+		Strand(ExecutorService executor, AtomicInteger count) {
+			this.executor = executor;
+			this.count = count;
+		}
+
+		void add(Object packet) {
+			queue.add(packet);
+			if (running.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// Stopped, nothing will run this strand again
+					running.set(false);
+					drop();
+				}
+			}
+		}
+
+		/**
+		 * Throw away the packets still waiting.
+		 */
+		void drop() {
+			while (queue.poll() != null) {
+				count.decrementAndGet();
+				dropped.incrementAndGet();
+			}
+		}
+
+		public void run() {
+			do {
+				Object packet;
+				// Interrupted by stop(), which drops what is left
+				while (!Thread.currentThread().isInterrupted()
+						&& (packet = queue.poll()) != null) {
+					deliver(packet);
+					count.decrementAndGet();
+				}
+				running.set(false);
+				// A packet added after the last poll but before running was
+				// cleared would otherwise be left behind
+			} while (!queue.isEmpty() && !Thread.currentThread().isInterrupted()
+					&& running.compareAndSet(false, true));
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import static com.relivethefuture.osc.data.DataTestSupport.check;
+
+/**
+ * Matching of OSC address patterns, a segment at a time and whole
+ * addresses.
+ */
+public class OscAddressPatternTest {
+	public static void main(String[] args) {
+		testIsPattern();
+		testSegments();
+		testAddresses();
+		System.out.println("OscAddressPatternTest passed");
+	}
+
+	static void testIsPattern() {
+		check(!OscAddressPattern.isPattern("/mixer/1/gain"), "Plain address");
+		check(OscAddressPattern.isPattern("/mixer/*/gain"), "Star");
+		check(OscAddressPattern.isPattern("/mixer/?"), "Question mark");
+		check(OscAddressPattern.isPattern("/mixer/[12]"), "Set");
+		check(OscAddressPattern.isPattern("/mixer/{a,b}"), "Choice");
+	}
+
+	static void testSegments() {
+		matches("gain", "gain");
+		fails("gain", "gains");
+		fails("gain", "gai");
+
+		matches("?", "a");
+		fails("?", "");
+		fails("?", "ab");
+		matches("g??n", "gain");
+
+		matches("*", "");
+		matches("*", "anything");
+		matches("**", "x");
+		matches("g*n", "gn");
+		matches("g*n", "gain");
+		fails("g*n", "gains");
+		matches("*a*b*", "xaxxbx");
+		fails("*a*b*", "xbxa");
+		matches("*ab", "aab");
+
+		matches("[abc]", "b");
+		fails("[abc]", "d");
+		fails("[abc]", "");
+		matches("[a-c]x", "cx");
+		fails("[a-c]x", "dx");
+		matches("ch[0-9][0-9]", "ch42");
+		matches("[!abc]", "d");
+		fails("[!abc]", "a");
+		matches("[!a-c]", "z");
+		fails("[!a-c]", "b");
+		matches("[-a]", "-");
+		fails("[abc", "a");
+
+		matches("{gain,pan}", "gain");
+		matches("{gain,pan}", "pan");
+		fails("{gain,pan}", "mute");
+		matches("{ga,gai}n", "gain");
+		matches("{a,}b", "b");
+		matches("ch{1,2}*", "ch2xyz");
+		fails("{gain,pan", "gain");
+
+		matches("*[0-9]{a,b}?", "track7bz");
+		fails("*[0-9]{a,b}?", "track7cz");
+	}
+
+	static void testAddresses() {
+		check(OscAddressPattern.matches("/mixer/*/gain", "/mixer/12/gain"),
+				"Star segment");
+		check(!OscAddressPattern.matches("/mixer/*", "/mixer/12/gain"),
+				"Star doesn't cross a slash");
+		check(!OscAddressPattern.matches("/mixer/*/gain", "/mixer/gain"),
+				"Segment count");
+		check(OscAddressPattern.matches("/{mixer,fx}/[1-4]/?ain",
+				"/fx/3/gain"), "Every kind");
+		check(OscAddressPattern.matches("/a/b", "/a/b"), "Plain address");
+		check(!OscAddressPattern.matches("/a/b", "/a/c"), "Different address");
+	}
+
+	static void matches(String pattern, String segment) {
+		check(OscAddressPattern.matchesSegment(pattern, segment), pattern
+				+ " should match " + segment);
+	}
+
+	static void fails(String pattern, String segment) {
+		check(!OscAddressPattern.matchesSegment(pattern, segment), pattern
+				+ " should not match " + segment);
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import static com.relivethefuture.osc.data.DataTestSupport.check;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The dispatcher's cache of listeners per address: hits, invalidation when
+ * listeners change, its size bound and changes made while dispatching.
+ */
+public class OscDispatcherCacheTest {
+	private static final OscMessageListener NOTHING = new OscMessageListener() {
+		public void handleMessage(OscMessage msg) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		testHits();
+		testInvalidation();
+		testBound();
+		testDisabled();
+		testChangesWhileDispatching();
+		System.out.println("OscDispatcherCacheTest passed");
+	}
+
+	static void testHits() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		dispatcher.addMessageListener("/mixer/*/gain", NOTHING);
+		OscSymbol address = new OscSymbol("/mixer/1/gain");
+		OscMessageListener[] first = dispatcher.getListeners(address);
+		check(first.length == 1, "Pattern listener found");
+		// A different symbol for the same address hits the cache too
+		check(dispatcher.getListeners(new OscSymbol("/mixer/1/gain")) == first,
+				"Second lookup not from the cache");
+		check(dispatcher.getListeners(new OscSymbol("/none")).length == 0,
+				"No listeners");
+	}
+
+	static void testInvalidation() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		OscSymbol address = new OscSymbol("/a/b");
+		check(dispatcher.getListeners(address).length == 0, "Empty");
+
+		OscMessageListener pattern = new Counter();
+		dispatcher.addMessageListener("/a/?", pattern);
+		OscMessageListener[] found = dispatcher.getListeners(address);
+		check(found.length == 1 && found[0] == pattern,
+				"Cached empty result survived an add");
+
+		OscMessageListener exact = new Counter();
+		dispatcher.addMessageListener("/a/b", exact);
+		check(dispatcher.getListeners(address).length == 2,
+				"Second add not seen");
+
+		dispatcher.removeMessageListener("/a/?", pattern);
+		found = dispatcher.getListeners(address);
+		check(found.length == 1 && found[0] == exact, "Remove not seen");
+	}
+
+	static void testBound() {
+		OscDispatcher dispatcher = new OscDispatcher(4);
+		Counter counter = new Counter();
+		dispatcher.addMessageListener("/n/*", counter);
+		// Many more addresses than the cache holds
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 100; i++) {
+				dispatcher.handleMessage(new OscMessage("/n/" + i));
+			}
+		}
+		check(counter.count.get() == 300, "Delivered " + counter.count);
+
+		OscSymbol address = new OscSymbol("/n/1");
+		OscMessageListener[] first = dispatcher.getListeners(address);
+		check(dispatcher.getListeners(address) == first,
+				"Hit after the cache was cleared");
+	}
+
+	static void testDisabled() {
+		OscDispatcher dispatcher = new OscDispatcher(0);
+		dispatcher.addMessageListener("/a", NOTHING);
+		OscSymbol address = new OscSymbol("/a");
+		OscMessageListener[] first = dispatcher.getListeners(address);
+		check(first.length == 1, "Found without a cache");
+		check(dispatcher.getListeners(address) != first, "Cached anyway");
+	}
+
+	/**
+	 * A listener added while other threads are dispatching to the same
+	 * addresses must get the messages sent after the add returns, and must
+	 * not be found once removed.
+	 */
+	static void testChangesWhileDispatching() throws Exception {
+		final OscDispatcher dispatcher = new OscDispatcher(8);
+		dispatcher.addMessageListener("/hot/*", NOTHING);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] senders = new Thread[2];
+		for (int i = 0; i < senders.length; i++) {
+			final int sender = i;
+			senders[i] = new Thread("sender " + i) {
+				public void run() {
+					int n = 0;
+					while (running.get()) {
+						dispatcher.handleMessage(new OscMessage("/hot/"
+								+ (sender * 16 + n++ % 16)));
+					}
+				}
+			};
+			senders[i].start();
+		}
+
+		try {
+			for (int i = 0; i < 200; i++) {
+				Counter added = new Counter();
+				String address = "/hot/" + (i % 32);
+				dispatcher.addMessageListener(address, added);
+				dispatcher.handleMessage(new OscMessage(address));
+				check(added.count.get() >= 1, "Listener added while "
+						+ "dispatching missed " + address);
+
+				dispatcher.removeMessageListener(address, added);
+				OscMessageListener[] listeners = dispatcher
+						.getListeners(new OscSymbol(address));
+				for (int j = 0; j < listeners.length; j++) {
+					check(listeners[j] != added, "Removed listener still "
+							+ "found for " + address);
+				}
+			}
+		} finally {
+			running.set(false);
+			for (int i = 0; i < senders.length; i++) {
+				senders[i].join();
+			}
+		}
+	}
+
+	static class Counter implements OscMessageListener {
+		final AtomicInteger count = new AtomicInteger();
+
+		public void handleMessage(OscMessage msg) {
+			count.incrementAndGet();
+		}
+	}
+}
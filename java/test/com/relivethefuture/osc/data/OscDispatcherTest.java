@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import static com.relivethefuture.osc.data.DataTestSupport.check;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routing through the dispatcher's address tree, with patterns on either
+ * side.
+ */
+public class OscDispatcherTest {
+	public static void main(String[] args) {
+		testExactAddresses();
+		testListenerPatterns();
+		testIncomingPatterns();
+		testRemove();
+		testBundles();
+		System.out.println("OscDispatcherTest passed");
+	}
+
+	/**
+	 * Records the addresses of the messages it is given.
+	 */
+	static class Recorder implements OscMessageListener {
+		final List<String> addresses = new ArrayList<String>();
+
+		public void handleMessage(OscMessage msg) {
+			addresses.add(msg.getAddress());
+		}
+
+		boolean got(String... expected) {
+			boolean same = addresses.size() == expected.length;
+			for (int i = 0; same && i < expected.length; i++) {
+				same = addresses.get(i).equals(expected[i]);
+			}
+			addresses.clear();
+			return same;
+		}
+	}
+
+	static void send(OscDispatcher dispatcher, String... addresses) {
+		for (int i = 0; i < addresses.length; i++) {
+			dispatcher.handleMessage(new OscMessage(addresses[i]));
+		}
+	}
+
+	static void testExactAddresses() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		Recorder gain = new Recorder();
+		Recorder pan = new Recorder();
+		Recorder mixer = new Recorder();
+		dispatcher.addMessageListener("/mixer/1/gain", gain);
+		dispatcher.addMessageListener("/mixer/1/pan", pan);
+		dispatcher.addMessageListener("/mixer", mixer);
+
+		send(dispatcher, "/mixer/1/gain", "/mixer/1/pan", "/mixer/2/gain",
+				"/mixer/1", "/mixer", "/mixer/1/gain/extra");
+		check(gain.got("/mixer/1/gain"), "Gain got " + gain.addresses);
+		check(pan.got("/mixer/1/pan"), "Pan got " + pan.addresses);
+		check(mixer.got("/mixer"), "Parent address got " + mixer.addresses);
+	}
+
+	static void testListenerPatterns() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		Recorder anyGain = new Recorder();
+		Recorder firstTwo = new Recorder();
+		Recorder exact = new Recorder();
+		dispatcher.addMessageListener("/mixer/*/gain", anyGain);
+		dispatcher.addMessageListener("/mixer/[12]/{gain,pan}", firstTwo);
+		dispatcher.addMessageListener("/mixer/1/gain", exact);
+
+		send(dispatcher, "/mixer/1/gain", "/mixer/3/gain", "/mixer/2/pan",
+				"/mixer/3/pan", "/fx/1/gain");
+		check(anyGain.got("/mixer/1/gain", "/mixer/3/gain"), "Star got "
+				+ anyGain.addresses);
+		check(firstTwo.got("/mixer/1/gain", "/mixer/2/pan"), "Set got "
+				+ firstTwo.addresses);
+		check(exact.got("/mixer/1/gain"), "Exact got " + exact.addresses);
+
+		// Two listeners on one address both get it, in the order added
+		final List<String> order = new ArrayList<String>();
+		dispatcher.addMessageListener("/order", new OscMessageListener() {
+			public void handleMessage(OscMessage msg) {
+				order.add("first");
+			}
+		});
+		dispatcher.addMessageListener("/order", new OscMessageListener() {
+			public void handleMessage(OscMessage msg) {
+				order.add("second");
+			}
+		});
+		send(dispatcher, "/order");
+		check(order.size() == 2 && order.get(0).equals("first"), "Order "
+				+ order);
+	}
+
+	static void testIncomingPatterns() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		Recorder[] channels = new Recorder[4];
+		for (int i = 0; i < channels.length; i++) {
+			channels[i] = new Recorder();
+			dispatcher.addMessageListener("/mixer/" + (i + 1) + "/gain",
+					channels[i]);
+		}
+		Recorder pattern = new Recorder();
+		dispatcher.addMessageListener("/mixer/*/mute", pattern);
+
+		send(dispatcher, "/mixer/{1,3}/gain");
+		check(channels[0].got("/mixer/{1,3}/gain")
+				&& channels[1].got()
+				&& channels[2].got("/mixer/{1,3}/gain")
+				&& channels[3].got(), "Choice of channels");
+
+		send(dispatcher, "/mixer/*/gain", "/*/[!2-3]/gai?");
+		check(channels[0].got("/mixer/*/gain", "/*/[!2-3]/gai?")
+				&& channels[1].got("/mixer/*/gain")
+				&& channels[3].got("/mixer/*/gain", "/*/[!2-3]/gai?"),
+				"Every channel");
+		channels[2].got();
+
+		// A registered pattern only takes an incoming pattern that is the
+		// same, patterns aren't matched against each other
+		send(dispatcher, "/mixer/*/mute", "/mixer/?/mute", "/mixer/1/mute");
+		check(pattern.got("/mixer/*/mute", "/mixer/1/mute"), "Pattern got "
+				+ pattern.addresses);
+	}
+
+	static void testRemove() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		Recorder kept = new Recorder();
+		Recorder removed = new Recorder();
+		dispatcher.addMessageListener("/a/*", kept);
+		dispatcher.addMessageListener("/a/*", removed);
+		dispatcher.addMessageListener("/a/b", removed);
+
+		dispatcher.removeMessageListener("/a/*", removed);
+		send(dispatcher, "/a/b", "/a/c");
+		check(kept.got("/a/b", "/a/c"), "Kept got " + kept.addresses);
+		check(removed.got("/a/b"), "Removed got " + removed.addresses);
+
+		// Removing what was never added does nothing
+		dispatcher.removeMessageListener("/not/there", kept);
+		dispatcher.removeMessageListener("/a/b", kept);
+		send(dispatcher, "/a/b");
+		check(kept.got("/a/b") && removed.got("/a/b"), "After removing nothing");
+	}
+
+	static void testBundles() {
+		OscDispatcher dispatcher = new OscDispatcher();
+		Recorder recorder = new Recorder();
+		dispatcher.addMessageListener("/*", recorder);
+
+		OscBundle inner = new OscBundle();
+		inner.addPacket(new OscMessage("/b"));
+		OscBundle outer = new OscBundle();
+		outer.addPacket(new OscMessage("/a"));
+		outer.addPacket(inner);
+		outer.addPacket(new OscMessage("/c"));
+		outer.addPacket(new OscMessage("/not/matched"));
+		dispatcher.handleBundle(outer);
+		check(recorder.got("/a", "/b", "/c"), "Bundle order "
+				+ recorder.addresses);
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import static com.relivethefuture.osc.data.DataTestSupport.check;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+/**
+ * Round trips through the OSC string codec for heap and direct buffers, with
+ * and without characters outside ASCII.
+ */
+public class OscStringCodecTest {
+	private static final String[] STRINGS = { "", "a", "abc", "abcd",
+			"/synth/1/freq", "caf\u00e9", "\u00e9\u00e9\u00e9",
+			"\u65e5\u672c\u8a9e", "clef \ud834\udd1e", "mixed/\u00fc/ascii" };
+
+	public static void main(String[] args) throws Exception {
+		testRoundTrip(false);
+		testRoundTrip(true);
+		testDecodeRange();
+		testUnterminated();
+		testPaddedLength();
+		System.out.println("OscStringCodecTest passed");
+	}
+
+	static void testRoundTrip(boolean direct)
+			throws CharacterCodingException {
+		for (int i = 0; i < STRINGS.length; i++) {
+			String str = STRINGS[i];
+			ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(64)
+					: ByteBuffer.allocate(64);
+			// Something already in the buffer so offsets get exercised
+			buffer.putInt(0x7F7F7F7F);
+			OscStringCodec.write(str, buffer);
+			int size = buffer.position() - 4;
+			check(size == OscStringCodec.encodedSize(str), "Size of " + str
+					+ " was " + size + " not "
+					+ OscStringCodec.encodedSize(str));
+			check(size % 4 == 0 && buffer.get(buffer.position() - 1) == 0,
+					"Padding of " + str);
+			buffer.putInt(0x7F7F7F7F);
+
+			buffer.flip();
+			buffer.position(4);
+			String read = OscStringCodec.read(buffer);
+			check(read.equals(str), "Read " + read + " not " + str);
+			check(buffer.position() == 4 + size, "Position after " + str);
+			check(buffer.getInt() == 0x7F7F7F7F, "Data after " + str);
+		}
+	}
+
+	static void testDecodeRange() throws CharacterCodingException {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		// The e acute takes two bytes
+		OscStringCodec.write("/a/caf\u00e9", buffer);
+		check(OscStringCodec.decode(buffer, 0, 2).equals("/a"), "ASCII range");
+		check(OscStringCodec.decode(buffer, 3, 8).equals("caf\u00e9"), "UTF-8 range");
+		check(buffer.position() == 12, "Decode moved the position");
+
+		// A slice has a non zero array offset
+		buffer.position(3);
+		ByteBuffer slice = buffer.slice();
+		check(OscStringCodec.decode(slice, 0, 3).equals("caf"), "Slice");
+	}
+
+	static void testUnterminated() throws CharacterCodingException {
+		byte[] bytes = { 'a', 'b', 'c', 'd', 'e' };
+		ByteBuffer heap = ByteBuffer.wrap(bytes);
+		check(OscStringCodec.read(heap).equals("abcde"), "Unterminated heap");
+		check(heap.position() == heap.limit(), "Heap position past the end");
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		check(OscStringCodec.read(direct).equals("abcde"),
+				"Unterminated direct");
+		check(direct.position() == direct.limit(),
+				"Direct position past the end");
+	}
+
+	static void testPaddedLength() {
+		check(OscStringCodec.paddedLength(0) == 4, "Empty");
+		check(OscStringCodec.paddedLength(3) == 4, "Three");
+		check(OscStringCodec.paddedLength(4) == 8, "Four needs a terminator");
+		check(OscStringCodec.paddedLength(7) == 8, "Seven");
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.data;
+
+import static com.relivethefuture.osc.data.DataTestSupport.check;
+
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Conversions between NTP time tags and Java times.
+ */
+public class OscTimeTagTest {
+	private static final long NTP_EPOCH = OscTimeTag.SECONDS_TO_EPOCH << 32;
+
+	// January 1968 to February 2104, the range the seconds field covers
+	private static final long FIRST_MILLIS = (0x80000000L - OscTimeTag.SECONDS_TO_EPOCH) * 1000;
+	private static final long LAST_MILLIS = (0x180000000L - OscTimeTag.SECONDS_TO_EPOCH)
+			* 1000 - 1;
+
+	public static void main(String[] args) {
+		testKnownValues();
+		testMillisRoundTrip();
+		testNanosRoundTrip();
+		testTruncatedFractions();
+		testImmediate();
+		System.out.println("OscTimeTagTest passed");
+	}
+
+	static void testKnownValues() {
+		check(OscTimeTag.millisToNtp(0) == NTP_EPOCH, "1970 is "
+				+ Long.toHexString(OscTimeTag.millisToNtp(0)));
+		check(OscTimeTag.millisToNtp(500) == (NTP_EPOCH | 0x80000000L),
+				"Half a second");
+		check(OscTimeTag.ntpToNanos(NTP_EPOCH | 0x40000000L) == 250000000L,
+				"Quarter of a second");
+		// Seconds wrap to 0 on February 7th 2036
+		long wrapped = OscTimeTag.ntpToMillis(0x0000000100000000L);
+		check(wrapped == (0x100000001L - OscTimeTag.SECONDS_TO_EPOCH) * 1000,
+				"After the 2036 wrap " + new Date(wrapped));
+		check(OscTimeTag.ntpToMillis(OscTimeTag.millisToNtp(-1000)) == -1000,
+				"Before 1970");
+	}
+
+	static void testMillisRoundTrip() {
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			long millis = FIRST_MILLIS
+					+ (long) (random.nextDouble() * (LAST_MILLIS - FIRST_MILLIS));
+			long ntp = OscTimeTag.millisToNtp(millis);
+			check(OscTimeTag.ntpToMillis(ntp) == millis, millis + " came back "
+					+ OscTimeTag.ntpToMillis(ntp));
+			check(OscTimeTag.fromDate(new Date(millis)).toMillis() == millis,
+					"Date " + millis);
+		}
+	}
+
+	static void testNanosRoundTrip() {
+		Random random = new Random(2);
+		for (int i = 0; i < 100000; i++) {
+			long millis = FIRST_MILLIS
+					+ (long) (random.nextDouble() * (LAST_MILLIS - FIRST_MILLIS));
+			long nanos = millis * 1000000L + random.nextInt(1000000);
+			long ntp = OscTimeTag.nanosToNtp(nanos);
+			check(OscTimeTag.ntpToNanos(ntp) == nanos, nanos + " came back "
+					+ OscTimeTag.ntpToNanos(ntp));
+			check(OscTimeTag.fromNanos(nanos).getNtpTime() == ntp, "fromNanos");
+		}
+	}
+
+	/**
+	 * Times written by implementations that truncate the fraction rather than
+	 * rounding it still come back as the millisecond that was meant.
+	 */
+	static void testTruncatedFractions() {
+		for (long millis = 0; millis < 1000; millis++) {
+			long fraction = (millis << 32) / 1000;
+			long ntp = NTP_EPOCH | fraction;
+			check(OscTimeTag.ntpToMillis(ntp) == millis, "Truncated "
+					+ millis + " read as " + OscTimeTag.ntpToMillis(ntp));
+		}
+	}
+
+	static void testImmediate() {
+		check(OscTimeTag.isImmediate(OscTimeTag.IMMEDIATE), "1 not immediate");
+		check(OscTimeTag.isImmediate(OscTimeTag.ZERO), "0 not immediate");
+		check(!OscTimeTag.isImmediate(OscTimeTag.now()), "Now is immediate");
+		check(OscTimeTag.IMMEDIATELY.isImmediate(), "IMMEDIATELY");
+		check(OscTimeTag.fromDate(null).isImmediate(), "No date");
+		check(new OscBundle().getOscTimeTag().isImmediate(),
+				"New bundle not immediate");
+		OscBundle bundle = new OscBundle();
+		bundle.setTimeTag(OscTimeTag.ZERO);
+		check(bundle.getOscTimeTag().isImmediate(), "Zero bundle");
+	}
+}
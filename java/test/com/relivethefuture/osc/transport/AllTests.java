@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import com.relivethefuture.osc.data.OscAddressPatternTest;
+import com.relivethefuture.osc.data.OscDispatcherCacheTest;
+import com.relivethefuture.osc.data.OscDispatcherTest;
+import com.relivethefuture.osc.data.OscStringCodecTest;
+import com.relivethefuture.osc.data.OscTimeTagTest;
+
+/**
+ * Runs every test in turn, stopping at the first failure.
+ */
+public class AllTests {
+	public static void main(String[] args) throws Exception {
+		OscMessageViewTest.main(args);
+		DecodePlanTest.main(args);
+		OscMessageStorageTest.main(args);
+		OscTimeTagTest.main(args);
+		OscStringCodecTest.main(args);
+		OscBundleViewTest.main(args);
+		OscMessageTemplateTest.main(args);
+		OscPacketWriterTest.main(args);
+		OscArrayTagsTest.main(args);
+		OscAddressPatternTest.main(args);
+		OscDispatcherTest.main(args);
+		OscDispatcherCacheTest.main(args);
+		OscStreamDecodeTest.main(args);
+		OscVirtualThreadDispatchStageTest.main(args);
+		OscRingBufferDispatchStageTest.main(args);
+		OscSchedulingDispatchStageTest.main(args);
+		OscJitterBufferDispatchStageTest.main(args);
+	}
+}
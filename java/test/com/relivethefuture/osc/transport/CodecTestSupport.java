@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscPacket;
+
+/**
+ * Encoding and decoding helpers for the codec tests, going through the plain
+ * ByteBuffer entry points so no MINA session is needed.
+ */
+final class CodecTestSupport {
+	private CodecTestSupport() {
+	}
+
+	static ByteBuffer encode(OscPacket packet) throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(packet.getSize());
+		new OscDataEncoder(true).encodePacket(packet, buffer, false);
+		buffer.flip();
+		return buffer;
+	}
+
+	static Object decode(ByteBuffer datagram, boolean views) throws Exception {
+		return new OscDataDecoder(new BasicOscFactory(), true, views)
+				.decode(datagram.duplicate());
+	}
+
+	/**
+	 * Build a raw packet from strings, padded with NULs to 4 bytes as OSC
+	 * strings are, and ints, written as they are.
+	 */
+	static ByteBuffer raw(Object... parts) {
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		for (Object part : parts) {
+			if (part instanceof String) {
+				byte[] bytes = ((String) part).getBytes();
+				buffer.put(bytes);
+				int padding = 4 - (bytes.length % 4);
+				for (int i = 0; i < padding; i++) {
+					buffer.put((byte) 0);
+				}
+			} else if (part instanceof byte[]) {
+				// Written as is, without padding
+				buffer.put((byte[]) part);
+			} else {
+				buffer.putInt((Integer) part);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Do two messages have the same address, type tags and arguments, arrays
+	 * compared element by element?
+	 */
+	static boolean sameMessage(OscMessage a, OscMessage b) {
+		return a.getAddress().equals(b.getAddress())
+				&& a.getTypeTags().equals(b.getTypeTags())
+				&& Arrays.deepEquals(a.getArguments().toArray(), b
+						.getArguments().toArray());
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.nio.ByteBuffer;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscSymbol;
+
+/**
+ * Compiling type tags into decode plans and caching them by their raw bytes.
+ */
+public class DecodePlanTest {
+	public static void main(String[] args) throws Exception {
+		testCompile();
+		testCacheLookup();
+		testCacheCollisions();
+		testCacheFull();
+		testDecoderUsesCache();
+		System.out.println("DecodePlanTest passed");
+	}
+
+	static void testCompile() {
+		DecodePlan plan = DecodePlan.compile(",if[ff]s[si][]".getBytes());
+		check(new String(plan.ops).equals("if[s[["), "Ops "
+				+ new String(plan.ops));
+		check(plan.arrayTypes.length == 3, "Arrays " + plan.arrayTypes.length);
+		check(plan.arrayTypes[0].equals("ff"), "First array "
+				+ plan.arrayTypes[0]);
+		check(plan.arrayElementTypes[0] == 'f', "ff not read in one go");
+		check(plan.arrayTypes[1].equals("si"), "Second array "
+				+ plan.arrayTypes[1]);
+		check(plan.arrayElementTypes[1] == 0, "si read as numbers");
+		check(plan.arrayOps[2].length == 0, "Empty array has elements");
+		check(plan.arrayElementTypes[2] == 0, "Empty array read as numbers");
+
+		DecodePlan noComma = DecodePlan.compile("if[ff]s".getBytes());
+		check(new String(noComma.ops).equals("if[s"), "Without comma "
+				+ new String(noComma.ops));
+	}
+
+	static void testCacheLookup() {
+		ByteKeyCache<String> cache = new ByteKeyCache<String>(16);
+		byte[] key = ",ifs".getBytes();
+		cache.put(key, hash(key), "plan");
+
+		// Look up the same bytes sitting in the middle of another buffer
+		ByteBuffer buffer = ByteBuffer.wrap("xx,ifsyy".getBytes());
+		int hash = ByteKeyCache.hash(buffer, 2, 6);
+		check("plan".equals(cache.get(buffer, 2, 6, hash)), "Key not found");
+		check(cache.get(buffer, 2, 5, ByteKeyCache.hash(buffer, 2, 5)) == null,
+				"Prefix of a key found");
+	}
+
+	static void testCacheCollisions() {
+		// "Aa" and "BB" hash the same
+		byte[] first = "Aa".getBytes();
+		byte[] second = "BB".getBytes();
+		check(hash(first) == hash(second), "Test keys don't collide");
+		ByteKeyCache<String> cache = new ByteKeyCache<String>(16);
+		cache.put(first, hash(first), "first");
+		cache.put(second, hash(second), "second");
+		check("first".equals(lookup(cache, first)), "Lost first of a collision");
+		check("second".equals(lookup(cache, second)),
+				"Lost second of a collision");
+	}
+
+	/**
+	 * A full cache forgets some keys but never returns the wrong value.
+	 */
+	static void testCacheFull() {
+		ByteKeyCache<String> cache = new ByteKeyCache<String>(4);
+		for (int i = 0; i < 64; i++) {
+			byte[] key = (",key" + i).getBytes();
+			cache.put(key, hash(key), "value" + i);
+			check(("value" + i).equals(lookup(cache, key)),
+					"Newest key not found");
+		}
+		for (int i = 0; i < 64; i++) {
+			String value = lookup(cache, (",key" + i).getBytes());
+			check(value == null || value.equals("value" + i), "Key " + i
+					+ " gave " + value);
+		}
+	}
+
+	/**
+	 * Decoders sharing a cache compile each signature once and decode the same
+	 * messages as a fresh decoder.
+	 */
+	static void testDecoderUsesCache() throws Exception {
+		ByteKeyCache<DecodePlan> plans = new ByteKeyCache<DecodePlan>(
+				OscDataDecoder.DECODE_PLAN_CACHE_SIZE);
+		ByteKeyCache<OscSymbol> symbols = new ByteKeyCache<OscSymbol>(
+				OscDataDecoder.ADDRESS_CACHE_SIZE);
+		OscDataDecoder first = new OscDataDecoder(new BasicOscFactory(), true,
+				false, plans, symbols);
+		OscDataDecoder second = new OscDataDecoder(new BasicOscFactory(),
+				true, false, plans, symbols);
+
+		OscMessage message = new OscMessage("/cached");
+		message.addInt(1);
+		message.addArgument(new float[] { 0.5f, 0.25f });
+		message.addArgument("s");
+
+		OscMessage decoded = (OscMessage) first.decode(encode(message));
+		check(sameMessage(message, decoded), "First decode gave " + decoded);
+		byte[] tags = message.getTypeTags().getBytes();
+		DecodePlan plan = lookup(plans, tags);
+		check(plan != null, "Plan not cached");
+
+		decoded = (OscMessage) second.decode(encode(message));
+		check(sameMessage(message, decoded), "Cached decode gave " + decoded);
+		check(lookup(plans, tags) == plan, "Plan compiled again");
+	}
+
+	private static int hash(byte[] key) {
+		return ByteKeyCache.hash(ByteBuffer.wrap(key), 0, key.length);
+	}
+
+	private static <V> V lookup(ByteKeyCache<V> cache, byte[] key) {
+		return cache.get(ByteBuffer.wrap(key), 0, key.length, hash(key));
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.decode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+
+/**
+ * Array arguments: their type tags, sizes and round trips, and arrays added
+ * through addArgument(Object).
+ */
+public class OscArrayTagsTest {
+	public static void main(String[] args) throws Exception {
+		testNumberArrays(false);
+		testNumberArrays(true);
+		testMixedArray(false);
+		testMixedArray(true);
+		testEmptyArrays();
+		testAddObject();
+		testAddObjectRefused();
+		System.out.println("OscArrayTagsTest passed");
+	}
+
+	static void testNumberArrays(boolean primitive) throws Exception {
+		OscMessage message = new OscMessage("/arrays", primitive);
+		message.addArgument(new float[] { 1.5f, -2f });
+		message.addArgument(new int[] { 1, 2, 3 });
+		message.addArgument(new double[] { Math.E });
+		message.addInt(9);
+		check(message.getTypeTags().equals(",[ff][iii][d]i"), "Tags "
+				+ message.getTypeTags());
+		check(message.getArgumentCount() == 4, "Arrays count as one");
+		check(message.getArgumentType(1) == '[', "Array type");
+		check(message.getIntArray(1)[2] == 3, "Int array");
+
+		ByteBuffer data = encode(message);
+		check(data.remaining() == message.getSize(), "Size "
+				+ message.getSize() + " encoded " + data.remaining());
+
+		OscMessage decoded = (OscMessage) decode(data, false);
+		check(sameMessage(decoded, message), "Decoded " + decoded);
+		check(Arrays.equals(decoded.getFloatArray(0), new float[] { 1.5f, -2f })
+				&& Arrays.equals(decoded.getDoubleArray(2),
+						new double[] { Math.E }), "Decoded arrays");
+
+		OscMessageView view = (OscMessageView) decode(data, true);
+		check(view.getArrayLength(1) == 3
+				&& Arrays.equals(view.getIntArray(1), new int[] { 1, 2, 3 }),
+				"View of int array");
+		check(view.getInt(3) == 9, "Argument after the arrays");
+		try {
+			decoded.getIntArray(0);
+			check(false, "Float array read as ints");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	static void testMixedArray(boolean primitive) throws Exception {
+		OscMessage message = new OscMessage("/mixed", primitive);
+		message.addArgument(new Object[] { "name", 4, 0.5f,
+				BigInteger.valueOf(-1), 'z', Boolean.TRUE,
+				new byte[] { 1, 2, 3, 4, 5 } }, "sifhcTb");
+		message.addArgument("after");
+		check(message.getTypeTags().equals(",[sifhcTb]s"), "Tags "
+				+ message.getTypeTags());
+
+		ByteBuffer data = encode(message);
+		check(data.remaining() == message.getSize(), "Mixed size");
+		OscMessage decoded = (OscMessage) decode(data, false);
+		check(sameMessage(decoded, message), "Decoded " + decoded);
+
+		OscMessage converted = ((OscMessageView) decode(data, true))
+				.toMessage(new BasicOscFactory());
+		check(sameMessage(converted, message), "View gave " + converted);
+	}
+
+	static void testEmptyArrays() throws Exception {
+		OscMessage message = new OscMessage("/empty");
+		message.addArgument(new float[0]);
+		message.addArgument(new Object[0], "");
+		message.addArgument(1);
+		check(message.getTypeTags().equals(",[][]i"), "Tags "
+				+ message.getTypeTags());
+		ByteBuffer data = encode(message);
+		check(data.remaining() == message.getSize(), "Empty size");
+		OscMessage decoded = (OscMessage) decode(data, false);
+		check(decoded.getTypeTags().equals(",[][]i")
+				&& ((Integer) decoded.getArguments().get(2)) == 1,
+				"Decoded " + decoded);
+	}
+
+	static void testAddObject() throws Exception {
+		OscMessage typed = new OscMessage("/objects");
+		typed.addArgument(new float[] { 1f });
+		typed.addArgument(new int[] { 2 });
+		typed.addArgument(new double[] { 3d });
+		typed.addArgument(new Object[] { "s", 4, Boolean.FALSE }, "siF");
+		typed.addArgument('c');
+
+		Object[] arguments = { new float[] { 1f }, new int[] { 2 },
+				new double[] { 3d }, new Object[] { "s", 4, Boolean.FALSE },
+				Character.valueOf('c') };
+		OscMessage untyped = new OscMessage("/objects");
+		OscMessage primitive = new OscMessage("/objects", true);
+		for (int i = 0; i < arguments.length; i++) {
+			untyped.addArgument(arguments[i]);
+			primitive.addArgument(arguments[i]);
+		}
+		check(untyped.getTypeTags().equals(",[f][i][d][siF]c"), "Tags "
+				+ untyped.getTypeTags());
+		check(sameMessage(untyped, typed), "Added as objects " + untyped);
+		check(primitive.getChar(4) == 'c', "Primitive char");
+		check(encode(untyped).equals(encode(typed))
+				&& encode(primitive).equals(encode(typed)), "Encoded bytes");
+	}
+
+	static void testAddObjectRefused() {
+		Object[] refused = { new Object(), new long[] { 1 }, null,
+				Long.valueOf(1), new Object[] { "ok", Long.valueOf(1) },
+				new Object[] { new int[] { 1 } } };
+		for (int i = 0; i < refused.length; i++) {
+			OscMessage message = new OscMessage("/refused");
+			try {
+				message.addArgument(refused[i]);
+				check(false, "Added " + refused[i]);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			check(message.getArgumentCount() == 0
+					&& message.getTypeTags().equals(","), "Refused argument "
+					+ i + " left " + message.getTypeTags());
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.decode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.raw;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscBundleView;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+import com.relivethefuture.osc.data.OscPacket;
+
+/**
+ * Bundle views against the decoder, address prefix tests and bundles whose
+ * element sizes don't add up.
+ */
+public class OscBundleViewTest {
+	private static final long TIME_TAG = 0xE0000000C0000000L;
+
+	public static void main(String[] args) throws Exception {
+		testMatchesDecoder();
+		testAddressPrefix();
+		testManyElements();
+		testCopy();
+		testMalformed();
+		testInvalidNestedBundleSkipped();
+		System.out.println("OscBundleViewTest passed");
+	}
+
+	static OscBundle nested() {
+		OscBundle inner = new OscBundle();
+		inner.setTimeTag(TIME_TAG + 1);
+		OscMessage deep = new OscMessage("/inner/note");
+		deep.addArgument(60);
+		inner.addPacket(deep);
+
+		OscBundle outer = new OscBundle();
+		outer.setTimeTag(TIME_TAG);
+		OscMessage first = new OscMessage("/outer/volume");
+		first.addArgument(0.5f);
+		outer.addPacket(first);
+		outer.addPacket(inner);
+		OscMessage last = new OscMessage("/outer/name");
+		last.addArgument("pad");
+		outer.addPacket(last);
+		return outer;
+	}
+
+	static void testMatchesDecoder() throws Exception {
+		ByteBuffer datagram = encode(nested());
+		OscBundle decoded = (OscBundle) decode(datagram, false);
+		OscBundleView view = (OscBundleView) decode(datagram, true);
+
+		check(view.isValid(), "Valid bundle");
+		check(view.getSize() == datagram.remaining(), "Size");
+		check(view.getTimeTag() == TIME_TAG, "Time tag");
+		check(!view.isImmediate(), "Not immediate");
+		check(view.getElementCount() == 3, "Element count");
+		check(!view.isElementBundle(0) && view.isElementBundle(1)
+				&& !view.isElementBundle(2), "Element kinds");
+
+		OscMessageView message = view.getMessage(0);
+		check(message.getAddress().equals("/outer/volume")
+				&& message.getFloat(0) == 0.5f, "First element");
+		// One view reused for another element
+		check(view.getMessage(2, message) == message
+				&& message.getStringAt(0).equals("pad"), "Reused view");
+
+		OscBundleView inner = view.getBundle(1);
+		check(inner.isValid() && inner.getTimeTag() == TIME_TAG + 1
+				&& inner.getElementCount() == 1, "Inner bundle");
+		check(inner.getMessage(0).getInt(0) == 60, "Inner message");
+
+		check(sameBundle(view.toBundle(new BasicOscFactory()), decoded),
+				"toBundle differs from the decoder");
+	}
+
+	static void testAddressPrefix() throws Exception {
+		OscBundleView view = (OscBundleView) decode(encode(nested()), true);
+		check(view.elementAddressStartsWith(0, "/outer"), "Message prefix");
+		check(!view.elementAddressStartsWith(0, "/inner"), "Wrong prefix");
+		check(!view.elementAddressStartsWith(1, "/inner"),
+				"Bundle elements have no address");
+		check(!view.elementAddressStartsWith(0,
+				"/outer/volume/and/then/much/more/than/the/element/holds"),
+				"Prefix longer than the element");
+		check(view.hasAddressPrefix("/inner/"), "Prefix in nested bundle");
+		check(view.hasAddressPrefix("/outer/name"), "Prefix of last element");
+		check(!view.hasAddressPrefix("/missing"), "Missing prefix");
+	}
+
+	static void testManyElements() throws Exception {
+		// More than the initial offset table holds
+		OscBundle bundle = new OscBundle();
+		for (int i = 0; i < 50; i++) {
+			OscMessage message = new OscMessage("/n/" + i);
+			message.addArgument(i);
+			bundle.addPacket(message);
+		}
+		OscBundleView view = (OscBundleView) decode(encode(bundle), true);
+		check(view.isValid() && view.getElementCount() == 50, "50 elements");
+		OscMessageView message = new OscMessageView();
+		for (int i = 0; i < 50; i++) {
+			view.getMessage(i, message);
+			check(message.getAddress().equals("/n/" + i)
+					&& message.getInt(0) == i, "Element " + i);
+		}
+		try {
+			view.getMessage(50);
+			check(false, "Index past the end");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	static void testCopy() throws Exception {
+		ByteBuffer datagram = encode(nested());
+		OscBundleView view = new OscBundleView(datagram, 0, datagram
+				.remaining());
+		OscBundleView copy = view.copy();
+		// Reuse the receive buffer
+		for (int i = 0; i < datagram.limit(); i++) {
+			datagram.put(i, (byte) 0x55);
+		}
+		check(copy.isValid() && copy.getTimeTag() == TIME_TAG
+				&& copy.getElementCount() == 3, "Copy header");
+		check(copy.getBundle(1).getMessage(0).getAddress()
+				.equals("/inner/note"), "Copy contents");
+	}
+
+	static void testMalformed() {
+		// Not a bundle header
+		checkInvalid(raw("#bundlex", 0, 1), "Bad header");
+		// Header cut short
+		checkInvalid(raw("#bundle", 0), "Short header");
+		// Element bigger than the bundle
+		checkInvalid(raw("#bundle", 0, 1, 100, "/a", ","), "Element too big");
+		// Negative element size
+		checkInvalid(raw("#bundle", 0, 1, -8, "/a", ","), "Negative size");
+		// Size prefix cut short
+		checkInvalid(raw("#bundle", 0, 1, 8, "/a", ",", new byte[] { 0, 0 }),
+				"Short size prefix");
+
+		ByteBuffer empty = raw("#bundle", 0, 1);
+		OscBundleView view = new OscBundleView(empty, 0, empty.remaining());
+		check(view.isValid() && view.getElementCount() == 0, "Empty bundle");
+	}
+
+	static void testInvalidNestedBundleSkipped() {
+		// The inner bundle claims an element longer than itself
+		ByteBuffer buffer = raw("#bundle", 0, 1, 20, "#bundle", 0, 1, 100, 8,
+				"/a", ",");
+		OscBundleView view = new OscBundleView(buffer, 0, buffer.remaining());
+		check(view.isValid() && view.getElementCount() == 2, "Outer is valid");
+		check(!view.getBundle(0).isValid(), "Inner is not");
+
+		OscBundle bundle = view.toBundle(new BasicOscFactory());
+		List<OscPacket> packets = bundle.getPackets();
+		check(packets.size() == 1, "Invalid inner bundle decoded");
+		check(((OscMessage) packets.get(0)).getAddress().equals("/a"),
+				"Message after the inner bundle");
+	}
+
+	static void checkInvalid(ByteBuffer buffer, String message) {
+		OscBundleView view = new OscBundleView();
+		check(!view.wrap(buffer, 0, buffer.remaining()), message);
+		check(!view.isValid() && view.getElementCount() == 0, message);
+	}
+
+	static boolean sameBundle(OscBundle a, OscBundle b) {
+		List<OscPacket> left = a.getPackets();
+		List<OscPacket> right = b.getPackets();
+		if (a.getTimeTag() != b.getTimeTag() || left.size() != right.size()) {
+			return false;
+		}
+		for (int i = 0; i < left.size(); i++) {
+			OscPacket x = left.get(i);
+			OscPacket y = right.get(i);
+			if (x.isBundle() != y.isBundle()) {
+				return false;
+			}
+			if (x.isBundle() ? !sameBundle((OscBundle) x, (OscBundle) y)
+					: !sameMessage((OscMessage) x, (OscMessage) y)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscTimeTag;
+import com.relivethefuture.osc.transport.StageTestSupport.RecordingStage;
+
+/**
+ * A burst of bundles from one sender, out of order, into a buffer much
+ * smaller than the burst, so the buffer overflows while the playout thread
+ * is also playing bundles out.
+ * 
+ * The time tags are far enough apart that the playout times, which follow
+ * them plus a delay that only drifts a little from one bundle to the next,
+ * are in time tag order. Whatever is played out, early or on time, must then
+ * come out in time tag order, and anything that can't must be counted as
+ * late.
+ * 
+ * Also a listener that blocks while other senders' buffers overflow.
+ */
+public class OscJitterBufferDispatchStageTest {
+	private static final int BUFFER_SIZE = 4;
+	// Longer than the buffer, so earlier bundles arrive after later ones
+	// have had to be played out early
+	private static final int GROUP_SIZE = BUFFER_SIZE + 2;
+	private static final int BUNDLES = 4 * GROUP_SIZE;
+	private static final long SPACING_MILLIS = 20;
+	private static final long TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+		OscJitterBufferDispatchStage stage = testOverflowOrder();
+		testBlockedListener();
+		System.out.println("OscJitterBufferDispatchStageTest passed, "
+				+ stage.getOverflowCount() + " overflowed, "
+				+ stage.getLateCount() + " late");
+	}
+
+	static OscJitterBufferDispatchStage testOverflowOrder() throws Exception {
+		RecordingStage recorder = new RecordingStage();
+		OscJitterBufferDispatchStage stage = new OscJitterBufferDispatchStage(
+				recorder, BUFFER_SIZE, 1);
+		SocketAddress source = new InetSocketAddress("127.0.0.1", 10000);
+
+		stage.start(null);
+		try {
+			long base = System.currentTimeMillis() - 100;
+			// Each group arrives in reverse order
+			for (int group = 0; group < BUNDLES; group += GROUP_SIZE) {
+				for (int i = group + GROUP_SIZE - 1; i >= group; i--) {
+					stage.dispatch(source, bundleAt(base + i * SPACING_MILLIS,
+							i));
+				}
+			}
+
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (recorder.size() + stage.getLateCount() < BUNDLES
+					&& System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			check(recorder.size() + stage.getLateCount() == BUNDLES,
+					recorder.size() + " played out and "
+							+ stage.getLateCount() + " late of " + BUNDLES);
+			check(stage.getOverflowCount() > 0, "Buffer never overflowed");
+			check(stage.getDeliveredCount() == recorder.size(), "Delivered "
+					+ stage.getDeliveredCount() + " but " + recorder.size()
+					+ " played out");
+
+			List<Object> packets = recorder.getPackets();
+			int last = -1;
+			for (int i = 0; i < packets.size(); i++) {
+				OscBundle bundle = (OscBundle) packets.get(i);
+				int index = ((OscMessage) bundle.getPackets().get(0))
+						.getInt(0);
+				check(index > last, "Bundle " + index + " played out after "
+						+ last);
+				last = index;
+			}
+		} finally {
+			stage.stop();
+		}
+		return stage;
+	}
+
+	/**
+	 * While the listener is stuck on one sender's bundle, another sender's
+	 * buffer overflows. dispatch() must not wait for the listener, and the
+	 * bundles played out early must follow once it is free, counted as
+	 * delivered.
+	 */
+	static void testBlockedListener() throws Exception {
+		final BlockingStage blocking = new BlockingStage();
+		final OscJitterBufferDispatchStage stage = new OscJitterBufferDispatchStage(
+				blocking, 2, 2);
+		SocketAddress stuck = new InetSocketAddress("127.0.0.1", 10001);
+		final SocketAddress other = new InetSocketAddress("127.0.0.1", 10002);
+
+		stage.start(null);
+		try {
+			final long base = System.currentTimeMillis();
+			stage.dispatch(stuck, bundleAt(base, -1));
+			check(blocking.entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+					"First bundle never played out");
+
+			// A second apart, so only the first would be due on time
+			Thread sender = new Thread("Sender") {
+				public void run() {
+					for (int i = 0; i < 4; i++) {
+						stage.dispatch(other, bundleAt(base + i * 1000, i));
+					}
+				}
+			};
+			sender.start();
+			sender.join(TIMEOUT);
+			check(!sender.isAlive(), "dispatch() waited for the listener");
+			check(stage.getOverflowCount() == 2, "Overflowed "
+					+ stage.getOverflowCount());
+
+			blocking.release.countDown();
+			check(blocking.recorder.await(3, TIMEOUT), "Only "
+					+ blocking.recorder.size() + " played out");
+			List<Object> packets = blocking.recorder.getPackets();
+			for (int i = 0; i < 3; i++) {
+				int index = ((OscMessage) ((OscBundle) packets.get(i))
+						.getPackets().get(0)).getInt(0);
+				check(index == i - 1, "Bundle " + index + " played out "
+						+ (i + 1) + "th");
+			}
+			check(stage.getDeliveredCount() >= 3, "Delivered count "
+					+ stage.getDeliveredCount());
+		} finally {
+			blocking.release.countDown();
+			stage.stop();
+		}
+	}
+
+	/**
+	 * Records packets, holding up the first one until released.
+	 */
+	private static class BlockingStage implements OscDispatchStage {
+		final RecordingStage recorder = new RecordingStage();
+		final Semaphore entered = new Semaphore(0);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		public void start(OscServerIoHandler handler) {
+		}
+
+		public void dispatch(SocketAddress source, Object packet) {
+			recorder.dispatch(source, packet);
+			entered.release();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void stop() {
+		}
+	}
+
+	private static OscBundle bundleAt(long millis, int index) {
+		OscBundle bundle = new OscBundle();
+		bundle.setTimeTag(OscTimeTag.millisToNtp(millis));
+		OscMessage message = new OscMessage("/bundle");
+		message.addInt(index);
+		bundle.addPacket(message);
+		return bundle;
+	}
+}
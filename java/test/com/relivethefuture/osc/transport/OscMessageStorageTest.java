@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.nio.ByteBuffer;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscMessage;
+
+/**
+ * Messages with primitive argument storage against ones keeping their
+ * arguments as objects.
+ */
+public class OscMessageStorageTest {
+	// More than the initial capacity, so the arrays have to grow
+	private static final int REPEATS = 5;
+
+	public static void main(String[] args) throws Exception {
+		testSameAsObjectStorage();
+		testTypedGetters();
+		testDecodeIntoPrimitiveStorage();
+		System.out.println("OscMessageStorageTest passed");
+	}
+
+	static OscMessage fill(OscMessage message) {
+		for (int i = 0; i < REPEATS; i++) {
+			message.addInt(i);
+			message.addFloat(i + 0.5f);
+			message.addLong(Long.MAX_VALUE - i);
+			message.addDouble(-i - 0.25);
+			message.addArgument((char) ('a' + i));
+			message.addArgument("string " + i);
+			message.addArgument(new byte[i]);
+			message.addArgument(i % 2 == 0 ? Boolean.TRUE : Boolean.FALSE);
+			message.addArgument(new int[] { i, i + 1 });
+		}
+		return message;
+	}
+
+	/**
+	 * Both kinds of storage give the same tags, arguments, size and bytes.
+	 */
+	static void testSameAsObjectStorage() throws Exception {
+		OscMessage objects = fill(new OscMessage("/storage"));
+		OscMessage primitives = fill(new OscMessage("/storage", true));
+		check(primitives.hasPrimitiveStorage(), "No primitive storage");
+		check(sameMessage(objects, primitives), "Storage differs: "
+				+ primitives + " and " + objects);
+		check(objects.getSize() == primitives.getSize(), "Sizes "
+				+ objects.getSize() + " and " + primitives.getSize());
+
+		ByteBuffer fromObjects = encode(objects);
+		ByteBuffer fromPrimitives = encode(primitives);
+		check(fromPrimitives.remaining() == primitives.getSize(), "Size "
+				+ primitives.getSize() + " but encoded "
+				+ fromPrimitives.remaining());
+		check(fromObjects.equals(fromPrimitives), "Encoded bytes differ");
+	}
+
+	static void testTypedGetters() {
+		OscMessage message = fill(new OscMessage("/storage", true));
+		int last = REPEATS - 1;
+		int base = last * 9;
+		check(message.getArgumentCount() == REPEATS * 9, "Argument count "
+				+ message.getArgumentCount());
+		check(message.getInt(base) == last, "Int " + message.getInt(base));
+		check(message.getFloat(base + 1) == last + 0.5f, "Float");
+		check(message.getLong(base + 2) == Long.MAX_VALUE - last, "Long");
+		check(message.getDouble(base + 3) == -last - 0.25, "Double");
+		check(message.getChar(base + 4) == 'a' + last, "Char");
+		check(("string " + last).equals(message.getObject(base + 5)),
+				"String");
+		check(message.getBoolean(base + 7) == (last % 2 == 0), "Boolean");
+		check(message.getArgumentType(base + 8) == '[', "Array type");
+		check(message.getIntArray(base + 8)[1] == last + 1, "Int array");
+		try {
+			message.getFloat(base);
+			check(false, "Read an int as a float");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	static void testDecodeIntoPrimitiveStorage() throws Exception {
+		OscMessage sent = fill(new OscMessage("/storage"));
+		OscMessage decoded = (OscMessage) new OscDataDecoder(
+				new BasicOscFactory(true), true).decode(encode(sent));
+		check(decoded.hasPrimitiveStorage(), "Decoded without primitive "
+				+ "storage");
+		check(sameMessage(sent, decoded), "Decoded " + decoded);
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.decode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageTemplate;
+
+/**
+ * Templates should encode to the same bytes as the message they stand in
+ * for, before and after their values are patched.
+ */
+public class OscMessageTemplateTest {
+	public static void main(String[] args) throws Exception {
+		testSameBytesAsMessage();
+		testPatching();
+		testInsideBundle();
+		testWrongTypes();
+		System.out.println("OscMessageTemplateTest passed");
+	}
+
+	static OscMessageTemplate template() {
+		// Without the leading comma, which is added
+		return new OscMessageTemplate("/mixer/channel/3", "ifhdcTF");
+	}
+
+	static OscMessage message(int i, float f, long h, double d, char c,
+			boolean first, boolean second) {
+		OscMessage message = new OscMessage("/mixer/channel/3");
+		message.addArgument(i);
+		message.addArgument(f);
+		message.addArgument(BigInteger.valueOf(h));
+		message.addArgument(d);
+		message.addArgument(c);
+		message.addArgument(first);
+		message.addArgument(second);
+		return message;
+	}
+
+	static void testSameBytesAsMessage() throws Exception {
+		OscMessageTemplate template = template();
+		check(template.getArgumentCount() == 7, "Argument count");
+		check(template.getArgumentType(2) == 'h', "Type of argument 2");
+		check(template.getSize() == message(0, 0, 0, 0, '\0', true, false)
+				.getSize(), "Size");
+		check(encode(template).equals(
+				encode(message(0, 0, 0, 0, '\0', true, false))),
+				"Fresh template bytes");
+
+		OscMessageTemplate comma = new OscMessageTemplate("/a", ",if");
+		OscMessageTemplate plain = new OscMessageTemplate("/a", "if");
+		check(encode(comma).equals(encode(plain)), "Leading comma");
+	}
+
+	static void testPatching() throws Exception {
+		OscMessageTemplate template = template();
+		ByteBuffer[] sent = new ByteBuffer[3];
+		for (int n = 0; n < sent.length; n++) {
+			template.setInt(0, n);
+			template.setFloat(1, n + 0.25f);
+			template.setLong(2, -1L << (n * 8));
+			template.setDouble(3, Math.PI * n);
+			template.setChar(4, (char) ('x' + n));
+			template.setBoolean(5, n % 2 == 1);
+			template.setBoolean(6, n % 2 == 0);
+			sent[n] = encode(template);
+
+			check(template.getInt(0) == n && template.getFloat(1) == n + 0.25f
+					&& template.getLong(2) == -1L << (n * 8)
+					&& template.getDouble(3) == Math.PI * n
+					&& template.getChar(4) == 'x' + n
+					&& template.getBoolean(5) == (n % 2 == 1)
+					&& template.getBoolean(6) == (n % 2 == 0), "Read back "
+					+ n);
+		}
+
+		// Each send was a snapshot of the values at the time
+		for (int n = 0; n < sent.length; n++) {
+			OscMessage expected = message(n, n + 0.25f, -1L << (n * 8),
+					Math.PI * n, (char) ('x' + n), n % 2 == 1, n % 2 == 0);
+			check(sent[n].equals(encode(expected)), "Bytes of send " + n);
+			OscMessage decoded = (OscMessage) decode(sent[n], false);
+			check(sameMessage(decoded, expected), "Decoded send " + n);
+		}
+
+		OscMessage copy = template.toMessage(new BasicOscFactory());
+		check(sameMessage(copy, (OscMessage) decode(encode(template), false)),
+				"toMessage");
+	}
+
+	static void testInsideBundle() throws Exception {
+		OscMessageTemplate template = new OscMessageTemplate("/t", "i");
+		template.setInt(0, 42);
+		OscMessage message = new OscMessage("/t");
+		message.addArgument(42);
+
+		OscBundle withTemplate = new OscBundle();
+		withTemplate.addPacket(template);
+		withTemplate.addPacket(template);
+		OscBundle withMessage = new OscBundle();
+		withMessage.addPacket(message);
+		withMessage.addPacket(message);
+		check(encode(withTemplate).equals(encode(withMessage)),
+				"Template in a bundle");
+	}
+
+	static void testWrongTypes() {
+		OscMessageTemplate template = template();
+		try {
+			template.setFloat(0, 1f);
+			check(false, "Float into an int");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			template.getInt(1);
+			check(false, "Int from a float");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			template.setBoolean(0, true);
+			check(false, "Boolean into an int");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		check(template.getInt(0) == 0, "Failed set changed the value");
+
+		String[] variable = { "s", "b", "if[f]", "S", "q" };
+		for (int i = 0; i < variable.length; i++) {
+			try {
+				new OscMessageTemplate("/a", variable[i]);
+				check(false, "Template with " + variable[i]);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+}
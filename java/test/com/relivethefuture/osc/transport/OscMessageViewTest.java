@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.decode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.raw;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscListener;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscMessageView;
+
+/**
+ * Message views against the decoder, and views of packets that don't hold
+ * together.
+ */
+public class OscMessageViewTest {
+	public static void main(String[] args) throws Exception {
+		testMatchesDecoder();
+		testArrayNumbering();
+		testMalformed();
+		testMalformedNotDelivered();
+		System.out.println("OscMessageViewTest passed");
+	}
+
+	static OscMessage everyType() {
+		OscMessage message = new OscMessage("/every/type");
+		message.addArgument(1);
+		message.addArgument(2.5f);
+		message.addArgument("text");
+		message.addArgument(new byte[] { 1, 2, 3 });
+		message.addArgument(new float[] { 1f, 2f, 3f });
+		message.addArgument(BigInteger.valueOf(-9));
+		message.addArgument(3.25d);
+		message.addArgument(new Object[] { "a", 4 }, "si");
+		message.addArgument(Boolean.TRUE);
+		message.addArgument(Boolean.FALSE);
+		message.addArgument(7);
+		message.addArgument(new Object[0], "");
+		return message;
+	}
+
+	/**
+	 * A view decoded to a message gives the same message as the decoder.
+	 */
+	static void testMatchesDecoder() throws Exception {
+		OscMessage sent = everyType();
+		ByteBuffer data = encode(sent);
+		OscMessage decoded = (OscMessage) decode(data, false);
+		OscMessageView view = (OscMessageView) decode(data, true);
+
+		check(view.isValid(), "View of a good message not valid");
+		check(view.addressEquals("/every/type"), "Address doesn't match");
+		check(view.getArgumentCount() == decoded.getArgumentCount(),
+				"View has " + view.getArgumentCount() + " arguments, decoder "
+						+ decoded.getArgumentCount());
+		OscMessage converted = view.toMessage(new BasicOscFactory());
+		check(sameMessage(decoded, converted), "View gave " + converted
+				+ " decoder gave " + decoded);
+		check(converted.getTypeTags().equals(sent.getTypeTags()),
+				"Type tags " + converted.getTypeTags() + " sent "
+						+ sent.getTypeTags());
+	}
+
+	/**
+	 * An array is one argument, as it is in OscMessage.
+	 */
+	static void testArrayNumbering() throws Exception {
+		OscMessageView view = (OscMessageView) decode(encode(everyType()),
+				true);
+		check(view.getArgumentCount() == 12, "Argument count "
+				+ view.getArgumentCount());
+		check(view.getTypeTag(4) == '[', "Argument 4 is '"
+				+ view.getTypeTag(4) + "'");
+		check(view.getArrayLength(4) == 3, "Array length "
+				+ view.getArrayLength(4));
+		check(Arrays.equals(view.getFloatArray(4), new float[] { 1f, 2f, 3f }),
+				"Float array " + Arrays.toString(view.getFloatArray(4)));
+		check(view.getDouble(6) == 3.25d, "Double " + view.getDouble(6));
+		check(Arrays.equals((Object[]) view.getArgument(7), new Object[] {
+				"a", 4 }), "Mixed array");
+		check(view.getInt(10) == 7, "Int after the arrays " + view.getInt(10));
+		check(view.getArrayLength(11) == 0, "Empty array length "
+				+ view.getArrayLength(11));
+	}
+
+	static void testMalformed() {
+		checkInvalid("String without a NUL", raw("/a", ",s", "abcd"
+				.getBytes()));
+		checkInvalid("Huge blob", raw("/a", ",b", 0x7F000000, 0));
+		checkInvalid("Negative blob", raw("/a", ",b", -4, 0));
+		checkInvalid("Blob past the end", raw("/a", ",b", 8, 0));
+		checkInvalid("Missing int", raw("/a", ",ii", 1));
+		checkInvalid("Missing double", raw("/a", ",d", 1));
+		checkInvalid("Unclosed array", raw("/a", ",[ii", 1, 2));
+		check(view(raw("/a", ",bs", 3, new byte[] { 1, 2, 3, 0 }, "x"))
+				.isValid(), "Good blob then string not valid");
+	}
+
+	/**
+	 * The handler drops a bad view rather than decoding it on the IO thread.
+	 */
+	static void testMalformedNotDelivered() {
+		final int[] calls = new int[1];
+		OscServerIoHandler handler = new OscServerIoHandler();
+		handler.addListener(new OscListener() {
+			public void handleMessage(OscMessage message) {
+				calls[0]++;
+			}
+
+			public void handleBundle(OscBundle bundle) {
+			}
+		});
+		handler.deliver(view(raw("/a", ",s", "abcd".getBytes())));
+		check(calls[0] == 0, "Bad message delivered");
+	}
+
+	private static void checkInvalid(String what, ByteBuffer data) {
+		OscMessageView view = view(data);
+		check(!view.isValid(), what + " is valid");
+	}
+
+	private static OscMessageView view(ByteBuffer data) {
+		OscMessageView view = new OscMessageView();
+		view.wrap(data, 0, data.limit());
+		return view;
+	}
+}
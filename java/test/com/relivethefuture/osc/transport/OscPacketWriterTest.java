@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscPacket;
+
+/**
+ * The writer should produce the same bytes as the encoder given the
+ * equivalent objects, with every back-patched size right.
+ */
+public class OscPacketWriterTest {
+	private static final long TIME_TAG = 0xE000000100000000L;
+
+	public static void main(String[] args) throws Exception {
+		testMessage();
+		testBlobPadding();
+		testNestedBundles();
+		testSizePrefix();
+		testDeepNesting();
+		testLargeMessage();
+		testState();
+		System.out.println("OscPacketWriterTest passed");
+	}
+
+	static ByteBuffer written(OscPacketWriter writer) {
+		check(writer.isComplete(), "Writer not complete");
+		ByteBuffer buffer = writer.getBuffer();
+		buffer.flip();
+		return buffer;
+	}
+
+	static OscPacketWriter writer() {
+		return new OscPacketWriter(ByteBuffer.allocate(65536));
+	}
+
+	static void testMessage() throws Exception {
+		OscPacketWriter writer = writer();
+		writer.message("/every/type").i(-7).h(1L << 40).f(0.5f).d(-2.25)
+				.c('q').t(true).t(false).s("caf\u00e9").b(new byte[] { 9 })
+				.end();
+
+		OscMessage message = new OscMessage("/every/type");
+		message.addArgument(-7);
+		message.addArgument(BigInteger.valueOf(1L << 40));
+		message.addArgument(0.5f);
+		message.addArgument(-2.25);
+		message.addArgument('q');
+		message.addArgument(true);
+		message.addArgument(false);
+		message.addArgument("caf\u00e9");
+		message.addArgument(new byte[] { 9 });
+		check(written(writer).equals(encode(message)), "Message bytes");
+	}
+
+	static void testBlobPadding() throws Exception {
+		for (int length = 0; length < 9; length++) {
+			byte[] blob = new byte[length];
+			for (int i = 0; i < length; i++) {
+				blob[i] = (byte) (i + 1);
+			}
+			OscPacketWriter writer = writer();
+			writer.message("/blob").b(blob).i(length).end();
+
+			OscMessage message = new OscMessage("/blob");
+			message.addArgument(blob);
+			message.addArgument(length);
+			check(written(writer).equals(encode(message)), "Blob of "
+					+ length);
+		}
+	}
+
+	static void testNestedBundles() throws Exception {
+		OscPacketWriter writer = writer();
+		writer.beginBundle(TIME_TAG);
+		writer.message("/a").i(1).end();
+		writer.beginBundle(TIME_TAG + 1);
+		writer.message("/b/c").s("text").f(2f).end();
+		writer.beginBundle().message("/e").end().endBundle();
+		writer.endBundle();
+		writer.message("/d").end();
+		writer.endBundle();
+
+		check(written(writer).equals(encode(nested())), "Nested bundle bytes");
+
+		// The encoder leaves empty bundles out, the writer doesn't
+		writer = writer();
+		writer.beginBundle().beginBundle(TIME_TAG).endBundle().endBundle();
+		ByteBuffer buffer = written(writer);
+		check(buffer.remaining() == 36 && buffer.getInt(16) == 16
+				&& buffer.getLong(28) == TIME_TAG, "Empty inner bundle");
+	}
+
+	static OscBundle nested() {
+		OscBundle outer = new OscBundle();
+		outer.setTimeTag(TIME_TAG);
+		OscMessage a = new OscMessage("/a");
+		a.addArgument(1);
+		outer.addPacket(a);
+
+		OscBundle inner = new OscBundle();
+		inner.setTimeTag(TIME_TAG + 1);
+		OscMessage bc = new OscMessage("/b/c");
+		bc.addArgument("text");
+		bc.addArgument(2f);
+		inner.addPacket(bc);
+		OscBundle last = new OscBundle();
+		last.addPacket(new OscMessage("/e"));
+		inner.addPacket(last);
+		outer.addPacket(inner);
+
+		outer.addPacket(new OscMessage("/d"));
+		return outer;
+	}
+
+	static void testSizePrefix() throws Exception {
+		// Two top level packets one after the other, as on a TCP stream
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		OscPacketWriter writer = new OscPacketWriter(buffer, true);
+		writer.message("/first").i(1).end();
+		check(writer.isComplete(), "First packet complete");
+		writer.beginBundle(TIME_TAG);
+		writer.message("/a").i(1).end();
+		writer.beginBundle(TIME_TAG + 1);
+		writer.message("/b/c").s("text").f(2f).end();
+		writer.beginBundle().message("/e").end().endBundle();
+		writer.endBundle();
+		writer.message("/d").end();
+		writer.endBundle();
+
+		OscMessage first = new OscMessage("/first");
+		first.addArgument(1);
+		ByteBuffer expected = ByteBuffer.allocate(4096);
+		encodeWithSize(first, expected);
+		encodeWithSize(nested(), expected);
+		expected.flip();
+		check(written(writer).equals(expected), "Size prefixed bytes");
+	}
+
+	static void encodeWithSize(OscPacket packet, ByteBuffer buffer)
+			throws Exception {
+		new OscDataEncoder(false).encodePacket(packet, buffer, true);
+	}
+
+	static void testDeepNesting() throws Exception {
+		// Deeper than the initial table of blank sizes
+		int levels = 20;
+		OscPacketWriter writer = writer();
+		for (int i = 0; i < levels; i++) {
+			writer.beginBundle(TIME_TAG + i);
+		}
+		writer.message("/deep").i(levels).end();
+		for (int i = 0; i < levels; i++) {
+			writer.endBundle();
+		}
+
+		OscMessage deep = new OscMessage("/deep");
+		deep.addArgument(levels);
+		OscPacket packet = deep;
+		for (int i = levels - 1; i >= 0; i--) {
+			OscBundle bundle = new OscBundle();
+			bundle.setTimeTag(TIME_TAG + i);
+			bundle.addPacket(packet);
+			packet = bundle;
+		}
+		check(written(writer).equals(encode(packet)), "Deep nesting");
+	}
+
+	static void testLargeMessage() throws Exception {
+		// More tags and argument bytes than the scratch buffers start with
+		OscPacketWriter writer = writer();
+		OscMessage message = new OscMessage("/large");
+		writer.message("/large");
+		for (int i = 0; i < 300; i++) {
+			writer.d(i);
+			message.addArgument((double) i);
+		}
+		writer.b(new byte[1000]);
+		message.addArgument(new byte[1000]);
+		writer.end();
+		check(written(writer).equals(encode(message)), "Large message");
+
+		// The grown scratch buffers are reused without leftovers
+		writer = new OscPacketWriter(ByteBuffer.allocate(65536));
+		writer.message("/large").d(0).end();
+		writer.getBuffer().clear();
+		writer.message("/small").i(3).end();
+		OscMessage small = new OscMessage("/small");
+		small.addArgument(3);
+		check(written(writer).equals(encode(small)), "Reused scratch");
+	}
+
+	static void testState() {
+		OscPacketWriter writer = writer();
+		check(writer.isComplete(), "New writer");
+		writer.beginBundle();
+		check(!writer.isComplete(), "Open bundle");
+		try {
+			writer.setBuffer(ByteBuffer.allocate(64));
+			check(false, "Buffer changed inside a bundle");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.message("/a");
+		check(!writer.isComplete(), "Open message");
+		try {
+			writer.message("/b");
+			check(false, "Message inside a message");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			writer.endBundle();
+			check(false, "Bundle ended inside a message");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.end();
+		writer.endBundle();
+		check(writer.isComplete(), "Everything ended");
+		try {
+			writer.endBundle();
+			check(false, "Bundle ended twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			writer.end();
+			check(false, "Message ended twice");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			writer.i(1);
+			check(false, "Argument outside a message");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscListener;
+import com.relivethefuture.osc.data.OscMessage;
+
+/**
+ * Several producers write through a ring far smaller than the number of
+ * packets, so the positions wrap around it thousands of times while the
+ * producers race each other and the consumers for slots. Also stopping and
+ * restarting the ring.
+ */
+public class OscRingBufferDispatchStageTest {
+	private static final int PRODUCERS = 4;
+	private static final int PACKETS_PER_PRODUCER = 20000;
+	private static final int CAPACITY = 8;
+	private static final long TIMEOUT = 30000;
+
+	public static void main(String[] args) throws Exception {
+		testWrapAroundKeepsOrder();
+		testWrapAroundWithConsumers();
+		testStopAndRestart();
+		System.out.println("OscRingBufferDispatchStageTest passed");
+	}
+
+	/**
+	 * With one consumer every producer's packets come out in the order it
+	 * put them in, none lost or repeated.
+	 */
+	static void testWrapAroundKeepsOrder() throws Exception {
+		OscRingBufferDispatchStage stage = new OscRingBufferDispatchStage(
+				CAPACITY, OscRingBufferDispatchStage.WaitStrategy.PARK, 1, 4);
+		final int[] next = new int[PRODUCERS];
+		final AtomicInteger errors = new AtomicInteger();
+		Counter counter = new Counter() {
+			void received(int producer, int sequence) {
+				// Only the one consumer thread gets here
+				if (sequence != next[producer]) {
+					errors.incrementAndGet();
+				}
+				next[producer] = sequence + 1;
+			}
+		};
+		run(stage, counter);
+
+		check(errors.get() == 0, errors + " packets out of order");
+		for (int i = 0; i < PRODUCERS; i++) {
+			check(next[i] == PACKETS_PER_PRODUCER, "Producer " + i + " got "
+					+ next[i] + " through");
+		}
+	}
+
+	/**
+	 * With several consumers there's no ordering, but every packet is still
+	 * delivered exactly once.
+	 */
+	static void testWrapAroundWithConsumers() throws Exception {
+		OscRingBufferDispatchStage stage = new OscRingBufferDispatchStage(
+				CAPACITY, OscRingBufferDispatchStage.WaitStrategy.PARK, 3, 4);
+		final AtomicIntegerArray seen = new AtomicIntegerArray(PRODUCERS
+				* PACKETS_PER_PRODUCER);
+		Counter counter = new Counter() {
+			void received(int producer, int sequence) {
+				seen.incrementAndGet(producer * PACKETS_PER_PRODUCER
+						+ sequence);
+			}
+		};
+		run(stage, counter);
+
+		for (int i = 0; i < seen.length(); i++) {
+			check(seen.get(i) == 1, "Packet " + i + " delivered "
+					+ seen.get(i) + " times");
+		}
+	}
+
+	/**
+	 * stop() waits for a consumer in the middle of a batch and drops what it
+	 * hadn't taken, packets outside start() and stop() are dropped too, and
+	 * the ring works again once restarted.
+	 */
+	static void testStopAndRestart() throws Exception {
+		final OscRingBufferDispatchStage stage = new OscRingBufferDispatchStage(
+				CAPACITY, OscRingBufferDispatchStage.WaitStrategy.PARK, 1, 1);
+		stage.dispatch(null, new OscMessage("/early"));
+		check(stage.getDroppedCount() == 1, "Dropped before start");
+
+		final Semaphore entered = new Semaphore(0);
+		final CountDownLatch release = new CountDownLatch(1);
+		OscServerIoHandler handler = new OscServerIoHandler();
+		handler.addListener(new OscListener() {
+			public void handleMessage(OscMessage message) {
+				entered.release();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			public void handleBundle(OscBundle bundle) {
+			}
+		});
+		stage.start(handler);
+		stage.dispatch(null, new OscMessage("/held"));
+		check(entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+				"First packet never delivered");
+		for (int i = 0; i < 3; i++) {
+			stage.dispatch(null, new OscMessage("/waiting"));
+		}
+
+		Thread stopper = new Thread("Stopper") {
+			public void run() {
+				stage.stop();
+			}
+		};
+		stopper.start();
+		// Let go of the listener once stop() is waiting for the consumer
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (stopper.getState() != Thread.State.TIMED_WAITING
+				&& System.currentTimeMillis() < end) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		stopper.join();
+
+		check(stage.getDeliveredCount() == 1, "stop() returned with "
+				+ stage.getDeliveredCount() + " delivered");
+		check(stage.getDroppedCount() == 4, "Dropped "
+				+ stage.getDroppedCount() + " after stop");
+		check(stage.getQueueDepth() == 0, "Ring still holds "
+				+ stage.getQueueDepth());
+		stage.dispatch(null, new OscMessage("/late"));
+		check(stage.getDroppedCount() == 5, "Dropped after stop");
+
+		stage.start(handler);
+		try {
+			stage.dispatch(null, new OscMessage("/again"));
+			check(entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+					"Nothing delivered after restart");
+		} finally {
+			stage.stop();
+		}
+		check(stage.getDeliveredCount() == 2, "Delivered "
+				+ stage.getDeliveredCount() + " in all");
+	}
+
+	private static void run(final OscRingBufferDispatchStage stage,
+			Counter counter) throws Exception {
+		OscServerIoHandler handler = new OscServerIoHandler();
+		handler.addListener(counter);
+		stage.start(handler);
+		try {
+			Thread[] producers = new Thread[PRODUCERS];
+			for (int i = 0; i < PRODUCERS; i++) {
+				final int producer = i;
+				producers[i] = new Thread("Producer " + i) {
+					public void run() {
+						for (int j = 0; j < PACKETS_PER_PRODUCER; j++) {
+							OscMessage message = new OscMessage("/producer");
+							message.addInt(producer);
+							message.addInt(j);
+							stage.dispatch(null, message);
+						}
+					}
+				};
+				producers[i].start();
+			}
+			for (int i = 0; i < PRODUCERS; i++) {
+				producers[i].join();
+			}
+
+			int total = PRODUCERS * PACKETS_PER_PRODUCER;
+			check(counter.await(total, TIMEOUT), "Only " + counter.count
+					+ " of " + total + " delivered");
+			// The count goes up once the listeners have returned
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (stage.getDeliveredCount() < total
+					&& System.currentTimeMillis() < end) {
+				Thread.sleep(1);
+			}
+			check(stage.getDeliveredCount() == total, "Delivered count is "
+					+ stage.getDeliveredCount());
+			check(stage.getQueueDepth() == 0, "Ring still holds "
+					+ stage.getQueueDepth());
+		} finally {
+			stage.stop();
+		}
+	}
+
+	private abstract static class Counter implements OscListener {
+		int count;
+
+		abstract void received(int producer, int sequence);
+
+		public void handleMessage(OscMessage message) {
+			received(message.getInt(0), message.getInt(1));
+			synchronized (this) {
+				count++;
+				if (count == PRODUCERS * PACKETS_PER_PRODUCER) {
+					notifyAll();
+				}
+			}
+		}
+
+		public void handleBundle(OscBundle bundle) {
+		}
+
+		synchronized boolean await(int total, long timeoutMillis)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeoutMillis;
+			while (count < total) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.util.List;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.data.OscTimeTag;
+import com.relivethefuture.osc.transport.StageTestSupport.RecordingStage;
+
+/**
+ * A small wheel with short ticks, so bundles a few tens of milliseconds away
+ * are several turns of the wheel ahead and share buckets with ones due
+ * sooner.
+ */
+public class OscSchedulingDispatchStageTest {
+	private static final long TICK_NANOS = 1000000;
+	private static final int WHEEL_SIZE = 8;
+
+	// The wall clock only has millisecond resolution
+	private static final long EARLY_TOLERANCE_NANOS = 3000000;
+	private static final long LATE_TOLERANCE_NANOS = 500000000;
+
+	private static final long[] DELAYS_MILLIS = { 3, 11, 19, 27, 45, 70 };
+
+	public static void main(String[] args) throws Exception {
+		RecordingStage recorder = new RecordingStage();
+		OscSchedulingDispatchStage stage = new OscSchedulingDispatchStage(
+				recorder, TICK_NANOS, WHEEL_SIZE);
+
+		stage.start(null);
+		testExpiryAcrossRounds(stage, recorder, true);
+		recorder.clear();
+		testExpiryAcrossRounds(stage, recorder, false);
+
+		// Leave one pending when the wheel stops
+		stage.dispatch(null, bundleIn(10000, 0));
+		check(stage.getPendingCount() == 1, "Far bundle not held back");
+		stage.stop();
+
+		recorder.clear();
+		stage.start(null);
+		check(stage.getPendingCount() == 0, "Pending bundle survived restart");
+		testExpiryAcrossRounds(stage, recorder, true);
+		stage.stop();
+
+		System.out.println("OscSchedulingDispatchStageTest passed");
+	}
+
+	/**
+	 * Schedule bundles due in several different turns of the wheel and check
+	 * each comes out in order and on time. Latest first, each one has to wake
+	 * the timer earlier. Earliest first, the timer has to find the later ones
+	 * without being woken for them.
+	 */
+	static void testExpiryAcrossRounds(OscSchedulingDispatchStage stage,
+			RecordingStage recorder, boolean latestFirst) throws Exception {
+		long[] deadlines = new long[DELAYS_MILLIS.length];
+		for (int n = 0; n < DELAYS_MILLIS.length; n++) {
+			int i = latestFirst ? DELAYS_MILLIS.length - 1 - n : n;
+			deadlines[i] = System.nanoTime() + DELAYS_MILLIS[i] * 1000000;
+			stage.dispatch(null, bundleIn(DELAYS_MILLIS[i], i));
+		}
+		check(recorder.await(DELAYS_MILLIS.length, 5000), "Only "
+				+ recorder.size() + " of " + DELAYS_MILLIS.length
+				+ " bundles expired");
+		Thread.sleep(50);
+		check(recorder.size() == DELAYS_MILLIS.length, recorder.size()
+				+ " bundles delivered, expected " + DELAYS_MILLIS.length);
+
+		List<Object> packets = recorder.getPackets();
+		for (int i = 0; i < packets.size(); i++) {
+			OscBundle bundle = (OscBundle) packets.get(i);
+			int index = ((OscMessage) bundle.getPackets().get(0)).getInt(0);
+			check(index == i, "Bundle " + index + " delivered in place " + i);
+			long lateness = recorder.getTime(i) - deadlines[i];
+			check(lateness > -EARLY_TOLERANCE_NANOS, "Bundle " + i + " was "
+					+ (-lateness / 1000) + "us early");
+			check(lateness < LATE_TOLERANCE_NANOS, "Bundle " + i + " was "
+					+ (lateness / 1000) + "us late");
+		}
+		check(stage.getPendingCount() == 0, stage.getPendingCount()
+				+ " bundles still pending");
+	}
+
+	private static OscBundle bundleIn(long millis, int index) {
+		OscBundle bundle = new OscBundle();
+		bundle.setTimeTag(OscTimeTag.nanosToNtp((System.currentTimeMillis()
+				+ millis) * 1000000L));
+		OscMessage message = new OscMessage("/bundle");
+		message.addInt(index);
+		bundle.addPacket(message);
+		return bundle;
+	}
+}
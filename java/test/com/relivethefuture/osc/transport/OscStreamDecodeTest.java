@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.CodecTestSupport.encode;
+import static com.relivethefuture.osc.transport.CodecTestSupport.sameMessage;
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.io.DataOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+import com.relivethefuture.osc.data.BasicOscFactory;
+import com.relivethefuture.osc.data.OscMessage;
+import com.relivethefuture.osc.transport.StageTestSupport.RecordingStage;
+
+/**
+ * Size prefixed TCP packets, including sizes that are negative or so large
+ * that adding the prefix itself wraps round.
+ */
+public class OscStreamDecodeTest {
+	private static final int PORT = 47113;
+	private static final int TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+		testPartialPackets();
+		testBadLengths();
+		testServerDropsBadLength();
+		System.out.println("OscStreamDecodeTest passed");
+	}
+
+	/**
+	 * A packet is only decoded once all of it has arrived.
+	 */
+	static void testPartialPackets() throws Exception {
+		OscMessage message = new OscMessage("/stream");
+		message.addInt(42);
+		ByteBuffer packet = framed(message);
+
+		OscDataDecoder decoder = streamDecoder();
+		ByteBuffer partial = packet.duplicate();
+		partial.limit(partial.limit() - 1);
+		check(decoder.decode(partial) == null, "Partial packet decoded");
+		check(partial.position() == 0, "Partial packet consumed");
+
+		Object decoded = decoder.decode(packet);
+		check(decoded instanceof OscMessage
+				&& sameMessage(message, (OscMessage) decoded),
+				"Whole packet decoded as " + decoded);
+		check(!packet.hasRemaining(), "Packet left " + packet.remaining()
+				+ " bytes");
+	}
+
+	static void testBadLengths() throws Exception {
+		int[] lengths = { -1, Integer.MIN_VALUE, Integer.MAX_VALUE,
+				Integer.MAX_VALUE - 3, OscDataDecoder.MAX_PACKET_SIZE - 3 };
+		for (int length : lengths) {
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			buffer.putInt(length).putInt(0).flip();
+			try {
+				streamDecoder().decode(buffer);
+				check(false, "Length " + length + " accepted");
+			} catch (ProtocolDecoderException e) {
+				// expected
+			}
+		}
+
+		// The largest allowed is still waited for
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putInt(OscDataDecoder.MAX_PACKET_SIZE - 4).putInt(0).flip();
+		check(streamDecoder().decode(buffer) == null,
+				"Largest length not waited for");
+	}
+
+	/**
+	 * A sender whose size wraps round is disconnected, and the server goes on
+	 * taking packets from others.
+	 */
+	static void testServerDropsBadLength() throws Exception {
+		RecordingStage recorder = new RecordingStage();
+		OscNioServer server = new OscNioServer(PORT);
+		server.setUDP(false);
+		server.setDispatchStage(recorder);
+		server.start();
+		try {
+			Socket bad = connect();
+			try {
+				DataOutputStream out = new DataOutputStream(bad
+						.getOutputStream());
+				out.writeInt(Integer.MAX_VALUE);
+				out.writeInt(0);
+				out.flush();
+				check(closed(bad), "Connection left open");
+			} finally {
+				bad.close();
+			}
+
+			OscMessage message = new OscMessage("/after");
+			Socket good = connect();
+			try {
+				ByteBuffer packet = framed(message);
+				good.getOutputStream().write(packet.array(), 0,
+						packet.limit());
+				check(recorder.await(1, TIMEOUT), "Nothing received after");
+			} finally {
+				good.close();
+			}
+			check(sameMessage(message, (OscMessage) recorder.getPackets()
+					.get(0)), "Wrong packet received");
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static OscDataDecoder streamDecoder() {
+		return new OscDataDecoder(new BasicOscFactory(), false, false);
+	}
+
+	private static ByteBuffer framed(OscMessage message) throws Exception {
+		ByteBuffer body = encode(message);
+		ByteBuffer packet = ByteBuffer.allocate(body.remaining() + 4);
+		packet.putInt(body.remaining()).put(body).flip();
+		return packet;
+	}
+
+	private static boolean closed(Socket socket) throws Exception {
+		try {
+			return socket.getInputStream().read() == -1;
+		} catch (SocketException e) {
+			// Reset, which is closed too
+			return true;
+		}
+	}
+
+	private static Socket connect() throws Exception {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress("127.0.0.1", PORT), TIMEOUT);
+		socket.setSoTimeout(TIMEOUT);
+		return socket;
+	}
+}
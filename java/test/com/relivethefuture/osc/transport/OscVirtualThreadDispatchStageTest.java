@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import static com.relivethefuture.osc.transport.StageTestSupport.check;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.relivethefuture.osc.data.OscBundle;
+import com.relivethefuture.osc.data.OscListener;
+import com.relivethefuture.osc.data.OscMessage;
+
+/**
+ * Capacity, dropped packets and restarting for the virtual thread stage, with
+ * listeners that block until they are let go.
+ */
+public class OscVirtualThreadDispatchStageTest {
+	private static final int CAPACITY = 4;
+	private static final long TIMEOUT = 10000;
+
+	public static void main(String[] args) throws Exception {
+		testNotRunning();
+		testCapacity(true);
+		testCapacity(false);
+		testStopAndRestart();
+		System.out.println("OscVirtualThreadDispatchStageTest passed");
+	}
+
+	static void testNotRunning() {
+		OscVirtualThreadDispatchStage stage = new OscVirtualThreadDispatchStage();
+		stage.dispatch(null, new OscMessage("/early"));
+		check(stage.getDroppedCount() == 1, "Dropped before start");
+		stage.start(new OscServerIoHandler());
+		stage.stop();
+		stage.dispatch(null, new OscMessage("/late"));
+		check(stage.getDroppedCount() == 2, "Dropped after stop");
+		// Stopping twice does nothing
+		stage.stop();
+	}
+
+	/**
+	 * With the first packet stuck in a listener the stage only takes packets
+	 * up to its capacity, in either mode.
+	 */
+	static void testCapacity(boolean ordered) throws Exception {
+		OscVirtualThreadDispatchStage stage = new OscVirtualThreadDispatchStage(
+				ordered, 16, CAPACITY);
+		BlockingListener listener = new BlockingListener();
+		OscServerIoHandler handler = new OscServerIoHandler();
+		handler.addListener(listener);
+		stage.start(handler);
+		try {
+			stage.dispatch(null, new OscMessage("/held"));
+			check(listener.entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+					"First packet never delivered");
+			for (int i = 0; i < CAPACITY + 3; i++) {
+				stage.dispatch(null, new OscMessage("/held"));
+			}
+			check(stage.getDroppedCount() == 4, "Dropped "
+					+ stage.getDroppedCount() + " ordered " + ordered);
+			check(stage.getQueueDepth() == CAPACITY, "Holding "
+					+ stage.getQueueDepth());
+
+			listener.release.countDown();
+			check(listener.entered.tryAcquire(CAPACITY - 1, TIMEOUT,
+					TimeUnit.MILLISECONDS), "Held packets not delivered");
+			long end = System.currentTimeMillis() + TIMEOUT;
+			while (stage.getQueueDepth() > 0
+					&& System.currentTimeMillis() < end) {
+				Thread.sleep(1);
+			}
+			check(stage.getQueueDepth() == 0, "Still holding "
+					+ stage.getQueueDepth());
+			check(stage.getDroppedCount() == 4, "Dropped more after release");
+		} finally {
+			stage.stop();
+		}
+	}
+
+	/**
+	 * Stopping while a strand is busy drops what it was still holding, and a
+	 * restarted stage delivers to the same address again.
+	 */
+	static void testStopAndRestart() throws Exception {
+		OscVirtualThreadDispatchStage stage = new OscVirtualThreadDispatchStage(
+				true, 1, 16);
+		BlockingListener listener = new BlockingListener();
+		OscServerIoHandler handler = new OscServerIoHandler();
+		handler.addListener(listener);
+		stage.start(handler);
+
+		stage.dispatch(null, new OscMessage("/strand"));
+		check(listener.entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+				"First packet never delivered");
+		for (int i = 0; i < 5; i++) {
+			stage.dispatch(null, new OscMessage("/strand"));
+		}
+		// The stuck listener is interrupted and the five behind it dropped
+		stage.stop();
+		check(stage.getDroppedCount() == 5, "Dropped "
+				+ stage.getDroppedCount() + " on stop");
+		check(listener.entered.availablePermits() == 0,
+				"Delivered after stop");
+
+		listener.release.countDown();
+		stage.start(handler);
+		try {
+			check(stage.getQueueDepth() == 0, "Restarted holding "
+					+ stage.getQueueDepth());
+			stage.dispatch(null, new OscMessage("/strand"));
+			check(listener.entered.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS),
+					"Strand stuck after restart");
+		} finally {
+			stage.stop();
+		}
+	}
+
+	/**
+	 * Holds every message until released, or until its thread is interrupted.
+	 */
+	private static class BlockingListener implements OscListener {
+		final Semaphore entered = new Semaphore(0);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		public void handleMessage(OscMessage message) {
+			entered.release();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void handleBundle(OscBundle bundle) {
+		}
+	}
+}
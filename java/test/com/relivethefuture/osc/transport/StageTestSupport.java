@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2008 Martin Wood-Mitrovski
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.relivethefuture.osc.transport;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared pieces for the dispatch stage tests, which run from main() so they
+ * need nothing beyond the library's own jars.
+ */
+final class StageTestSupport {
+	private StageTestSupport() {
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	/**
+	 * A stage at the end of a chain that remembers what reached it and when.
+	 */
+	static class RecordingStage implements OscDispatchStage {
+		private final List<Object> packets = new ArrayList<Object>();
+		private final List<Long> times = new ArrayList<Long>();
+
+		public void start(OscServerIoHandler handler) {
+		}
+
+		public synchronized void dispatch(SocketAddress source, Object packet) {
+			packets.add(packet);
+			times.add(System.nanoTime());
+			notifyAll();
+		}
+
+		public void stop() {
+		}
+
+		synchronized List<Object> getPackets() {
+			return new ArrayList<Object>(packets);
+		}
+
+		synchronized long getTime(int index) {
+			return times.get(index);
+		}
+
+		synchronized int size() {
+			return packets.size();
+		}
+
+		synchronized void clear() {
+			packets.clear();
+			times.clear();
+		}
+
+		/**
+		 * Wait until at least count packets have arrived.
+		 * 
+		 * @return false if they didn't arrive in time
+		 */
+		synchronized boolean await(int count, long timeoutMillis)
+				throws InterruptedException {
+			long end = System.currentTimeMillis() + timeoutMillis;
+			while (packets.size() < count) {
+				long wait = end - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			return true;
+		}
+	}
+}